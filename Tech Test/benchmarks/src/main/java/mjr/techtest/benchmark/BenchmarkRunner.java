@@ -0,0 +1,39 @@
+/**
+ * Runs all of the sales service benchmarks with 1, 2, 4 and 8 threads, reporting
+ * the allocation rate alongside throughput and latency percentiles.
+ * 
+ * The packaged benchmarks may also be run directly, with JMH's own options:
+ * 
+ *     java -jar target/benchmarks.jar -prof gc -t 4
+ */
+package mjr.techtest.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * @author mrowe
+ *
+ */
+public class BenchmarkRunner {
+
+	private static final int[] THREAD_COUNTS = {1, 2, 4, 8};
+	
+	public static void main(String[] args) throws RunnerException {
+		for (int threads : THREAD_COUNTS) {
+			Options options = new OptionsBuilder()
+					.include(SalesServiceBenchmark.class.getSimpleName())
+					.include(ConcurrentSalesServiceBenchmark.class.getSimpleName())
+					.include(ShardedSalesServiceBenchmark.class.getSimpleName())
+					.addProfiler(GCProfiler.class)
+					.threads(threads)
+					.build();
+			
+			new Runner(options).run();
+		}
+	}
+	
+}
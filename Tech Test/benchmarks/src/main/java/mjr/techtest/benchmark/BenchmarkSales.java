@@ -0,0 +1,95 @@
+/**
+ * Sales and services shared by the benchmarks.
+ */
+package mjr.techtest.benchmark;
+
+import java.util.List;
+
+import mjr.techtest.Sale;
+import mjr.techtest.SalesException;
+import mjr.techtest.impl.ColumnarSalesStore;
+import mjr.techtest.impl.ConcurrentSalesMessagesService;
+import mjr.techtest.impl.ModificationRecord;
+import mjr.techtest.impl.SalesMessagesService;
+import mjr.techtest.impl.SalesReportItem;
+import mjr.techtest.impl.SalesReportSink;
+import mjr.techtest.impl.ShardedSalesService;
+
+/**
+ * @author mrowe
+ *
+ */
+final class BenchmarkSales {
+
+	/*
+	 * Discards all reports, so that the cost of output is not included in the 
+	 * benchmarks of the services.
+	 */
+	private static final SalesReportSink DISCARD_REPORTS = new SalesReportSink() {
+		@Override
+		public void reportSales(List<SalesReportItem> report) {
+		}
+		
+		@Override
+		public void reportModifications(ModificationRecord modifications) {
+		}
+	};
+	
+	private BenchmarkSales() {
+	}
+	
+	
+	/**
+	 * @param numTypes  The number of product types.
+	 * @return One sale of each product type, with varying values.
+	 */
+	static Sale[] createSales(int numTypes) throws SalesException {
+		Sale[] sales = new Sale[numTypes];
+		
+		for (int i = 0; i < numTypes; i++) {
+			sales[i] = new Sale("product-" + i, 1 + (i % 997));
+		}
+		return sales;
+	}
+	
+	/**
+	 * @return A single-threaded service that never reports or pauses.
+	 */
+	static SalesMessagesService createBaselineService() {
+		return createBaselineService(Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * @param logInterval  The number of sales between each report.
+	 * @return A single-threaded service that never pauses, and whose reports are built
+	 *             but discarded.
+	 */
+	static SalesMessagesService createBaselineService(int logInterval) {
+		SalesMessagesService service = new SalesMessagesService(new ColumnarSalesStore(), 
+				logInterval, Integer.MAX_VALUE);
+		service.setReportSink(DISCARD_REPORTS);
+		return service;
+	}
+	
+	/**
+	 * @return A thread-safe service that never pauses, and whose reports are discarded.
+	 */
+	static ConcurrentSalesMessagesService createConcurrentService() {
+		ConcurrentSalesMessagesService service = 
+				new ConcurrentSalesMessagesService(Integer.MAX_VALUE, Integer.MAX_VALUE);
+		service.setReportSink(DISCARD_REPORTS);
+		return service;
+	}
+	
+	/**
+	 * @param numShards  The number of shards.
+	 * @return A sharded service that never pauses, and whose reports are discarded.
+	 */
+	static ShardedSalesService createShardedService(int numShards) {
+		ShardedSalesService service = 
+				new ShardedSalesService(numShards, Integer.MAX_VALUE, Integer.MAX_VALUE);
+		service.setReportSink(DISCARD_REPORTS);
+		return service;
+	}
+	
+}
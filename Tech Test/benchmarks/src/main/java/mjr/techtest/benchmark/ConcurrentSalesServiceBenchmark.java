@@ -0,0 +1,119 @@
+/**
+ * Benchmarks for the hot paths of the thread-safe sales service, shared by all of
+ * the benchmark threads.
+ */
+package mjr.techtest.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mjr.techtest.Sale;
+import mjr.techtest.SalesException;
+import mjr.techtest.SalesService;
+import mjr.techtest.impl.ConcurrentSalesMessagesService;
+import mjr.techtest.impl.SalesReportItem;
+
+/**
+ * The number of threads sharing the service is set when the benchmarks are run,
+ * for example with the -t option, or by {@link BenchmarkRunner}.
+ * 
+ * @author mrowe
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConcurrentSalesServiceBenchmark {
+
+	/** The number of sales recorded before measurement starts. */
+	@Param({"1000", "100000", "10000000"})
+	public int historySize;
+	
+	/** The number of distinct product types sold. */
+	@Param({"10", "1000", "100000"})
+	public int numTypes;
+	
+	private ConcurrentSalesMessagesService service;
+	private Sale[] sales;
+	
+	/**
+	 * The position of each benchmark thread in the cycle of product types.
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+		private int next = -1;
+		private long adjustments = 0;
+		
+		Sale nextSale(Sale[] sales) {
+			if (0 > next) {
+				// Start each thread at a different point, to spread threads across types.
+				next = (int) (Thread.currentThread().getId() % sales.length);
+			}
+			Sale sale = sales[next];
+			next = (next + 1) % sales.length;
+			return sale;
+		}
+	}
+	
+	
+	/*
+	 * The history is rebuilt for each iteration, so that the history measured against
+	 * stays close to the size given, and the count of sales cannot overflow.
+	 */
+	@Setup(Level.Iteration)
+	public void setUp() throws SalesException {
+		sales = BenchmarkSales.createSales(numTypes);
+		service = BenchmarkSales.createConcurrentService();
+		
+		for (int i = 0; i < historySize; i++) {
+			service.recordSale(sales[i % sales.length]);
+		}
+	}
+	
+	
+	@Benchmark
+	public void recordSale(Cursor cursor) throws SalesException {
+		service.recordSale(cursor.nextSale(sales));
+	}
+	
+	@Benchmark
+	public void recordSaleVolume(Cursor cursor) throws SalesException {
+		service.recordSale(cursor.nextSale(sales), 10);
+	}
+	
+	@Benchmark
+	public void adjustSale(Cursor cursor) {
+		Sale sale = cursor.nextSale(sales);
+		
+		// Alternate additions and subtractions for each type, on each pass of the thread
+		// through the types, so that values do not drift.
+		if (0 == ((cursor.adjustments++ / sales.length) & 1)) {
+			service.adjustSale(sale, SalesService.adjustmentOperation.ADD, 5);
+		}
+		else {
+			service.adjustSale(sale, SalesService.adjustmentOperation.SUBTRACT, 5);
+		}
+	}
+	
+	@Benchmark
+	public List<SalesReportItem> generateReport() {
+		return service.generateReport();
+	}
+	
+}
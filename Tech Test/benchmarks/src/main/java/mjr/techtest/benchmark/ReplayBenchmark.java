@@ -0,0 +1,120 @@
+/**
+ * Benchmarks for replaying a file of sale messages through the single-threaded sales
+ * service, in parallel chunks and one message at a time.
+ */
+package mjr.techtest.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mjr.techtest.SalesException;
+import mjr.techtest.SalesService;
+import mjr.techtest.impl.SalesMessageCodec;
+import mjr.techtest.impl.SalesMessageDecoder;
+import mjr.techtest.impl.SalesMessagesService;
+import mjr.techtest.impl.SalesReplayer;
+
+/**
+ * Each operation is a single message, so the throughput reported is in messages per
+ * second.  The replay uses the common fork-join pool, so this is best run with a
+ * single benchmark thread, for example with -t 1.
+ *
+ * @author mrowe
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReplayBenchmark {
+
+	private static final int NUM_MESSAGES = 1000000;
+
+	/** The number of distinct product types sold. */
+	@Param({"10", "1000", "100000"})
+	public int numTypes;
+
+	private Path file;
+
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		file = Files.createTempFile("replay", ".msg");
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+			for (int i = 0; i < NUM_MESSAGES; i++) {
+				if (buffer.remaining() < SalesMessageCodec.MAX_MESSAGE_SIZE) {
+					write(buffer, channel);
+				}
+				String productType = "product-" + (i % numTypes);
+				if (0 == i % 1000) {
+					SalesMessageCodec.encodeAdjustment(buffer, productType, SalesService.adjustmentOperation.ADD, 1);
+				}
+				else {
+					SalesMessageCodec.encodeSale(buffer, productType, 1 + (i % 997));
+				}
+			}
+			write(buffer, channel);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Files.delete(file);
+	}
+
+
+	private static void write(ByteBuffer buffer, FileChannel channel) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+
+	@Benchmark
+	@OperationsPerInvocation(NUM_MESSAGES)
+	public long replay() throws IOException, SalesException {
+		SalesMessagesService service = BenchmarkSales.createBaselineService();
+		SalesReplayer replayer = new SalesReplayer(service);
+		replayer.setSilent(true);
+		return replayer.replay(file);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NUM_MESSAGES)
+	public long decodeSequentially() throws IOException, SalesException {
+		SalesMessagesService service = BenchmarkSales.createBaselineService();
+		SalesMessageDecoder decoder = new SalesMessageDecoder(service);
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			decoder.decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+		return decoder.getMessageCount();
+	}
+
+}
@@ -0,0 +1,133 @@
+/**
+ * Benchmarks for the hot paths of the single-threaded sales service, which is the 
+ * baseline against which other implementations are compared.
+ */
+package mjr.techtest.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mjr.techtest.Sale;
+import mjr.techtest.SalesException;
+import mjr.techtest.SalesService;
+import mjr.techtest.impl.SalesMessagesService;
+import mjr.techtest.impl.SalesReportItem;
+
+/**
+ * Each benchmark thread has a service of its own, so running with more threads
+ * measures how well independent services scale, rather than contention.
+ * 
+ * @author mrowe
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SalesServiceBenchmark {
+
+	/** The number of sales recorded before measurement starts. */
+	@Param({"1000", "100000", "10000000"})
+	public int historySize;
+	
+	/** The number of distinct product types sold. */
+	@Param({"10", "1000", "100000"})
+	public int numTypes;
+	
+	/** 
+	 * The number of sales between each report, either the default or so many that
+	 * sales are never reported.  The history is recorded without reports.
+	 */
+	@Param({"10", "2147483647"})
+	public int logInterval;
+	
+	private SalesMessagesService service;
+	private Sale[] sales;
+	private int next = 0;
+	private long adjustments = 0;
+	
+	
+	/*
+	 * The history is rebuilt for each iteration, so that the history measured against
+	 * stays close to the size given, and the count of sales cannot overflow.
+	 */
+	@Setup(Level.Iteration)
+	public void setUp() throws SalesException {
+		sales = BenchmarkSales.createSales(numTypes);
+		service = BenchmarkSales.createBaselineService(logInterval);
+		
+		service.setReporting(false);
+		for (int i = 0; i < historySize; i++) {
+			service.recordSale(sales[i % sales.length]);
+		}
+		service.setReporting(true);
+	}
+	
+	
+	/*
+	 * Returns the next sale to be recorded, cycling through the product types.
+	 */
+	private Sale nextSale() {
+		Sale sale = sales[next];
+		next = (next + 1) % sales.length;
+		return sale;
+	}
+	
+	
+	@Benchmark
+	public void recordSale() throws SalesException {
+		service.recordSale(nextSale());
+	}
+	
+	@Benchmark
+	public void recordSaleVolume() throws SalesException {
+		service.recordSale(nextSale(), 10);
+	}
+	
+	@Benchmark
+	public void adjustSale() {
+		Sale sale = nextSale();
+		
+		// Alternate additions and subtractions for each type, on each pass through the
+		// types, so that values do not drift.
+		if (0 == ((adjustments++ / sales.length) & 1)) {
+			service.adjustSale(sale, SalesService.adjustmentOperation.ADD, 5);
+		}
+		else {
+			service.adjustSale(sale, SalesService.adjustmentOperation.SUBTRACT, 5);
+		}
+	}
+	
+	@Benchmark
+	public List<SalesReportItem> generateReport() {
+		return service.generateReport();
+	}
+	
+	@Benchmark
+	@Measurement(iterations = 3, time = 5)
+	public List<SalesReportItem> recalculateReport() {
+		return service.recalculateReport();
+	}
+	
+	@Benchmark
+	@Measurement(iterations = 3, time = 5)
+	public List<SalesReportItem> recalculateReportInParallel() {
+		return service.recalculateReportInParallel();
+	}
+	
+}
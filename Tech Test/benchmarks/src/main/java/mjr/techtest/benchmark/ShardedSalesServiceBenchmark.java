@@ -0,0 +1,86 @@
+/**
+ * Benchmarks for recording sales through the sharded sales service, shared by all of
+ * the benchmark threads.
+ */
+package mjr.techtest.benchmark;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mjr.techtest.Sale;
+import mjr.techtest.SalesException;
+import mjr.techtest.impl.SalesReportItem;
+import mjr.techtest.impl.ShardedSalesService;
+
+/**
+ * The number of threads sharing the service is set when the benchmarks are run,
+ * for example with the -t option, or by {@link BenchmarkRunner}.  The sales recorded
+ * are applied by the shards' own threads, so the throughput measured is that at which
+ * sales are accepted, bounded by the rate at which the shards apply them.
+ * 
+ * @author mrowe
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShardedSalesServiceBenchmark {
+
+	/** The number of shards. */
+	@Param({"1", "4", "8"})
+	public int numShards;
+	
+	/** The number of distinct product types sold. */
+	@Param({"10", "1000", "100000"})
+	public int numTypes;
+	
+	private ShardedSalesService service;
+	private Sale[] sales;
+	
+	
+	@Setup(Level.Iteration)
+	public void setUp() throws SalesException {
+		sales = BenchmarkSales.createSales(numTypes);
+		service = BenchmarkSales.createShardedService(numShards);
+	}
+	
+	@TearDown(Level.Iteration)
+	public void tearDown() throws IOException {
+		service.close();
+	}
+	
+	
+	@Benchmark
+	public void recordSale(ConcurrentSalesServiceBenchmark.Cursor cursor) throws SalesException {
+		service.recordSale(cursor.nextSale(sales));
+	}
+	
+	@Benchmark
+	public void recordSaleVolume(ConcurrentSalesServiceBenchmark.Cursor cursor) throws SalesException {
+		service.recordSale(cursor.nextSale(sales), 10);
+	}
+	
+	@Benchmark
+	public List<SalesReportItem> generateReport() {
+		return service.generateReport();
+	}
+	
+}
@@ -14,8 +14,8 @@ package mjr.techtest;
  */
 public class Sale {
 	
-	String invalidNullType = "Product type must not be null";  //TODO - NLS
-	String invalidValue = "Product value must be non-negative.";  // TODO - NLS
+	static final String invalidNullType = "Product type must not be null";  //TODO - NLS
+	static final String invalidValue = "Product value must be non-negative.";  // TODO - NLS
 
 	protected String productType;
 	protected int value;
@@ -35,13 +35,25 @@ public class Sale {
 		this.productType = productType;
 		this.value = value;
 		
-		if (null == productType || productType.equals("")) {
+		validate(productType, value);
+	}
+	
+	
+	/**
+	 * Check that a product type and value would make a valid sale, without creating 
+	 * one.  Nothing is allocated unless they are not valid.
+	 * 
+	 * @param productType  The type of product sold.
+	 * @param value        The cost of a single instance of the product, in pence.
+	 * @throws SalesException if the type is null or empty, or the value is negative.
+	 */
+	public static void validate(String productType, int value) throws SalesException {
+		if (null == productType || productType.isEmpty()) {
 			throw new SalesException(invalidNullType);
 		}
 		if (0 > value) {
 			throw new SalesException(invalidValue);
 		}
-		
 	}
 
 	public String getProductType() {
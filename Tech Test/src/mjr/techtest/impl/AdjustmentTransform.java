@@ -0,0 +1,251 @@
+/**
+ * The combined effect of a sequence of adjustments on the value of a sale.
+ * 
+ * Each of the available operations (ADD, SUBTRACT and MULTIPLY) maps a value v
+ * to (v * m) + c for some m and c, and any sequence of them can therefore be
+ * reduced to a single multiplier and offset.  This allows a number of adjustments
+ * to be applied to a value in a single step.
+ * 
+ * Arithmetic is carried out with long values and checked for overflow.  Should the
+ * multiplier or offset go beyond the range of a long, the transform moves to exact
+ * arithmetic with BigIntegers, as {@link TypeTotals} does, so that it may always be
+ * extended and is never wrong.  The result of applying it is identical to that of
+ * applying each operation to the value in turn, and is available exactly, or as a
+ * long with an ArithmeticException thrown if it would be beyond the range of a long.
+ */
+package mjr.techtest.impl;
+
+import java.math.BigInteger;
+
+import mjr.techtest.SalesService.adjustmentOperation;
+
+/**
+ * @author mrowe
+ *
+ */
+public class AdjustmentTransform {
+
+	private long multiplier;
+	private long offset;
+	
+	// The exact multiplier and offset, once either is beyond the range of a long, or null.
+	private BigInteger exactMultiplier = null;
+	private BigInteger exactOffset = null;
+	
+	/**
+	 * Create a transform that leaves values unchanged.
+	 */
+	public AdjustmentTransform() {
+		this(1, 0);
+	}
+	
+	public AdjustmentTransform(long multiplier, long offset) {
+		this.multiplier = multiplier;
+		this.offset = offset;
+	}
+	
+	/**
+	 * Create a copy of an existing transform, which is unaffected by any later changes
+	 * to the original.
+	 * 
+	 * @param original  The transform to be copied.
+	 */
+	public AdjustmentTransform(AdjustmentTransform original) {
+		this.multiplier = original.multiplier;
+		this.offset = original.offset;
+		this.exactMultiplier = original.exactMultiplier;
+		this.exactOffset = original.exactOffset;
+	}
+	
+	/**
+	 * Extend the transform, so that the given modification is applied after those
+	 * already represented.
+	 * 
+	 * @param modification  The modification to be applied.
+	 */
+	public void append(ModificationRecordItem modification) {
+		append(modification.getOperation(), modification.getValue());
+	}
+	
+	/**
+	 * Extend the transform, so that the given operation is applied after those
+	 * already represented.
+	 * 
+	 * @param operation  The operation to be applied.
+	 * @param value      The value for the operation.
+	 */
+	public void append(adjustmentOperation operation, int value) {
+		if (!isExact()) {
+			try {
+				switch (operation) {
+				case ADD:
+					offset = Math.addExact(offset, value);
+					break;
+				case SUBTRACT:
+					offset = Math.subtractExact(offset, value);
+					break;
+				case MULTIPLY:
+					long newMultiplier = Math.multiplyExact(multiplier, value);
+					offset = Math.multiplyExact(offset, value);
+					multiplier = newMultiplier;
+					break;
+				}
+				return;
+			}
+			catch (ArithmeticException e) {
+				escalate();
+			}
+		}
+		
+		BigInteger change = BigInteger.valueOf(value);
+		switch (operation) {
+		case ADD:
+			setExact(exactMultiplier, exactOffset.add(change));
+			break;
+		case SUBTRACT:
+			setExact(exactMultiplier, exactOffset.subtract(change));
+			break;
+		case MULTIPLY:
+			setExact(exactMultiplier.multiply(change), exactOffset.multiply(change));
+			break;
+		}
+	}
+	
+	/**
+	 * Extend the transform, so that the given modification is applied before those
+	 * already represented.
+	 * 
+	 * @param modification  The modification to be applied.
+	 */
+	public void prepend(ModificationRecordItem modification) {
+		prepend(modification.getOperation(), modification.getValue());
+	}
+	
+	/**
+	 * Extend the transform, so that the given operation is applied before those
+	 * already represented.
+	 * 
+	 * @param operation  The operation to be applied.
+	 * @param value      The value for the operation.
+	 */
+	public void prepend(adjustmentOperation operation, int value) {
+		if (!isExact()) {
+			try {
+				switch (operation) {
+				case ADD:
+					offset = Math.addExact(offset, Math.multiplyExact(multiplier, value));
+					break;
+				case SUBTRACT:
+					offset = Math.subtractExact(offset, Math.multiplyExact(multiplier, value));
+					break;
+				case MULTIPLY:
+					multiplier = Math.multiplyExact(multiplier, value);
+					break;
+				}
+				return;
+			}
+			catch (ArithmeticException e) {
+				escalate();
+			}
+		}
+		
+		BigInteger change = BigInteger.valueOf(value);
+		switch (operation) {
+		case ADD:
+			setExact(exactMultiplier, exactOffset.add(exactMultiplier.multiply(change)));
+			break;
+		case SUBTRACT:
+			setExact(exactMultiplier, exactOffset.subtract(exactMultiplier.multiply(change)));
+			break;
+		case MULTIPLY:
+			setExact(exactMultiplier.multiply(change), exactOffset);
+			break;
+		}
+	}
+	
+	
+	/*
+	 * Move the multiplier and offset from longs to exact arithmetic.
+	 */
+	private void escalate() {
+		exactMultiplier = BigInteger.valueOf(multiplier);
+		exactOffset = BigInteger.valueOf(offset);
+	}
+	
+	/*
+	 * Set the multiplier and offset, held as longs if both are within range, or exactly
+	 * if not.
+	 */
+	private void setExact(BigInteger newMultiplier, BigInteger newOffset) {
+		if ((newMultiplier.bitLength() < Long.SIZE) && (newOffset.bitLength() < Long.SIZE)) {
+			multiplier = newMultiplier.longValue();
+			offset = newOffset.longValue();
+			exactMultiplier = null;
+			exactOffset = null;
+		}
+		else {
+			exactMultiplier = newMultiplier;
+			exactOffset = newOffset;
+		}
+	}
+	
+	
+	/**
+	 * @return true if the multiplier or offset is beyond the range of a long, and so is
+	 *             held exactly.
+	 */
+	public boolean isExact() {
+		return (null != exactMultiplier);
+	}
+	
+	/**
+	 * @param value  The value to be adjusted.
+	 * @return The value once all of the modifications have been applied.
+	 * @throws ArithmeticException if the adjusted value is beyond the range of a long.
+	 */
+	public long apply(int value) {
+		if (isExact()) {
+			return applyExact(value).longValueExact();
+		}
+		return Math.addExact(Math.multiplyExact(value, multiplier), offset);
+	}
+	
+	/**
+	 * @param value  The value to be adjusted.
+	 * @return The value once all of the modifications have been applied, exactly.
+	 */
+	public BigInteger applyExact(int value) {
+		return getExactMultiplier().multiply(BigInteger.valueOf(value)).add(getExactOffset());
+	}
+
+	/**
+	 * @return the multiplier
+	 * @throws ArithmeticException if the multiplier is beyond the range of a long.
+	 */
+	public long getMultiplier() {
+		return isExact() ? exactMultiplier.longValueExact() : multiplier;
+	}
+
+	/**
+	 * @return the offset
+	 * @throws ArithmeticException if the offset is beyond the range of a long.
+	 */
+	public long getOffset() {
+		return isExact() ? exactOffset.longValueExact() : offset;
+	}
+
+	/**
+	 * @return the exact multiplier
+	 */
+	public BigInteger getExactMultiplier() {
+		return isExact() ? exactMultiplier : BigInteger.valueOf(multiplier);
+	}
+
+	/**
+	 * @return the exact offset
+	 */
+	public BigInteger getExactOffset() {
+		return isExact() ? exactOffset : BigInteger.valueOf(offset);
+	}
+
+}
@@ -0,0 +1,159 @@
+/**
+ * A destination for sales reports that formats and writes them on a thread of
+ * its own, so that the thread recording sales only has to pass on the report.
+ * 
+ * Reports are queued as they are received.  The writing thread formats all of
+ * the reports waiting in the queue into a single buffer, which is reused, and 
+ * writes the buffer out in one call.  If the queue fills, because reports are 
+ * produced faster than they can be written, the thread passing on a report waits
+ * for space in the queue.
+ */
+package mjr.techtest.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * @author mrowe
+ *
+ */
+public abstract class AsyncReportSink implements SalesReportSink, Closeable {
+
+	private static final int QUEUE_CAPACITY = 1024;
+	
+	// Placed on the queue to stop the writing thread.
+	private static final Object END_OF_REPORTS = new Object();
+	
+	private final BlockingQueue<Object> pendingReports = new ArrayBlockingQueue<Object>(QUEUE_CAPACITY);
+	private final Writer output;
+	private final Thread writerThread;
+	
+	private volatile IOException writeFailure = null;
+	
+	
+	/**
+	 * @param output      The destination of the formatted reports.
+	 * @param threadName  The name of the writing thread.
+	 */
+	protected AsyncReportSink(Writer output, String threadName) {
+		this.output = output;
+		this.writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeReports();
+			}
+		}, threadName);
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+	
+	
+	/* (non-Javadoc)
+	 * @see mjr.techtest.impl.SalesReportSink#reportSales(java.util.List)
+	 */
+	@Override
+	public void reportSales(List<SalesReportItem> report) {
+		enqueue(report);
+	}
+	
+	/* (non-Javadoc)
+	 * @see mjr.techtest.impl.SalesReportSink#reportModifications(mjr.techtest.impl.ModificationRecord)
+	 */
+	@Override
+	public void reportModifications(ModificationRecord modifications) {
+		enqueue(modifications);
+	}
+	
+	
+	/*
+	 * Add a report to the queue, waiting for space if necessary.
+	 */
+	private void enqueue(Object report) {
+		try {
+			pendingReports.put(report);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	
+	/*
+	 * Write out reports as they arrive, until the sink is closed.
+	 */
+	@SuppressWarnings("unchecked")
+	private void writeReports() {
+		StringBuilder buffer = new StringBuilder(4096);
+		List<Object> batch = new ArrayList<Object>();
+		boolean closed = false;
+		
+		while (!closed) {
+			try {
+				batch.add(pendingReports.take());
+			}
+			catch (InterruptedException e) {
+				break;
+			}
+			pendingReports.drainTo(batch);
+			
+			for (Object report : batch) {
+				if (END_OF_REPORTS == report) {
+					closed = true;
+				}
+				else if (report instanceof ModificationRecord) {
+					SalesReportFormatter.appendModifications(buffer, (ModificationRecord) report);
+				}
+				else {
+					SalesReportFormatter.appendReport(buffer, (List<SalesReportItem>) report);
+				}
+			}
+			batch.clear();
+			
+			try {
+				output.append(buffer);
+				output.flush();
+			}
+			catch (IOException e) {
+				writeFailure = e;
+			}
+			buffer.setLength(0);
+		}
+	}
+	
+	
+	/**
+	 * Write out any reports still queued, and stop the writing thread.
+	 * 
+	 * @throws IOException if any report could not be written.
+	 */
+	@Override
+	public void close() throws IOException {
+		enqueue(END_OF_REPORTS);
+		try {
+			writerThread.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		closeOutput(output);
+		
+		if (null != writeFailure) {
+			throw writeFailure;
+		}
+	}
+	
+	
+	/**
+	 * Release the destination of the reports, once all reports have been written.
+	 * 
+	 * @param output  The destination of the reports.
+	 * @throws IOException
+	 */
+	protected abstract void closeOutput(Writer output) throws IOException;
+	
+}
@@ -0,0 +1,130 @@
+/**
+ * A store of recorded sales on the Java heap, held in columns of primitive values
+ * rather than as an object per sale.
+ */
+package mjr.techtest.impl;
+
+import java.util.Arrays;
+
+/**
+ * @author mrowe
+ *
+ */
+public class ColumnarSalesStore implements SalesStore {
+
+	private static final int INITIAL_CAPACITY = 64;
+	
+	private int[] typeIds;
+	private int[] values;
+	private int[] volumes;
+	private int[] firstIndexes;
+	private int[] adjustmentIndexes;
+	
+	private int size = 0;
+	
+	
+	public ColumnarSalesStore() {
+		this(INITIAL_CAPACITY);
+	}
+	
+	/**
+	 * @param initialCapacity  The number of entries for which space is initially allocated.
+	 */
+	public ColumnarSalesStore(int initialCapacity) {
+		int capacity = Math.max(1, initialCapacity);
+		
+		typeIds = new int[capacity];
+		values = new int[capacity];
+		volumes = new int[capacity];
+		firstIndexes = new int[capacity];
+		adjustmentIndexes = new int[capacity];
+	}
+	
+	
+	/* (non-Javadoc)
+	 * @see mjr.techtest.impl.SalesStore#add(int, int, int, int, int)
+	 */
+	@Override
+	public int add(int typeId, int value, int volume, int firstIndex, int adjustmentIndex) {
+		if (size == typeIds.length) {
+			grow();
+		}
+		typeIds[size] = typeId;
+		values[size] = value;
+		volumes[size] = volume;
+		firstIndexes[size] = firstIndex;
+		adjustmentIndexes[size] = adjustmentIndex;
+		
+		return size++;
+	}
+	
+	
+	/*
+	 * Double the capacity of each of the columns.
+	 */
+	private void grow() {
+		int capacity = typeIds.length * 2;
+		
+		typeIds = Arrays.copyOf(typeIds, capacity);
+		values = Arrays.copyOf(values, capacity);
+		volumes = Arrays.copyOf(volumes, capacity);
+		firstIndexes = Arrays.copyOf(firstIndexes, capacity);
+		adjustmentIndexes = Arrays.copyOf(adjustmentIndexes, capacity);
+	}
+	
+	
+	/* (non-Javadoc)
+	 * @see mjr.techtest.impl.SalesStore#findEntry(int)
+	 */
+	@Override
+	public int findEntry(int saleIndex) {
+		if ((0 == size) || (saleIndex < firstIndexes[0]) 
+				|| (saleIndex >= firstIndexes[size - 1] + volumes[size - 1])) {
+			return -1;
+		}
+		
+		int low = 0;
+		int high = size - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (firstIndexes[mid] <= saleIndex) {
+				low = mid;
+			}
+			else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public int getTypeId(int entry) {
+		return typeIds[entry];
+	}
+
+	@Override
+	public int getValue(int entry) {
+		return values[entry];
+	}
+
+	@Override
+	public int getVolume(int entry) {
+		return volumes[entry];
+	}
+
+	@Override
+	public int getFirstIndex(int entry) {
+		return firstIndexes[entry];
+	}
+
+	@Override
+	public int getAdjustmentIndex(int entry) {
+		return adjustmentIndexes[entry];
+	}
+
+}
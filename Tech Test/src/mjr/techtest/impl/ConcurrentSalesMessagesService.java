@@ -0,0 +1,326 @@
+/**
+ * Implementation of the interface for the service that records and manages sale
+ * messages, for use by a number of threads at once.
+ */
+package mjr.techtest.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import mjr.techtest.Sale;
+import mjr.techtest.SalesException;
+import mjr.techtest.SalesPausedException;
+import mjr.techtest.SalesService;
+import mjr.techtest.impl.SalesMessagesService.State;
+
+/**
+ * The sales and running totals for each product type are held separately, and
+ * guarded by a lock for that type alone, so that threads recording sales of
+ * different types do not wait for each other.
+ *
+ * The sales count is shared by all types, and is advanced atomically before a
+ * sale is stored.  This guarantees that no more than the pause limit of sales is
+ * accepted, however many threads are recording sales, and that each logging point
+ * is reported by exactly one thread.  The thread reporting at a logging point waits
+ * for every sale claimed before that point to be stored, see SalesClaimTracker, so
+ * that the report includes every sale up to that point, while other threads store
+ * their sales without waiting for each other.  It reflects the totals at the time it
+ * is generated, which may already include sales made by other threads after that
+ * point.
+ *
+ * @author mrowe
+ *
+ */
+public class ConcurrentSalesMessagesService implements SalesService {
+
+	/*
+	 * The sales recorded for a single product type, and the modifications made to them.
+	 * All fields are guarded by the lock on the instance itself.  The sales are held in
+	 * columns, with id TOTALS_ID, so that storing one creates no object.  As each thread
+	 * stores its sales once it has claimed them, they may not be held in the order in
+	 * which they were claimed, so the store is never searched by position.
+	 */
+	private static class TypeSales {
+
+		private final String productType;
+		private final SalesStore sales = new ColumnarSalesStore();
+		// The modifications, held as the only type in a record of their own.
+		private final ModificationRecord modifications = new ModificationRecord();
+
+		// The running totals, held as the only type in the totals, with id TOTALS_ID.
+		private final TypeTotals totals = new TypeTotals();
+
+		TypeSales(String productType) {
+			this.productType = productType;
+		}
+	}
+
+	private static final int TOTALS_ID = 0;
+
+	private final Map<String, TypeSales> salesByType = new ConcurrentHashMap<String, TypeSales>();
+
+	private final AtomicInteger salesCount = new AtomicInteger();
+
+	// Which of the sales claimed have been stored.
+	private final SalesClaimTracker stored;
+	private final AtomicReference<State> currState = new AtomicReference<State>(State.RUNNING);
+
+	private final int logInterval;
+	private final int pauseInterval;
+
+	// Thrown for every sale rejected once paused.  It has no stack trace, so may be
+	// shared, and rejecting a sale allocates nothing.
+	private final SalesPausedException pausedException;
+
+	private volatile SalesReportSink reportSink = new SalesReportPrinter();
+
+	public ConcurrentSalesMessagesService() {
+		this(10, 50);
+	}
+
+	/**
+	 * @param logInterval    The number of sales between each report.
+	 * @param pauseInterval  The number of sales after which the service pauses.
+	 */
+	public ConcurrentSalesMessagesService(int logInterval, int pauseInterval) {
+		this.logInterval = logInterval;
+		this.pauseInterval = pauseInterval;
+		this.stored = new SalesClaimTracker(logInterval);
+		this.pausedException = new SalesPausedException("Application has processed " + pauseInterval + " sales",
+				null, false, false);
+	}
+
+	public State getCurrState() {
+		return currState.get();
+	}
+
+	/**
+	 * Set the destination for the reports produced as sales are recorded.  The sink
+	 * may be passed reports by more than one thread at once.
+	 *
+	 * @param reportSink  The destination for reports.
+	 * @see SalesMessagesService#setReportSink(SalesReportSink)
+	 */
+	public void setReportSink(SalesReportSink reportSink) {
+		this.reportSink = reportSink;
+	}
+
+	/**
+	 * @return The number of individual sales accepted by the service.
+	 */
+	public int getSalesCount() {
+		return salesCount.get();
+	}
+
+
+	/* (non-Javadoc)
+	 * @see mjr.techtest.SalesService#recordSale(mjr.techtest.Sale)
+	 */
+	@Override
+	public void recordSale(Sale newSale) throws SalesException {
+		recordSale(newSale, 1);
+	}
+
+	/* (non-Javadoc)
+	 * @see mjr.techtest.SalesService#recordSale(mjr.techtest.Sale, int)
+	 *
+	 * As with the single-threaded service, if the pause limit is reached part way
+	 * through the items then those before the limit are recorded, and the remainder
+	 * rejected.
+	 */
+	@Override
+	public void recordSale(Sale newSale, int volume) throws SalesException {
+		if (0 >= volume) {
+			return;
+		}
+		// The sale is read once, and checked again, as it may have been changed since
+		// it was created.
+		String productType = newSale.getProductType();
+		int value = newSale.getValue();
+		Sale.validate(productType, value);
+
+		// Claim a place in the sequence of sales for the items, before storing them.
+		int firstIndex;
+		int accepted;
+		do {
+			firstIndex = salesCount.get();
+			if (pauseInterval <= firstIndex) {
+				throw pausedException;
+			}
+			accepted = Math.min(volume, pauseInterval - firstIndex);
+		} while (!salesCount.compareAndSet(firstIndex, firstIndex + accepted));
+
+		try {
+			addSales(productType, value, accepted, firstIndex);
+		}
+		finally {
+			stored.stored(firstIndex, firstIndex + accepted);
+		}
+		processSales(firstIndex, firstIndex + accepted);
+
+		if (accepted < volume) {
+			throw pausedException;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see mjr.techtest.SalesService#adjustSale(mjr.techtest.Sale, mjr.techtest.SalesService.adjustmentOperation, int)
+	 *
+	 * Applies the specified operation to all stored items of a particular type.
+	 */
+	@Override
+	public void adjustSale(Sale existingSale, adjustmentOperation adjustment, int adjustmentValue) {
+		TypeSales typeSales = getTypeSales(existingSale.getProductType());
+
+		synchronized (typeSales) {
+			typeSales.totals.adjust(TOTALS_ID, adjustment, adjustmentValue);
+			typeSales.modifications.recordModification(typeSales.productType, adjustment, adjustmentValue);
+		}
+	}
+
+
+	/*
+	 * Store the items sold against their type, and add them to the running totals.
+	 */
+	private void addSales(String productType, int value, int volume, int firstIndex) {
+		TypeSales typeSales = getTypeSales(productType);
+
+		synchronized (typeSales) {
+			typeSales.sales.add(TOTALS_ID, value, volume, firstIndex,
+					typeSales.modifications.getModificationCount(typeSales.productType));
+			typeSales.totals.add(TOTALS_ID, value, volume);
+		}
+	}
+
+
+	/*
+	 * Returns the record of sales for a type, creating it if no sales have yet been
+	 * made.
+	 */
+	private TypeSales getTypeSales(String productType) {
+		TypeSales typeSales = salesByType.get(productType);
+
+		if (null == typeSales) {
+			TypeSales newTypeSales = new TypeSales(productType);
+			typeSales = salesByType.putIfAbsent(productType, newTypeSales);
+			if (null == typeSales) {
+				typeSales = newTypeSales;
+			}
+		}
+		return typeSales;
+	}
+
+
+	/*
+	 * Report at each logging point in the range of sales claimed by the caller, and
+	 * pause the service if the range ends at the pause limit.  Since the ranges
+	 * claimed never overlap, only one thread will act on each point.  Each report
+	 * waits for the sales claimed before its point by other threads to be stored.
+	 */
+	private void processSales(int fromIndex, int toIndex) {
+		setState(State.RUNNING);
+
+		long nextLog = ((long) (fromIndex / logInterval) + 1) * logInterval;
+		for (; nextLog <= toIndex; nextLog += logInterval) {
+			setState(State.LOGGING);
+			stored.awaitStored((int) nextLog);
+			reportSink.reportSales(generateReport());
+		}
+		if (pauseInterval == toIndex) {
+			currState.set(State.PAUSED);
+			stored.awaitStored(pauseInterval);
+			reportSink.reportModifications(getSaleModifications());
+		}
+	}
+
+
+	/*
+	 * Move to a new state, unless the service has already been paused.
+	 */
+	private void setState(State newState) {
+		State prevState;
+		do {
+			prevState = currState.get();
+			if (State.PAUSED == prevState) {
+				return;
+			}
+		} while (!currState.compareAndSet(prevState, newState));
+	}
+
+
+	/**
+	 * Generate a report of all sale items currently received.
+	 *
+	 * The totals for each type are consistent with the sales and adjustments made
+	 * for that type, but sales of different types may be recorded while the report
+	 * is being generated.
+	 *
+	 * @see SalesMessagesService#generateReport()
+	 */
+	public List<SalesReportItem> generateReport() {
+		List<SalesReportItem> report = new ArrayList<SalesReportItem>(salesByType.size());
+
+		for (TypeSales typeSales : salesByType.values()) {
+			synchronized (typeSales) {
+				if (0 < typeSales.sales.size()) {
+					report.add(typeSales.totals.createReportItem(TOTALS_ID, typeSales.productType));
+				}
+			}
+		}
+		return report;
+	}
+
+
+	/**
+	 * Generate a report of all sale items currently received, by revisiting every
+	 * stored sale rather than using the running totals.
+	 *
+	 * @see SalesMessagesService#recalculateReport()
+	 */
+	public List<SalesReportItem> recalculateReport() {
+		List<SalesReportItem> report = new ArrayList<SalesReportItem>(salesByType.size());
+
+		for (TypeSales typeSales : salesByType.values()) {
+			synchronized (typeSales) {
+				if (0 == typeSales.sales.size()) {
+					continue;
+				}
+				AdjustmentTransform[] transforms = typeSales.modifications.getTransformsForType(typeSales.productType);
+
+				TypeTotals totals = new TypeTotals();
+				for (int entry = 0; entry < typeSales.sales.size(); entry++) {
+					totals.add(TOTALS_ID, transforms[typeSales.sales.getAdjustmentIndex(entry)], 
+							typeSales.sales.getValue(entry), typeSales.sales.getVolume(entry));
+				}
+				report.add(totals.createReportItem(TOTALS_ID, typeSales.productType));
+			}
+		}
+		return report;
+	}
+
+
+	/**
+	 * Returns a copy of all modifications made to sale item types.
+	 *
+	 * @return The set of all modifications made to sale item types.
+	 */
+	public ModificationRecord getSaleModifications() {
+		ModificationRecord saleModifications = new ModificationRecord();
+
+		for (TypeSales typeSales : salesByType.values()) {
+			synchronized (typeSales) {
+				String productType = typeSales.productType;
+				for (int i = 0; i < typeSales.modifications.getModificationCount(productType); i++) {
+					saleModifications.recordModification(productType, typeSales.modifications.getOperation(productType, i),
+							typeSales.modifications.getValue(productType, i));
+				}
+			}
+		}
+		return saleModifications;
+	}
+
+}
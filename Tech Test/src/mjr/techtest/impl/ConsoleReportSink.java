@@ -0,0 +1,32 @@
+/**
+ * A destination for sales reports that writes them to the console, on a thread
+ * of its own.
+ */
+package mjr.techtest.impl;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * @author mrowe
+ *
+ */
+public class ConsoleReportSink extends AsyncReportSink {
+
+	public ConsoleReportSink() {
+		super(new BufferedWriter(new OutputStreamWriter(System.out)), "sales-report-console");
+	}
+	
+	/* (non-Javadoc)
+	 * @see mjr.techtest.impl.AsyncReportSink#closeOutput(java.io.Writer)
+	 * 
+	 * The console itself is left open.
+	 */
+	@Override
+	protected void closeOutput(Writer output) throws IOException {
+		output.flush();
+	}
+	
+}
@@ -0,0 +1,37 @@
+/**
+ * A destination for sales reports that appends them to a file, on a thread of 
+ * its own.
+ */
+package mjr.techtest.impl;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * @author mrowe
+ *
+ */
+public class FileReportSink extends AsyncReportSink {
+
+	/**
+	 * @param file  The file to which reports are appended.  It is created if it does not exist.
+	 * @throws IOException
+	 */
+	public FileReportSink(Path file) throws IOException {
+		super(Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, 
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND), "sales-report-file");
+	}
+	
+	/* (non-Javadoc)
+	 * @see mjr.techtest.impl.AsyncReportSink#closeOutput(java.io.Writer)
+	 */
+	@Override
+	protected void closeOutput(Writer output) throws IOException {
+		output.close();
+	}
+	
+}
@@ -0,0 +1,58 @@
+/**
+ * Interface for the policy that decides when the sales service stops accepting
+ * sales.  Once paused, the service accepts no further sales until it is resumed.
+ */
+package mjr.techtest.impl;
+
+/**
+ * @author mrowe
+ *
+ */
+public interface FlowControlPolicy {
+
+	/**
+	 * The pause point returned by a policy under which the service does not pause.  No
+	 * count of sales is ever equal to it.
+	 */
+	public static final int NEVER = -1;
+
+	/**
+	 * Returns the point at which the service should next pause, when it starts or
+	 * is resumed.
+	 * 
+	 * @param salesCount  The number of sales recorded when the service started or 
+	 *                        was resumed.
+	 * @return The number of sales recorded at which the service should pause, or
+	 *             {@link #NEVER} if it should not pause.
+	 */
+	public int getPausePoint(int salesCount);
+	
+	
+	/**
+	 * @param interval  The number of sales.
+	 * @return A policy that pauses the service once the given number of sales have
+	 *             been recorded since it started or was last resumed, or never if that
+	 *             number would be beyond the range of an int.
+	 */
+	public static FlowControlPolicy pauseEvery(final int interval) {
+		return new FlowControlPolicy() {
+			@Override
+			public int getPausePoint(int salesCount) {
+				return (Integer.MAX_VALUE - interval <= salesCount) ? NEVER : salesCount + interval;
+			}
+		};
+	}
+	
+	/**
+	 * @return A policy that never pauses the service.
+	 */
+	public static FlowControlPolicy neverPause() {
+		return new FlowControlPolicy() {
+			@Override
+			public int getPausePoint(int salesCount) {
+				return NEVER;
+			}
+		};
+	}
+
+}
@@ -0,0 +1,313 @@
+/**
+ * A bounded record of the product types with the greatest weight (items sold, or their
+ * value), kept by the Space-Saving method.
+ *
+ * A fixed number of counters is held.  A type already counted has its counter increased;
+ * otherwise, once every counter is in use, the type takes over the counter with the least
+ * weight, inheriting that weight as the possible overestimate of its own.  Any type whose
+ * weight exceeds the total divided by the number of counters is certain to be held.
+ *
+ * The counters are kept in a heap ordered by weight, and found by type through a hash
+ * table, so each update takes time in proportion to the logarithm of the number of
+ * counters, however many types there are.
+ */
+package mjr.techtest.impl;
+
+/**
+ * @author mrowe
+ *
+ */
+public class HeavyHitters {
+
+	private final int[] typeIds;
+	private final long[] counts;
+	private final long[] errors;
+	private int size = 0;
+
+	// The counters, by position, in a heap with the least weight at the root, and the
+	// position in the heap of each counter.
+	private final int[] heap;
+	private final int[] heapPositions;
+
+	// The counter for each type held, plus one, by the hash of the type, with 0 for none.
+	private final int[] table;
+	private final int tableMask;
+
+
+	/**
+	 * @param capacity  The number of counters, and so of types, held.
+	 */
+	public HeavyHitters(int capacity) {
+		if (0 >= capacity) {
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		}
+		typeIds = new int[capacity];
+		counts = new long[capacity];
+		errors = new long[capacity];
+		heap = new int[capacity];
+		heapPositions = new int[capacity];
+
+		int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+		table = new int[tableSize];
+		tableMask = tableSize - 1;
+	}
+
+
+	/**
+	 * @return The number of counters in use.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param counter  The position of a counter.
+	 * @return The id of the type counted.
+	 */
+	public int getTypeId(int counter) {
+		return typeIds[counter];
+	}
+
+	/**
+	 * @param counter  The position of a counter.
+	 * @return The weight counted, which may overstate that of the type by up to the error.
+	 */
+	public long getCount(int counter) {
+		return counts[counter];
+	}
+
+	/**
+	 * @param counter  The position of a counter.
+	 * @return The most by which the weight counted may overstate that of the type.
+	 */
+	public long getError(int counter) {
+		return errors[counter];
+	}
+
+
+	/**
+	 * @param typeId  The id of a type.
+	 * @return The position of the counter for the type, or -1 if it is not held.
+	 */
+	public int find(int typeId) {
+		for (int i = tableIndex(typeId); 0 != table[i]; i = (i + 1) & tableMask) {
+			if (typeIds[table[i] - 1] == typeId) {
+				return table[i] - 1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Add weight to the counter for a type, taking over the counter with the least weight
+	 * if the type is not held and every counter is in use.
+	 *
+	 * @param typeId  The id of the type.
+	 * @param weight  The weight added, which must not be negative.
+	 * @return The position of the counter for the type.
+	 */
+	public int offer(int typeId, long weight) {
+		int counter = find(typeId);
+
+		if (0 <= counter) {
+			counts[counter] = saturatedAdd(counts[counter], weight);
+			siftDown(heapPositions[counter]);
+			return counter;
+		}
+
+		if (size < typeIds.length) {
+			counter = size++;
+			typeIds[counter] = typeId;
+			counts[counter] = weight;
+			errors[counter] = 0;
+			heap[counter] = counter;
+			heapPositions[counter] = counter;
+			addToTable(counter);
+			siftUp(counter);
+			return counter;
+		}
+
+		counter = heap[0];
+		removeFromTable(counter);
+		typeIds[counter] = typeId;
+		errors[counter] = counts[counter];
+		counts[counter] = saturatedAdd(counts[counter], weight);
+		addToTable(counter);
+		siftDown(0);
+		return counter;
+	}
+
+	/**
+	 * Replace the weight held by a counter, where the weight of its type is known to have
+	 * changed.  The error is unchanged.
+	 *
+	 * @param counter  The position of the counter.
+	 * @param count    The weight now counted.
+	 */
+	public void update(int counter, long count) {
+		counts[counter] = count;
+		siftUp(heapPositions[counter]);
+		siftDown(heapPositions[counter]);
+	}
+
+	/**
+	 * @return The positions of the counters in use, in order of decreasing weight.
+	 */
+	public int[] getCountersByWeight() {
+		// Heap sort, with the least weight at the root, so that each least in turn is
+		// moved to the end.  Equal weights are taken in the order of their counters.
+		int[] ordered = new int[size];
+		for (int i = 0; i < size; i++) {
+			ordered[i] = i;
+		}
+		for (int position = (size >>> 1) - 1; position >= 0; position--) {
+			siftDown(ordered, position, size);
+		}
+		for (int end = size - 1; end > 0; end--) {
+			int least = ordered[0];
+			ordered[0] = ordered[end];
+			ordered[end] = least;
+			siftDown(ordered, 0, end);
+		}
+		return ordered;
+	}
+
+
+	/*
+	 * Returns the sum of two weights, held at the greatest weight rather than overflowing.
+	 */
+	private static long saturatedAdd(long a, long b) {
+		long sum = a + b;
+		return (0 > sum) ? Long.MAX_VALUE : sum;
+	}
+
+
+	/*
+	 * Move the counter at the given position in the heap towards the root until it is
+	 * no less than its parent.
+	 */
+	private void siftUp(int position) {
+		int counter = heap[position];
+
+		while (0 < position) {
+			int parent = (position - 1) >>> 1;
+			if (counts[heap[parent]] <= counts[counter]) {
+				break;
+			}
+			place(heap[parent], position);
+			position = parent;
+		}
+		place(counter, position);
+	}
+
+	/*
+	 * Move the counter at the given position in the heap away from the root until it is
+	 * no greater than either child.
+	 */
+	private void siftDown(int position) {
+		int counter = heap[position];
+
+		while (true) {
+			int child = position * 2 + 1;
+			if (child >= size) {
+				break;
+			}
+			if ((child + 1 < size) && (counts[heap[child + 1]] < counts[heap[child]])) {
+				child++;
+			}
+			if (counts[counter] <= counts[heap[child]]) {
+				break;
+			}
+			place(heap[child], position);
+			position = child;
+		}
+		place(counter, position);
+	}
+
+	/*
+	 * Move the counter at the given position in a heap of the given length held in the
+	 * array away from the root, until neither child is lighter.
+	 */
+	private void siftDown(int[] ordered, int position, int length) {
+		int counter = ordered[position];
+
+		while (true) {
+			int child = position * 2 + 1;
+			if (child >= length) {
+				break;
+			}
+			if ((child + 1 < length) && isLighter(ordered[child + 1], ordered[child])) {
+				child++;
+			}
+			if (!isLighter(ordered[child], counter)) {
+				break;
+			}
+			ordered[position] = ordered[child];
+			position = child;
+		}
+		ordered[position] = counter;
+	}
+
+	/*
+	 * Returns true if the first counter has less weight than the second, or the same
+	 * weight and a later position, and so is ordered after it.
+	 */
+	private boolean isLighter(int first, int second) {
+		return (counts[first] < counts[second]) || ((counts[first] == counts[second]) && (first > second));
+	}
+
+	/*
+	 * Put a counter at a position in the heap.
+	 */
+	private void place(int counter, int position) {
+		heap[position] = counter;
+		heapPositions[counter] = position;
+	}
+
+
+	/*
+	 * Returns the position in the hash table at which the search for a type starts.
+	 */
+	private int tableIndex(int typeId) {
+		int hash = typeId * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & tableMask;
+	}
+
+	/*
+	 * Add a counter to the hash table, under its type.
+	 */
+	private void addToTable(int counter) {
+		int i = tableIndex(typeIds[counter]);
+		while (0 != table[i]) {
+			i = (i + 1) & tableMask;
+		}
+		table[i] = counter + 1;
+	}
+
+	/*
+	 * Remove a counter from the hash table, moving back any that follow it whose search
+	 * would otherwise pass over the gap left.
+	 */
+	private void removeFromTable(int counter) {
+		int i = tableIndex(typeIds[counter]);
+		while (table[i] != counter + 1) {
+			i = (i + 1) & tableMask;
+		}
+
+		int j = i;
+		while (true) {
+			j = (j + 1) & tableMask;
+			if (0 == table[j]) {
+				break;
+			}
+			int home = tableIndex(typeIds[table[j] - 1]);
+			boolean reachable = (i <= j) ? ((i < home) && (home <= j)) : ((i < home) || (home <= j));
+			if (!reachable) {
+				table[i] = table[j];
+				i = j;
+			}
+		}
+		table[i] = 0;
+	}
+
+}
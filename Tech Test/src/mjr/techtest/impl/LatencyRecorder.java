@@ -0,0 +1,123 @@
+/**
+ * Records how long an operation takes, in nanoseconds, in a histogram of bounded size
+ * from which percentiles may be read.
+ *
+ * The histogram has linear buckets for the smallest durations, and above those a fixed
+ * number of buckets for each power of two, so every duration is counted within about 3%
+ * of its true value, from a nanosecond to centuries.  Recording a duration takes no
+ * locks and allocates nothing, so durations may be recorded from several threads at once
+ * and read while they are being recorded.
+ */
+package mjr.techtest.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author mrowe
+ *
+ */
+public class LatencyRecorder {
+
+	// The number of bits of each duration kept; durations of fewer bits are exact.
+	private static final int PRECISION_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << PRECISION_BITS;
+	private static final int NUM_BUCKETS = (Long.SIZE - PRECISION_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder total = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+
+	/**
+	 * Record a duration.
+	 *
+	 * @param nanos  The duration, in nanoseconds.  Negative durations are taken as zero.
+	 */
+	public void record(long nanos) {
+		long duration = Math.max(0, nanos);
+
+		counts.incrementAndGet(bucket(duration));
+		count.increment();
+		total.add(duration);
+
+		long currentMax = max.get();
+		while ((duration > currentMax) && !max.compareAndSet(currentMax, duration)) {
+			currentMax = max.get();
+		}
+	}
+
+	/**
+	 * Record the time since an operation started.
+	 *
+	 * @param startNanos  The time at which the operation started, from {@link System#nanoTime()}.
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+
+	/**
+	 * @return A summary of the durations recorded so far.
+	 */
+	public LatencySummary getSummary() {
+		long[] snapshot = new long[NUM_BUCKETS];
+		long numRecorded = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			numRecorded += snapshot[i];
+		}
+
+		return new LatencySummary(numRecorded, (0 == numRecorded) ? 0 : (double) total.sum() / count.sum(),
+				percentile(snapshot, numRecorded, 0.5), percentile(snapshot, numRecorded, 0.99),
+				percentile(snapshot, numRecorded, 0.999), max.get());
+	}
+
+
+	/*
+	 * Returns the bucket in which a duration is counted.  Below twice the number of sub
+	 * buckets, each duration has a bucket of its own; above that, the bucket is given by
+	 * the position of the highest bit set and the bits below it kept.
+	 */
+	private static int bucket(long duration) {
+		if (duration < 2 * SUB_BUCKETS) {
+			return (int) duration;
+		}
+		int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(duration)) - PRECISION_BITS;
+		return (shift * SUB_BUCKETS) + (int) (duration >>> shift);
+	}
+
+	/*
+	 * Returns the duration reported for a bucket, the middle of the durations it counts.
+	 */
+	private static long bucketValue(int bucket) {
+		if (bucket < 2 * SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = (bucket / SUB_BUCKETS) - 1;
+		long lowest = (long) (bucket - (shift * SUB_BUCKETS)) << shift;
+		return lowest + ((1L << shift) >>> 1);
+	}
+
+	/*
+	 * Returns the duration at a given percentile of those counted.
+	 */
+	private static long percentile(long[] snapshot, long numRecorded, double quantile) {
+		if (0 == numRecorded) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(quantile * numRecorded);
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return bucketValue(i);
+			}
+		}
+		return bucketValue(snapshot.length - 1);
+	}
+
+}
@@ -0,0 +1,81 @@
+/**
+ * A summary of the durations recorded for an operation, in nanoseconds.
+ */
+package mjr.techtest.impl;
+
+/**
+ * @author mrowe
+ *
+ */
+public class LatencySummary {
+
+	private final long count;
+	private final double mean;
+	private final long median;
+	private final long percentile99;
+	private final long percentile999;
+	private final long max;
+
+
+	public LatencySummary(long count, double mean, long median, long percentile99, long percentile999, long max) {
+		this.count = count;
+		this.mean = mean;
+		this.median = median;
+		this.percentile99 = percentile99;
+		this.percentile999 = percentile999;
+		this.max = max;
+	}
+
+
+	/**
+	 * @return The number of durations recorded.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return The mean duration.
+	 */
+	public double getMean() {
+		return mean;
+	}
+
+	/**
+	 * @return The median duration, to within about 3%.
+	 */
+	public long getMedian() {
+		return median;
+	}
+
+	/**
+	 * @return The duration at the 99th percentile, to within about 3%.
+	 */
+	public long getPercentile99() {
+		return percentile99;
+	}
+
+	/**
+	 * @return The duration at the 99.9th percentile, to within about 3%.
+	 */
+	public long getPercentile999() {
+		return percentile999;
+	}
+
+	/**
+	 * @return The longest duration.
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return String.format("count=%d mean=%.0fns median=%dns p99=%dns p99.9=%dns max=%dns",
+				count, mean, median, percentile99, percentile999, max);
+	}
+
+}
@@ -0,0 +1,190 @@
+/**
+ * A store of recorded sales held in a memory-mapped file rather than on the Java
+ * heap, so that the heap used by the sales service does not grow with the number
+ * of sales recorded.
+ *
+ * Each entry is written as a fixed-width record of five ints, in the order type id,
+ * value, volume, first index and adjustment index.  The file is mapped in segments
+ * of a fixed number of records, and a further segment is mapped whenever the last
+ * is full.  Values are read directly from the mapped segments.
+ *
+ * The file is created afresh, and is not read back on start up.  Recovery of the
+ * sales recorded by an earlier session is not the concern of the store.
+ */
+package mjr.techtest.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author mrowe
+ *
+ */
+public class MappedSalesStore implements SalesStore, Closeable {
+
+	private static final int RECORD_SIZE = 5 * 4;
+	private static final int TYPE_ID_OFFSET = 0;
+	private static final int VALUE_OFFSET = 4;
+	private static final int VOLUME_OFFSET = 8;
+	private static final int FIRST_INDEX_OFFSET = 12;
+	private static final int ADJUSTMENT_INDEX_OFFSET = 16;
+
+	private static final int DEFAULT_RECORDS_PER_SEGMENT = 1 << 20;
+
+	private final FileChannel channel;
+	private final int recordsPerSegment;
+	private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+
+	private int size = 0;
+
+
+	/**
+	 * @param file  The file in which to hold the sales.  Any existing contents are discarded.
+	 * @throws IOException
+	 */
+	public MappedSalesStore(Path file) throws IOException {
+		this(file, DEFAULT_RECORDS_PER_SEGMENT);
+	}
+
+	/**
+	 * @param file               The file in which to hold the sales.  Any existing contents
+	 *                               are discarded.
+	 * @param recordsPerSegment  The number of entries held in each mapped segment of the file.
+	 * @throws IOException
+	 */
+	public MappedSalesStore(Path file, int recordsPerSegment) throws IOException {
+		if ((0 >= recordsPerSegment) || (Integer.MAX_VALUE / RECORD_SIZE < recordsPerSegment)) {
+			throw new IllegalArgumentException("Invalid number of records per segment: " + recordsPerSegment);
+		}
+		this.recordsPerSegment = recordsPerSegment;
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+
+	/* (non-Javadoc)
+	 * @see mjr.techtest.impl.SalesStore#add(int, int, int, int, int)
+	 */
+	@Override
+	public int add(int typeId, int value, int volume, int firstIndex, int adjustmentIndex) {
+		int segment = size / recordsPerSegment;
+		if (segment == segments.size()) {
+			mapSegment();
+		}
+
+		MappedByteBuffer buffer = segments.get(segment);
+		int position = (size % recordsPerSegment) * RECORD_SIZE;
+		buffer.putInt(position + TYPE_ID_OFFSET, typeId);
+		buffer.putInt(position + VALUE_OFFSET, value);
+		buffer.putInt(position + VOLUME_OFFSET, volume);
+		buffer.putInt(position + FIRST_INDEX_OFFSET, firstIndex);
+		buffer.putInt(position + ADJUSTMENT_INDEX_OFFSET, adjustmentIndex);
+
+		return size++;
+	}
+
+
+	/*
+	 * Map a further segment of the file, extending the file to hold it.
+	 */
+	private void mapSegment() {
+		long segmentBytes = (long) recordsPerSegment * RECORD_SIZE;
+
+		try {
+			segments.add(channel.map(FileChannel.MapMode.READ_WRITE, segments.size() * segmentBytes, segmentBytes));
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException("Unable to extend the sales file", e);
+		}
+	}
+
+
+	/*
+	 * Read one of the fields of an entry.
+	 */
+	private int getField(int entry, int offset) {
+		return segments.get(entry / recordsPerSegment).getInt(((entry % recordsPerSegment) * RECORD_SIZE) + offset);
+	}
+
+
+	/* (non-Javadoc)
+	 * @see mjr.techtest.impl.SalesStore#findEntry(int)
+	 */
+	@Override
+	public int findEntry(int saleIndex) {
+		if ((0 == size) || (saleIndex < getFirstIndex(0))
+				|| (saleIndex >= getFirstIndex(size - 1) + getVolume(size - 1))) {
+			return -1;
+		}
+
+		int low = 0;
+		int high = size - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (getFirstIndex(mid) <= saleIndex) {
+				low = mid;
+			}
+			else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+
+	/**
+	 * Write any entries not yet written to the file through to the storage device.
+	 */
+	public void force() {
+		for (MappedByteBuffer segment : segments) {
+			segment.force();
+		}
+	}
+
+
+	/**
+	 * Close the file.  The store must not be used once it has been closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public int getTypeId(int entry) {
+		return getField(entry, TYPE_ID_OFFSET);
+	}
+
+	@Override
+	public int getValue(int entry) {
+		return getField(entry, VALUE_OFFSET);
+	}
+
+	@Override
+	public int getVolume(int entry) {
+		return getField(entry, VOLUME_OFFSET);
+	}
+
+	@Override
+	public int getFirstIndex(int entry) {
+		return getField(entry, FIRST_INDEX_OFFSET);
+	}
+
+	@Override
+	public int getAdjustmentIndex(int entry) {
+		return getField(entry, ADJUSTMENT_INDEX_OFFSET);
+	}
+
+}
@@ -1,40 +1,237 @@
 package mjr.techtest.impl;
 
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 
+import mjr.techtest.SalesService.adjustmentOperation;
+
 public class ModificationRecord {
 
-	HashMap<String, LinkedList<ModificationRecordItem>> modifications;
-	
-	
+	private static final int INITIAL_CAPACITY = 4;
+
+	private static final adjustmentOperation[] OPERATIONS = adjustmentOperation.values();
+
+	/*
+	 * The modifications made to one item type, in the order in which they were made.
+	 * The operations and values are held in arrays rather than as separate items, and
+	 * the combined effect of them all is kept up to date as each is added.
+	 */
+	private static class TypeModifications {
+		byte[] operations;
+		int[] values;
+		int count;
+		final AdjustmentTransform combined;
+
+		TypeModifications() {
+			operations = new byte[INITIAL_CAPACITY];
+			values = new int[INITIAL_CAPACITY];
+			count = 0;
+			combined = new AdjustmentTransform();
+		}
+
+		TypeModifications(TypeModifications original) {
+			operations = Arrays.copyOf(original.operations, Math.max(INITIAL_CAPACITY, original.count));
+			values = Arrays.copyOf(original.values, operations.length);
+			count = original.count;
+			combined = new AdjustmentTransform(original.combined);
+		}
+
+		void add(adjustmentOperation operation, int value) {
+			if (count == operations.length) {
+				operations = Arrays.copyOf(operations, count * 2);
+				values = Arrays.copyOf(values, count * 2);
+			}
+			operations[count] = (byte) operation.ordinal();
+			values[count] = value;
+			count++;
+			combined.append(operation, value);
+		}
+	}
+
+	HashMap<String, TypeModifications> modifications;
+
+
 	public ModificationRecord() {
-		modifications = new HashMap<String, LinkedList<ModificationRecordItem>>();
+		modifications = new HashMap<String, TypeModifications>();
 	}
-	
-	
+
+	/**
+	 * Create a copy of an existing record, which is unaffected by any later changes
+	 * to the original.
+	 *
+	 * @param original  The record to be copied.
+	 */
+	public ModificationRecord(ModificationRecord original) {
+		this();
+		for (String itemType : original.getModifiedTypes()) {
+			modifications.put(itemType, new TypeModifications(original.modifications.get(itemType)));
+		}
+	}
+
+
 	public void recordModification(String itemType, ModificationRecordItem modification) {
-		LinkedList<ModificationRecordItem> modificationsForType = modifications.get(itemType);
-		
+		recordModification(itemType, modification.getOperation(), modification.getValue());
+	}
+
+	/**
+	 * Record a modification made to an item type.
+	 *
+	 * @param itemType   The item type.
+	 * @param operation  The operation applied.
+	 * @param value      The value for the operation.
+	 */
+	public void recordModification(String itemType, adjustmentOperation operation, int value) {
+		TypeModifications modificationsForType = modifications.get(itemType);
+
 		if (null == modificationsForType) {
-			modificationsForType = new LinkedList<ModificationRecordItem>();
-		}
-		else {
-			modifications.remove(modificationsForType);
+			modificationsForType = new TypeModifications();
+			modifications.put(itemType, modificationsForType);
 		}
-		modificationsForType.add(modification);
-		modifications.put(itemType, modificationsForType);		
+		modificationsForType.add(operation, value);
 	}
-	
-	
+
+
 	public Set<String> getModifiedTypes() {
 		return modifications.keySet();
 	}
-	
+
+	/**
+	 * @param itemType  The item type.
+	 * @return A read-only view of the modifications made to the item type, in the order
+	 *             in which they were made, or null if none have been made.  Each item is
+	 *             created as it is retrieved, so {@link #getOperation(String, int)} and
+	 *             {@link #getValue(String, int)} are to be preferred where many are read.
+	 */
 	public List<ModificationRecordItem> getModificationsForType(String itemType) {
-		return modifications.get(itemType);
+		final TypeModifications modificationsForType = modifications.get(itemType);
+
+		if (null == modificationsForType) {
+			return null;
+		}
+		return new AbstractList<ModificationRecordItem>() {
+			@Override
+			public ModificationRecordItem get(int index) {
+				if ((0 > index) || (modificationsForType.count <= index)) {
+					throw new IndexOutOfBoundsException("No modification at position " + index);
+				}
+				return new ModificationRecordItem(OPERATIONS[modificationsForType.operations[index]],
+						modificationsForType.values[index]);
+			}
+
+			@Override
+			public int size() {
+				return modificationsForType.count;
+			}
+		};
+	}
+
+	/**
+	 * @param itemType  The item type.
+	 * @return The number of modifications made to the item type.
+	 */
+	public int getModificationCount(String itemType) {
+		TypeModifications modificationsForType = modifications.get(itemType);
+
+		return (null == modificationsForType) ? 0 : modificationsForType.count;
+	}
+
+	/**
+	 * @param itemType  The item type.
+	 * @param index     The position of the modification, in the order in which they were made.
+	 * @return The operation applied by the modification.
+	 */
+	public adjustmentOperation getOperation(String itemType, int index) {
+		return OPERATIONS[getModifications(itemType, index).operations[index]];
+	}
+
+	/**
+	 * @param itemType  The item type.
+	 * @param index     The position of the modification, in the order in which they were made.
+	 * @return The value for the operation applied by the modification.
+	 */
+	public int getValue(String itemType, int index) {
+		return getModifications(itemType, index).values[index];
+	}
+
+
+	/*
+	 * Returns the modifications made to an item type, checking that the given position
+	 * is among them.
+	 */
+	private TypeModifications getModifications(String itemType, int index) {
+		TypeModifications modificationsForType = modifications.get(itemType);
+
+		if ((null == modificationsForType) || (0 > index) || (modificationsForType.count <= index)) {
+			throw new IndexOutOfBoundsException("No modification of " + itemType + " at position " + index);
+		}
+		return modificationsForType;
+	}
+
+
+	/**
+	 * Returns the combined effect of all of the modifications made to an item type.  This
+	 * is kept up to date as modifications are recorded, so takes the same time however
+	 * many have been made.
+	 *
+	 * @param itemType  The item type.
+	 * @return The combined effect of the modifications.
+	 */
+	public AdjustmentTransform getCurrentTransform(String itemType) {
+		TypeModifications modificationsForType = modifications.get(itemType);
+
+		if (null == modificationsForType) {
+			return new AdjustmentTransform();
+		}
+		return new AdjustmentTransform(modificationsForType.combined);
+	}
+
+	/**
+	 * Combine the modifications made to an item type from a given point onwards.
+	 *
+	 * @param itemType   The item type.
+	 * @param fromIndex  The position of the first modification to be included.
+	 * @return The combined effect of the modifications.
+	 */
+	public AdjustmentTransform getTransformSince(String itemType, int fromIndex) {
+		if (0 >= fromIndex) {
+			return getCurrentTransform(itemType);
+		}
+
+		AdjustmentTransform transform = new AdjustmentTransform();
+		TypeModifications modificationsForType = modifications.get(itemType);
+
+		if (null != modificationsForType) {
+			for (int i = fromIndex; i < modificationsForType.count; i++) {
+				transform.append(OPERATIONS[modificationsForType.operations[i]], modificationsForType.values[i]);
+			}
+		}
+		return transform;
+	}
+
+	/**
+	 * Combine the modifications made to an item type from every possible starting
+	 * point, in a single pass over the modifications.
+	 *
+	 * @param itemType  The item type.
+	 * @return An array in which element i holds the combined effect of modification i
+	 *             and all that follow it.  The final element leaves values unchanged.
+	 */
+	public AdjustmentTransform[] getTransformsForType(String itemType) {
+		TypeModifications modificationsForType = modifications.get(itemType);
+		int count = (null == modificationsForType) ? 0 : modificationsForType.count;
+
+		AdjustmentTransform[] transforms = new AdjustmentTransform[count + 1];
+		AdjustmentTransform transform = new AdjustmentTransform();
+		transforms[count] = new AdjustmentTransform();
+
+		for (int i = count - 1; i >= 0; i--) {
+			transform.prepend(OPERATIONS[modificationsForType.operations[i]], modificationsForType.values[i]);
+			transforms[i] = new AdjustmentTransform(transform);
+		}
+		return transforms;
 	}
 
 }
@@ -14,6 +14,46 @@ public class ModificationRecordItem {
 		this.value = value;
 	}
 
+	/**
+	 * Apply the modification to each of a number of items, given only the total of 
+	 * their values.
+	 * 
+	 * @param numItems    The number of items modified.
+	 * @param totalValue  The total value of the items before the modification.
+	 * @return The total value of the items after the modification.
+	 * @throws ArithmeticException if the total would overflow a long.
+	 */
+	public long applyToTotal(int numItems, long totalValue) {
+		return applyToTotal(operation, value, numItems, totalValue);
+	}
+	
+	/**
+	 * Apply a modification to each of a number of items, given only the total of 
+	 * their values.
+	 * 
+	 * @param operation   The operation applied.
+	 * @param value       The value for the operation.
+	 * @param numItems    The number of items modified.
+	 * @param totalValue  The total value of the items before the modification.
+	 * @return The total value of the items after the modification.
+	 * @throws ArithmeticException if the total would overflow a long.
+	 */
+	public static long applyToTotal(adjustmentOperation operation, int value, int numItems, long totalValue) {
+		long newTotal = totalValue;
+		
+		// The change for each item is an int, so the change for all items fits a long.
+		if (adjustmentOperation.ADD == operation) {
+			newTotal = Math.addExact(totalValue, (long) numItems * value);
+		}
+		else if (adjustmentOperation.SUBTRACT == operation) {
+			newTotal = Math.subtractExact(totalValue, (long) numItems * value);
+		}
+		else if (adjustmentOperation.MULTIPLY == operation) {
+			newTotal = Math.multiplyExact(totalValue, value);
+		}
+		return newTotal;
+	}
+
 	/**
 	 * @return the operation
 	 */
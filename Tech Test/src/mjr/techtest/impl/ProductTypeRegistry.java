@@ -0,0 +1,66 @@
+/**
+ * A register of the product types for which sales have been recorded or adjusted.
+ * Each type is given a small integer id when it is first seen, so that sales can
+ * be stored without a reference to the type's name.
+ */
+package mjr.techtest.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author mrowe
+ *
+ */
+public class ProductTypeRegistry {
+
+	private Map<String, Integer> typeIds = new HashMap<String, Integer>();
+	private List<String> productTypes = new ArrayList<String>();
+	
+	
+	/**
+	 * Returns the id for a product type, registering the type if it has not been
+	 * seen before.  Ids are allocated in sequence from zero.
+	 * 
+	 * @param productType  The product type.
+	 * @return The id of the product type.
+	 */
+	public int register(String productType) {
+		Integer typeId = typeIds.get(productType);
+		
+		if (null == typeId) {
+			typeId = productTypes.size();
+			productTypes.add(productType);
+			typeIds.put(productType, typeId);
+		}
+		return typeId;
+	}
+	
+	/**
+	 * @param productType  The product type.
+	 * @return The id of the product type, or -1 if it has not been registered.
+	 */
+	public int getTypeId(String productType) {
+		Integer typeId = typeIds.get(productType);
+		
+		return (null == typeId) ? -1 : typeId;
+	}
+	
+	/**
+	 * @param typeId  The id of a registered product type.
+	 * @return The product type.
+	 */
+	public String getProductType(int typeId) {
+		return productTypes.get(typeId);
+	}
+	
+	/**
+	 * @return The number of product types registered.
+	 */
+	public int size() {
+		return productTypes.size();
+	}
+
+}
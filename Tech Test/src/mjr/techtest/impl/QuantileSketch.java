@@ -0,0 +1,228 @@
+/**
+ * An approximate record of the distribution of sale values, from which quantiles such as
+ * the median may be read, with a bounded relative error and in bounded space.
+ *
+ * Values are counted in buckets whose bounds grow geometrically, so that every value in a
+ * bucket is within the given relative accuracy of the value reported for it.  At most a
+ * fixed number of buckets is kept; once the values span more than that, the lowest buckets
+ * are merged, so only the lowest quantiles lose accuracy.  Values not above zero are
+ * counted together and reported as zero.
+ */
+package mjr.techtest.impl;
+
+import mjr.techtest.SalesService.adjustmentOperation;
+
+/**
+ * @author mrowe
+ *
+ */
+public class QuantileSketch {
+
+	public static final double DEFAULT_ACCURACY = 0.02;
+	public static final int DEFAULT_MAX_BUCKETS = 512;
+
+	private final double gamma;
+	private final double logGamma;
+
+	// The counts in the buckets from lowest to highest, held in a ring of the greatest
+	// number of buckets, which is created when first needed.  Every bucket outside the
+	// range is empty.
+	private final int maxBuckets;
+	private long[] buckets = null;
+	private int lowest;
+	private int highest;
+	private boolean hasBuckets = false;
+
+	private long zeroCount = 0;
+	private long count = 0;
+
+
+	public QuantileSketch() {
+		this(DEFAULT_ACCURACY, DEFAULT_MAX_BUCKETS);
+	}
+
+	/**
+	 * @param relativeAccuracy  The greatest error in a value reported, relative to the
+	 *                              value, between 0 and 1.
+	 * @param maxBuckets        The greatest number of buckets kept.
+	 */
+	public QuantileSketch(double relativeAccuracy, int maxBuckets) {
+		if ((0 >= relativeAccuracy) || (1 <= relativeAccuracy)) {
+			throw new IllegalArgumentException("Relative accuracy must be between 0 and 1: " + relativeAccuracy);
+		}
+		if (0 >= maxBuckets) {
+			throw new IllegalArgumentException("Number of buckets must be positive: " + maxBuckets);
+		}
+		this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+		this.logGamma = Math.log(gamma);
+		this.maxBuckets = maxBuckets;
+	}
+
+	/**
+	 * Create a copy of an existing sketch, which is unaffected by any later changes to
+	 * the original.
+	 *
+	 * @param original  The sketch to be copied.
+	 */
+	public QuantileSketch(QuantileSketch original) {
+		this.gamma = original.gamma;
+		this.logGamma = original.logGamma;
+		this.maxBuckets = original.maxBuckets;
+		this.buckets = (null == original.buckets) ? null : original.buckets.clone();
+		this.lowest = original.lowest;
+		this.highest = original.highest;
+		this.hasBuckets = original.hasBuckets;
+		this.zeroCount = original.zeroCount;
+		this.count = original.count;
+	}
+
+
+	/**
+	 * @return The number of values counted.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Add a number of occurrences of a value.
+	 *
+	 * @param value        The value.
+	 * @param occurrences  The number of occurrences.
+	 */
+	public void add(double value, long occurrences) {
+		count += occurrences;
+
+		if (!(0 < value)) {
+			zeroCount += occurrences;
+			return;
+		}
+
+		int index = (int) Math.ceil(Math.log(value) / logGamma);
+		if (!hasBuckets) {
+			if (null == buckets) {
+				buckets = new long[maxBuckets];
+			}
+			lowest = index;
+			highest = index;
+			hasBuckets = true;
+		}
+		else if (index > highest) {
+			// Merge the lowest buckets where the values now span too many.
+			int newLowest = index - maxBuckets + 1;
+			if (newLowest > lowest) {
+				long merged = 0;
+				for (int i = lowest; (i < newLowest) && (i <= highest); i++) {
+					merged += buckets[slot(i)];
+					buckets[slot(i)] = 0;
+				}
+				buckets[slot(newLowest)] += merged;
+				lowest = newLowest;
+			}
+			highest = index;
+		}
+		else if (index < lowest) {
+			index = Math.max(index, highest - maxBuckets + 1);
+			lowest = Math.min(lowest, index);
+		}
+		buckets[slot(index)] += occurrences;
+	}
+
+	/**
+	 * Returns the approximate value at a given quantile of the values counted.
+	 *
+	 * @param quantile  The quantile, between 0 and 1.
+	 * @return The value, or NaN if no values have been counted.
+	 */
+	public double getQuantile(double quantile) {
+		if ((0 > quantile) || (1 < quantile)) {
+			throw new IllegalArgumentException("Quantile must be between 0 and 1: " + quantile);
+		}
+		if (0 == count) {
+			return Double.NaN;
+		}
+
+		long rank = (long) (quantile * (count - 1));
+		if (rank < zeroCount) {
+			return 0;
+		}
+
+		long seen = zeroCount;
+		for (int i = lowest; i < highest; i++) {
+			seen += buckets[slot(i)];
+			if (rank < seen) {
+				return bucketValue(i);
+			}
+		}
+		return bucketValue(highest);
+	}
+
+	/**
+	 * Remove every value counted.
+	 */
+	public void clear() {
+		if (hasBuckets) {
+			for (int i = lowest; i <= highest; i++) {
+				buckets[slot(i)] = 0;
+			}
+		}
+		hasBuckets = false;
+		zeroCount = 0;
+		count = 0;
+	}
+
+	/**
+	 * Apply an adjustment to every value counted, moving each bucket to that holding
+	 * its adjusted value.  Each move may add the relative accuracy to the error, and a
+	 * subtraction increases the error relative to the smaller values left.
+	 *
+	 * @param operation  The operation applied.
+	 * @param value      The value for the operation.
+	 */
+	public void adjust(adjustmentOperation operation, int value) {
+		QuantileSketch original = new QuantileSketch(this);
+		clear();
+
+		if (0 < original.zeroCount) {
+			add(adjustValue(0, operation, value), original.zeroCount);
+		}
+		if (original.hasBuckets) {
+			for (int i = original.lowest; i <= original.highest; i++) {
+				long occurrences = original.buckets[original.slot(i)];
+				if (0 < occurrences) {
+					add(adjustValue(original.bucketValue(i), operation, value), occurrences);
+				}
+			}
+		}
+	}
+
+
+	/*
+	 * Returns the result of applying an adjustment to a single value.
+	 */
+	private static double adjustValue(double original, adjustmentOperation operation, int value) {
+		if (adjustmentOperation.ADD == operation) {
+			return original + value;
+		}
+		else if (adjustmentOperation.SUBTRACT == operation) {
+			return original - value;
+		}
+		return original * value;
+	}
+
+	/*
+	 * Returns the position in the ring of a bucket.
+	 */
+	private int slot(int index) {
+		return Math.floorMod(index, maxBuckets);
+	}
+
+	/*
+	 * Returns the value reported for a bucket, which is within the relative accuracy of
+	 * every value in it.
+	 */
+	private double bucketValue(int index) {
+		return 2 * Math.pow(gamma, index) / (gamma + 1);
+	}
+
+}
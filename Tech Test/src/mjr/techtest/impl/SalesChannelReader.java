@@ -0,0 +1,235 @@
+/**
+ * Reads sale and adjustment messages, in the format described by SalesMessageCodec,
+ * from any number of channels without blocking, and passes them to a sales service.
+ *
+ * Channels that can be selected, such as sockets and pipes, are registered with the
+ * reader and read whenever data arrives on them, each through a buffer and decoder
+ * of its own.  Messages split across reads are held until the rest arrives.  Other
+ * channels, such as files, may be read to their end in one call.
+ *
+ * Messages rejected by the service, for instance because it has paused, are counted
+ * and reading continues.  A channel that reaches its end is closed, as is one that
+ * sends data not in the expected format or ends part way through a message, and the
+ * error is thrown.
+ */
+package mjr.techtest.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+
+import mjr.techtest.SalesException;
+import mjr.techtest.SalesService;
+
+/**
+ * @author mrowe
+ *
+ */
+public class SalesChannelReader implements Closeable {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/*
+	 * The buffer and decoder for one channel.
+	 */
+	private static class ChannelState {
+		final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		final SalesMessageDecoder decoder;
+
+		ChannelState(SalesService service) {
+			this.decoder = new SalesMessageDecoder(service);
+		}
+	}
+
+	private final SalesService service;
+	private final Selector selector;
+
+	private long messageCount = 0;
+	private long rejectedCount = 0;
+
+
+	/**
+	 * @param service  The service to which messages are passed.
+	 * @throws IOException if no selector can be opened.
+	 */
+	public SalesChannelReader(SalesService service) throws IOException {
+		this.service = service;
+		this.selector = Selector.open();
+	}
+
+
+	/**
+	 * Register a channel from which messages are to be read.  The channel is placed in
+	 * non-blocking mode, and is closed when it reaches its end or when the reader is
+	 * closed.
+	 *
+	 * @param channel  The channel, which must be readable.
+	 * @throws IOException
+	 */
+	public void register(SelectableChannel channel) throws IOException {
+		if (!(channel instanceof ReadableByteChannel)) {
+			throw new IllegalArgumentException("Channel is not readable: " + channel);
+		}
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ, new ChannelState(service));
+	}
+
+
+	/**
+	 * Wait for data to arrive on any of the registered channels, and read all that has
+	 * arrived.
+	 *
+	 * @param timeout  The longest time to wait, in milliseconds, or 0 not to wait.
+	 * @return The number of messages read.
+	 * @throws IOException if a channel could not be read, or sent data that is not in the
+	 *             expected format.  The channel is closed.
+	 */
+	public int poll(long timeout) throws IOException {
+		if (0 < timeout) {
+			selector.select(timeout);
+		}
+		else {
+			selector.selectNow();
+		}
+
+		int numMessages = 0;
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+
+			ReadableByteChannel channel = (ReadableByteChannel) key.channel();
+			try {
+				numMessages += readAvailable(channel, (ChannelState) key.attachment());
+			}
+			catch (IOException e) {
+				key.cancel();
+				channel.close();
+				throw e;
+			}
+		}
+		return numMessages;
+	}
+
+
+	/*
+	 * Read whatever the channel has available and decode the complete messages, closing
+	 * the channel if it has reached its end.  Returns the number of messages read.  As
+	 * with readFully, a message left incomplete at the end is an error.
+	 */
+	private int readAvailable(ReadableByteChannel channel, ChannelState state) throws IOException {
+		long start = messageCount;
+		int read;
+
+		do {
+			read = channel.read(state.buffer);
+			state.buffer.flip();
+			decode(state);
+			state.buffer.compact();
+		}
+		while (0 < read);
+
+		if (0 > read) {
+			if (0 < state.buffer.position()) {
+				throw new IOException("Incomplete sales message at the end of the channel");
+			}
+			channel.close();
+		}
+		return (int) (messageCount - start);
+	}
+
+
+	/*
+	 * Decode the complete messages held in the buffer, counting any that are rejected.
+	 */
+	private void decode(ChannelState state) throws IOException {
+		long start = state.decoder.getMessageCount();
+		boolean decoded = false;
+
+		try {
+			while (!decoded) {
+				try {
+					state.decoder.decode(state.buffer);
+					decoded = true;
+				}
+				catch (SalesException e) {
+					rejectedCount++;
+				}
+			}
+		}
+		finally {
+			messageCount += state.decoder.getMessageCount() - start;
+		}
+	}
+
+
+	/**
+	 * Read a channel, such as a file, to its end.  The channel is not closed.
+	 *
+	 * @param channel  The channel.
+	 * @return The number of messages read.
+	 * @throws IOException if the channel could not be read, or held data that is not in the
+	 *             expected format.
+	 */
+	public int readFully(ReadableByteChannel channel) throws IOException {
+		ChannelState state = new ChannelState(service);
+		long start = messageCount;
+
+		while (0 <= channel.read(state.buffer)) {
+			state.buffer.flip();
+			decode(state);
+			state.buffer.compact();
+		}
+		if (0 < state.buffer.position()) {
+			throw new IOException("Incomplete sales message at the end of the channel");
+		}
+		return (int) (messageCount - start);
+	}
+
+
+	/**
+	 * @return The number of messages read since the reader was created, including those
+	 *             rejected by the service.
+	 */
+	public long getMessageCount() {
+		return messageCount;
+	}
+
+	/**
+	 * @return The number of messages rejected by the service.
+	 */
+	public long getRejectedCount() {
+		return rejectedCount;
+	}
+
+	/**
+	 * @return The number of registered channels that are still open.
+	 */
+	public int getOpenChannels() {
+		int open = 0;
+		for (SelectionKey key : selector.keys()) {
+			if (key.isValid()) {
+				open++;
+			}
+		}
+		return open;
+	}
+
+
+	/**
+	 * Close all of the registered channels, and stop reading.
+	 */
+	@Override
+	public void close() throws IOException {
+		for (SelectionKey key : selector.keys()) {
+			key.channel().close();
+		}
+		selector.close();
+	}
+
+}
@@ -0,0 +1,98 @@
+/**
+ * Keeps track of which of the sales claimed in a shared sequence have been stored, so
+ * that a report made at a logging point may wait for every sale before that point,
+ * while sales away from the logging points are stored without waiting for each other.
+ *
+ * The sequence is divided into segments of the logging interval, and the number of
+ * sales stored in each is counted as they are stored, in any order.  The counts are
+ * held in a ring, in which each count carries on from that of the segment that last
+ * used its place, so that no count is ever reset.  A segment is complete once its
+ * count reaches the end of the segment.  Sales are only counted in a place of the ring
+ * once the segment before them in that place is complete, so that the sales of one
+ * segment may wait for those a full ring of segments before them, but no others.
+ */
+package mjr.techtest.impl;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * @author mrowe
+ *
+ */
+class SalesClaimTracker {
+
+	// The number of places in the ring, and so of segments that may be stored at once.
+	private static final int NUM_SLOTS = 256;
+
+	private final int interval;
+
+	// The sales stored in each place of the ring, including those of every segment that
+	// has used the place before.
+	private final AtomicIntegerArray storedCounts = new AtomicIntegerArray(NUM_SLOTS);
+
+
+	/**
+	 * @param interval  The number of sales between each logging point.
+	 */
+	SalesClaimTracker(int interval) {
+		if (0 >= interval) {
+			throw new IllegalArgumentException("Interval must be positive: " + interval);
+		}
+		this.interval = interval;
+	}
+
+
+	/**
+	 * Count a range of claimed sales as stored.
+	 *
+	 * @param fromIndex  The position of the first sale in the range.
+	 * @param toIndex    The position following the last.
+	 */
+	void stored(int fromIndex, int toIndex) {
+		int position = fromIndex;
+
+		while (position < toIndex) {
+			int segment = position / interval;
+			int count = (int) Math.min(toIndex - position, (long) (segment + 1) * interval - position);
+			int slot = segment % NUM_SLOTS;
+
+			long previousEnd = (long) (segment / NUM_SLOTS) * interval;
+			while (storedCounts.get(slot) < previousEnd) {
+				Thread.yield();
+			}
+			storedCounts.addAndGet(slot, count);
+			position += count;
+		}
+	}
+
+	/**
+	 * Wait until every sale before a point has been stored.  The point is either a
+	 * logging point, or the last point at which sales are claimed.
+	 *
+	 * @param point  The position of the point.
+	 */
+	void awaitStored(int point) {
+		int lastSegment = point / interval;
+
+		// Each complete segment implies that the one a ring before it was complete, so
+		// only the last ring of segments need be checked.
+		for (int segment = Math.max(0, lastSegment - NUM_SLOTS); segment < lastSegment; segment++) {
+			awaitCount(segment, interval);
+		}
+		if (0 != point % interval) {
+			awaitCount(lastSegment, point % interval);
+		}
+	}
+
+
+	/*
+	 * Wait until the given number of sales of a segment have been stored.
+	 */
+	private void awaitCount(int segment, int count) {
+		long end = (long) (segment / NUM_SLOTS) * interval + count;
+		while (storedCounts.get(segment % NUM_SLOTS) < end) {
+			Thread.yield();
+		}
+	}
+
+}
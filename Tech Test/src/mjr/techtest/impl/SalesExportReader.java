@@ -0,0 +1,330 @@
+/**
+ * Reads the history of sales written by a {@link SalesExportWriter}.
+ *
+ * The entries are read one at a time through the reader itself, which holds only the
+ * columns of the current block, so that an export of any size may be read in constant
+ * memory and without creating an object for each entry.  If the reader is limited to
+ * certain product types, or a range of recorded values, blocks whose statistics show
+ * they hold no such entries are skipped without being decompressed.
+ */
+package mjr.techtest.impl;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import mjr.techtest.SalesService.adjustmentOperation;
+
+/**
+ * A typical use is:
+ * <pre>
+ * try (SalesExportReader reader = new SalesExportReader(Files.newInputStream(file))) {
+ *     reader.setTypeFilter("apple");
+ *     while (reader.next()) {
+ *         ... reader.getValue() ...
+ *     }
+ * }
+ * </pre>
+ *
+ * @author mrowe
+ *
+ */
+public class SalesExportReader implements Closeable {
+
+	private static final adjustmentOperation[] OPERATIONS = adjustmentOperation.values();
+
+	private final DataInputStream input;
+	private final Inflater inflater = new Inflater();
+
+	private final String[] productTypes;
+	private final ModificationRecord modifications = new ModificationRecord();
+
+	// The types read, if limited, by id and as a mask of (id % 64), and the range of
+	// recorded values read.
+	private boolean[] typeFilter = null;
+	private long typeFilterMask = -1L;
+	private int minValue = Integer.MIN_VALUE;
+	private int maxValue = Integer.MAX_VALUE;
+
+	// The columns of the current block, and the current entry.
+	private final int[][] columns = new int[SalesExportWriter.NUM_COLUMNS][SalesExportWriter.BLOCK_SIZE];
+	private int numEntries = 0;
+	private int entry = -1;
+	private int firstIndex;
+	private boolean finished = false;
+
+	private byte[] packed = new byte[0];
+	private byte[] compressed = new byte[0];
+
+	private long blocksRead = 0;
+	private long blocksSkipped = 0;
+
+
+	/**
+	 * Start reading an export, reading the product types and the modifications made
+	 * to them.
+	 *
+	 * @param input  The source, which is closed along with the reader.
+	 * @throws IOException if the source is not an export, or cannot be read.
+	 */
+	public SalesExportReader(InputStream input) throws IOException {
+		this.input = new DataInputStream(new BufferedInputStream(input, 1 << 16));
+
+		if (SalesExportWriter.MAGIC != this.input.readInt()) {
+			throw new IOException("Not a sales export");
+		}
+		int version = this.input.readInt();
+		if (SalesExportWriter.VERSION != version) {
+			throw new IOException("Unsupported sales export version: " + version);
+		}
+		productTypes = new String[this.input.readInt()];
+		for (int typeId = 0; typeId < productTypes.length; typeId++) {
+			productTypes[typeId] = this.input.readUTF();
+		}
+		for (String productType : productTypes) {
+			int numModifications = this.input.readInt();
+			for (int i = 0; i < numModifications; i++) {
+				modifications.recordModification(productType, OPERATIONS[this.input.readByte()], this.input.readInt());
+			}
+		}
+	}
+
+
+	/**
+	 * @return The product types, in the order of their ids.
+	 */
+	public String[] getProductTypes() {
+		return productTypes.clone();
+	}
+
+	/**
+	 * @return The modifications made to the product types.
+	 */
+	public ModificationRecord getModifications() {
+		return modifications;
+	}
+
+	/**
+	 * Limit the entries read to those of the given product types.  This applies from
+	 * the next block read.
+	 *
+	 * @param types  The product types read.
+	 */
+	public void setTypeFilter(String... types) {
+		typeFilter = new boolean[productTypes.length];
+		typeFilterMask = 0;
+		for (String type : types) {
+			int typeId = Arrays.asList(productTypes).indexOf(type);
+			if (0 <= typeId) {
+				typeFilter[typeId] = true;
+				typeFilterMask |= 1L << (typeId & 63);
+			}
+		}
+	}
+
+	/**
+	 * Limit the entries read to those whose value when sold falls within a range.  This
+	 * applies from the next block read.
+	 *
+	 * @param minValue  The least value read, in pence.
+	 * @param maxValue  The greatest value read, in pence.
+	 */
+	public void setValueFilter(int minValue, int maxValue) {
+		this.minValue = minValue;
+		this.maxValue = maxValue;
+	}
+
+
+	/**
+	 * Move to the next entry, reading further blocks as needed.
+	 *
+	 * @return true if there is a further entry, false if the end has been reached.
+	 * @throws IOException if the export cannot be read.
+	 */
+	public boolean next() throws IOException {
+		while (true) {
+			while (++entry < numEntries) {
+				firstIndex += (0 == entry) ? 0 : columns[2][entry - 1];
+				if (accept(columns[0][entry], columns[1][entry])) {
+					return true;
+				}
+			}
+			if (finished || !readBlock()) {
+				finished = true;
+				return false;
+			}
+		}
+	}
+
+	public String getProductType() {
+		return productTypes[columns[0][entry]];
+	}
+
+	public int getTypeId() {
+		return columns[0][entry];
+	}
+
+	public int getValue() {
+		return columns[1][entry];
+	}
+
+	public int getVolume() {
+		return columns[2][entry];
+	}
+
+	public int getFirstIndex() {
+		return firstIndex;
+	}
+
+	public int getAdjustmentIndex() {
+		return columns[3][entry];
+	}
+
+	/**
+	 * @return The number of blocks decompressed so far.
+	 */
+	public long getBlocksRead() {
+		return blocksRead;
+	}
+
+	/**
+	 * @return The number of blocks skipped so far, as they held no entries of interest.
+	 */
+	public long getBlocksSkipped() {
+		return blocksSkipped;
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		inflater.end();
+		input.close();
+	}
+
+
+	/*
+	 * Returns true if an entry passes the filters.
+	 */
+	private boolean accept(int typeId, int value) {
+		return ((null == typeFilter) || typeFilter[typeId]) && (minValue <= value) && (value <= maxValue);
+	}
+
+	/*
+	 * Read the next block that may hold entries of interest, skipping any others,
+	 * returning false if there are none.
+	 */
+	private boolean readBlock() throws IOException {
+		int[] mins = new int[SalesExportWriter.NUM_COLUMNS];
+		int[] maxes = new int[SalesExportWriter.NUM_COLUMNS];
+
+		while (true) {
+			int blockEntries = input.readInt();
+			if (0 == blockEntries) {
+				return false;
+			}
+			int blockFirstIndex = input.readInt();
+			long typeMask = input.readLong();
+			for (int column = 0; column < SalesExportWriter.NUM_COLUMNS; column++) {
+				mins[column] = input.readInt();
+				maxes[column] = input.readInt();
+			}
+			int packedLength = input.readInt();
+			int compressedLength = input.readInt();
+
+			if ((0 == (typeMask & typeFilterMask)) || (maxValue < mins[1]) || (maxes[1] < minValue)) {
+				skipFully(compressedLength);
+				blocksSkipped++;
+				continue;
+			}
+
+			if (compressed.length < compressedLength) {
+				compressed = new byte[compressedLength];
+			}
+			if (packed.length < packedLength) {
+				packed = new byte[packedLength];
+			}
+			input.readFully(compressed, 0, compressedLength);
+			decompress(compressedLength, packedLength);
+
+			int offset = 0;
+			for (int column = 0; column < SalesExportWriter.NUM_COLUMNS; column++) {
+				offset = unpack(packed, offset, blockEntries, mins[column],
+						SalesExportWriter.width(mins[column], maxes[column]), columns[column]);
+			}
+			numEntries = blockEntries;
+			entry = -1;
+			firstIndex = blockFirstIndex;
+			blocksRead++;
+			return true;
+		}
+	}
+
+	/*
+	 * Skip the given number of bytes of the source.
+	 */
+	private void skipFully(int length) throws IOException {
+		int remaining = length;
+		while (0 < remaining) {
+			int skipped = input.skipBytes(remaining);
+			if (0 == skipped) {
+				input.readByte();
+				skipped = 1;
+			}
+			remaining -= skipped;
+		}
+	}
+
+	/*
+	 * Decompress a block into the packed columns.
+	 */
+	private void decompress(int compressedLength, int packedLength) throws IOException {
+		inflater.reset();
+		inflater.setInput(compressed, 0, compressedLength);
+		try {
+			int length = 0;
+			while (length < packedLength) {
+				int inflated = inflater.inflate(packed, length, packedLength - length);
+				if ((0 == inflated) && (inflater.finished() || inflater.needsInput())) {
+					throw new IOException("Sales export block is truncated");
+				}
+				length += inflated;
+			}
+		}
+		catch (DataFormatException e) {
+			throw new IOException("Sales export block is corrupt", e);
+		}
+	}
+
+	/*
+	 * Unpack a number of values, each held as its difference from the least in the given
+	 * number of bits, returning the position following them.
+	 */
+	private static int unpack(byte[] bytes, int offset, int count, int min, int width, int[] values) {
+		if (0 == width) {
+			Arrays.fill(values, 0, count, min);
+			return offset;
+		}
+		long mask = (1L << width) - 1;
+		long buffer = 0;
+		int bufferBits = 0;
+		for (int i = 0; i < count; i++) {
+			while (bufferBits < width) {
+				buffer |= (bytes[offset++] & 0xFFL) << bufferBits;
+				bufferBits += 8;
+			}
+			values[i] = (int) ((buffer & mask) + min);
+			buffer >>>= width;
+			bufferBits -= width;
+		}
+		return offset;
+	}
+
+}
@@ -0,0 +1,269 @@
+/**
+ * Writes the history of stored sales, and the modifications made to each product type,
+ * to a compact columnar file for offline analysis, see {@link SalesExportReader}.
+ *
+ * The product types are written once, as a dictionary, followed by the modifications.
+ * The sales follow in blocks of up to {@link #BLOCK_SIZE} entries, held as columns
+ * of type ids, values, volumes and adjustment indexes.  Each block starts with 
+ * statistics from which a reader may decide whether it needs the block at all: the
+ * least and greatest in each column, and a mask with bit (id % 64) set for each type
+ * id in the block.  Each column is then stored as the differences from its least, 
+ * packed into as few bits as the greatest difference needs, and the columns are 
+ * compressed together.  The position of each entry in the sequence of sales is not
+ * stored, as it follows from the position of the first and the volumes.
+ *
+ * Entries are added one at a time and written a block at a time, so that any number
+ * may be exported in constant memory.
+ */
+package mjr.techtest.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * @author mrowe
+ *
+ */
+public class SalesExportWriter implements Closeable {
+
+	static final int MAGIC = 0x53414c58;
+	static final int VERSION = 1;
+
+	/**
+	 * The greatest number of entries in a block.
+	 */
+	public static final int BLOCK_SIZE = 1 << 16;
+
+	// The number of columns in each block.
+	static final int NUM_COLUMNS = 4;
+
+	private final DataOutputStream output;
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+	// The columns of the block being gathered.
+	private final int[][] columns = new int[NUM_COLUMNS][BLOCK_SIZE];
+	private int numEntries = 0;
+	private int blockFirstIndex;
+	private int nextIndex = -1;
+
+	private byte[] packed = new byte[0];
+	private byte[] compressed = new byte[0];
+
+
+	/**
+	 * Start an export, writing the product types and the modifications made to them.
+	 *
+	 * @param output         The destination, which is closed along with the writer.
+	 * @param productTypes   The product types, in the order of their ids.
+	 * @param modifications  The modifications made to the product types.
+	 * @throws IOException
+	 */
+	public SalesExportWriter(OutputStream output, String[] productTypes, ModificationRecord modifications)
+			throws IOException {
+		this.output = new DataOutputStream(new BufferedOutputStream(output, 1 << 16));
+
+		this.output.writeInt(MAGIC);
+		this.output.writeInt(VERSION);
+		this.output.writeInt(productTypes.length);
+		for (String productType : productTypes) {
+			this.output.writeUTF(productType);
+		}
+		for (String productType : productTypes) {
+			int numModifications = modifications.getModificationCount(productType);
+			this.output.writeInt(numModifications);
+			for (int i = 0; i < numModifications; i++) {
+				this.output.writeByte(modifications.getOperation(productType, i).ordinal());
+				this.output.writeInt(modifications.getValue(productType, i));
+			}
+		}
+	}
+
+
+	/**
+	 * Add an entry to the export.  Entries must follow one another in the sequence of
+	 * sales, each starting where the one before it ended.
+	 *
+	 * @param typeId           The id of the product type sold.
+	 * @param value            The value of each item when sold, in pence.
+	 * @param volume           The number of items sold.
+	 * @param firstIndex       The number of items sold before this entry.
+	 * @param adjustmentIndex  The number of modifications made to the product type
+	 *                             before this entry.
+	 * @throws IOException
+	 */
+	public void add(int typeId, int value, int volume, int firstIndex, int adjustmentIndex) throws IOException {
+		if ((0 < numEntries) && (firstIndex != nextIndex)) {
+			throw new IllegalArgumentException("Entry starts at " + firstIndex + " rather than " + nextIndex);
+		}
+		if (0 == numEntries) {
+			blockFirstIndex = firstIndex;
+		}
+		columns[0][numEntries] = typeId;
+		columns[1][numEntries] = value;
+		columns[2][numEntries] = volume;
+		columns[3][numEntries] = adjustmentIndex;
+		numEntries++;
+		nextIndex = firstIndex + volume;
+
+		if (BLOCK_SIZE == numEntries) {
+			writeBlock();
+		}
+	}
+
+	/**
+	 * Add every entry of a store to the export.
+	 *
+	 * @param store  The store.
+	 * @throws IOException
+	 */
+	public void addAll(SalesStore store) throws IOException {
+		for (int entry = 0; entry < store.size(); entry++) {
+			add(store.getTypeId(entry), store.getValue(entry), store.getVolume(entry),
+					store.getFirstIndex(entry), store.getAdjustmentIndex(entry));
+		}
+	}
+
+
+	/**
+	 * Write any entries still gathered, and the end of the export, and close the
+	 * destination.
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			if (0 < numEntries) {
+				writeBlock();
+			}
+			output.writeInt(0);
+			output.flush();
+		}
+		finally {
+			deflater.end();
+			output.close();
+		}
+	}
+
+
+	/*
+	 * Write the statistics and the compressed columns of the gathered entries.
+	 */
+	private void writeBlock() throws IOException {
+		int[] mins = new int[NUM_COLUMNS];
+		int[] maxes = new int[NUM_COLUMNS];
+		int[] widths = new int[NUM_COLUMNS];
+
+		int packedLength = 0;
+		for (int column = 0; column < NUM_COLUMNS; column++) {
+			int min = Integer.MAX_VALUE;
+			int max = Integer.MIN_VALUE;
+			for (int i = 0; i < numEntries; i++) {
+				min = Math.min(min, columns[column][i]);
+				max = Math.max(max, columns[column][i]);
+			}
+			mins[column] = min;
+			maxes[column] = max;
+			widths[column] = width(min, max);
+			packedLength += packedLength(numEntries, widths[column]);
+		}
+		long typeMask = 0;
+		for (int i = 0; i < numEntries; i++) {
+			typeMask |= 1L << (columns[0][i] & 63);
+		}
+
+		if (packed.length < packedLength) {
+			packed = new byte[packedLength];
+		}
+		int offset = 0;
+		for (int column = 0; column < NUM_COLUMNS; column++) {
+			offset = pack(columns[column], numEntries, mins[column], widths[column], packed, offset);
+		}
+		int compressedLength = compress(packedLength);
+
+		output.writeInt(numEntries);
+		output.writeInt(blockFirstIndex);
+		output.writeLong(typeMask);
+		for (int column = 0; column < NUM_COLUMNS; column++) {
+			output.writeInt(mins[column]);
+			output.writeInt(maxes[column]);
+		}
+		output.writeInt(packedLength);
+		output.writeInt(compressedLength);
+		output.write(compressed, 0, compressedLength);
+
+		numEntries = 0;
+	}
+
+	/*
+	 * Compress the packed columns, returning the length of the result.
+	 */
+	private int compress(int packedLength) {
+		deflater.reset();
+		deflater.setInput(packed, 0, packedLength);
+		deflater.finish();
+
+		if (compressed.length < packedLength + 64) {
+			compressed = new byte[packedLength + 64];
+		}
+		int length = 0;
+		while (!deflater.finished()) {
+			if (length == compressed.length) {
+				compressed = Arrays.copyOf(compressed, compressed.length * 2);
+			}
+			length += deflater.deflate(compressed, length, compressed.length - length);
+		}
+		return length;
+	}
+
+
+	/**
+	 * @param min  The least of a number of values.
+	 * @param max  The greatest of them.
+	 * @return The number of bits needed for the difference of each from the least.
+	 */
+	static int width(int min, int max) {
+		return 64 - Long.numberOfLeadingZeros((long) max - min);
+	}
+
+	/**
+	 * @param count  The number of values packed.
+	 * @param width  The number of bits for each.
+	 * @return The number of bytes taken by the packed values.
+	 */
+	static int packedLength(int count, int width) {
+		return (int) (((long) count * width + 7) >>> 3);
+	}
+
+	/*
+	 * Pack the differences between a number of values and the least of them into the
+	 * given bytes, with the given number of bits for each, returning the position
+	 * following them.
+	 */
+	private static int pack(int[] values, int count, int min, int width, byte[] bytes, int offset) {
+		if (0 == width) {
+			return offset;
+		}
+		long buffer = 0;
+		int bufferBits = 0;
+		for (int i = 0; i < count; i++) {
+			buffer |= ((long) values[i] - min) << bufferBits;
+			bufferBits += width;
+			while (8 <= bufferBits) {
+				bytes[offset++] = (byte) buffer;
+				buffer >>>= 8;
+				bufferBits -= 8;
+			}
+		}
+		if (0 < bufferBits) {
+			bytes[offset++] = (byte) buffer;
+		}
+		return offset;
+	}
+
+}
@@ -0,0 +1,312 @@
+/**
+ * An index of the stored sales by product type and value, so that the sales of a type
+ * whose current value falls in a given range may be found without visiting every
+ * stored sale.
+ *
+ * The sales of each type are divided by the number of modifications made to the type
+ * before they were recorded.  All of the sales in one such group have since had the
+ * same modifications applied, and as each modification maps a value v to (v * m) + c
+ * the order of their current values is that of their recorded values, reversed if m
+ * is negative.  The recorded values of each group are therefore kept in order, and a
+ * range of current values is found by binary search once the modifications that apply
+ * to the group have been combined.  The index need not be changed when a type is
+ * adjusted.
+ *
+ * The values of each group are kept in a number of sorted runs, with a count of the
+ * items and their total recorded value before each position in a run, so that the
+ * items in any range of a run are summed in constant time.  As for the totals of each
+ * type, these sums move to exact arithmetic should they go beyond the range of a long,
+ * as do the comparisons of current values with the range.  Newly recorded sales are
+ * gathered until the next query, sorted, and added as a new run, and runs of similar
+ * size are merged, so that there are never more than a logarithmic number of them.
+ */
+package mjr.techtest.impl;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author mrowe
+ *
+ */
+class SalesIndex {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private ValueGroup[][] groups = new ValueGroup[INITIAL_CAPACITY][];
+	private int[] numGroups = new int[INITIAL_CAPACITY];
+
+
+	/**
+	 * Add a stored sale to the index.  The sales of each type must be added in the
+	 * order in which they were recorded.
+	 *
+	 * @param typeId           The id of the product type sold.
+	 * @param value            The value of each item when sold, in pence.
+	 * @param volume           The number of items sold.
+	 * @param adjustmentIndex  The number of modifications made to the product type
+	 *                             before the sale.
+	 */
+	void add(int typeId, int value, int volume, int adjustmentIndex) {
+		if (0 >= volume) {
+			return;
+		}
+		ensureCapacity(typeId);
+
+		ValueGroup[] typeGroups = groups[typeId];
+		int count = numGroups[typeId];
+		if ((0 == count) || (typeGroups[count - 1].adjustmentIndex != adjustmentIndex)) {
+			if ((null == typeGroups) || (count == typeGroups.length)) {
+				typeGroups = Arrays.copyOf((null == typeGroups) ? new ValueGroup[0] : typeGroups, Math.max(4, count * 2));
+				groups[typeId] = typeGroups;
+			}
+			typeGroups[count] = new ValueGroup(adjustmentIndex);
+			numGroups[typeId] = ++count;
+		}
+		typeGroups[count - 1].add(value, volume);
+	}
+
+	/**
+	 * Find the items of a type whose current value falls within a range.
+	 *
+	 * @param typeId       The id of the product type.
+	 * @param productType  The product type.
+	 * @param transforms   The combined effect of the modifications made to the type from
+	 *                         each starting point, see
+	 *                         {@link ModificationRecord#getTransformsForType(String)}.
+	 * @param minValue     The least current value included, in pence.
+	 * @param maxValue     The greatest current value included, in pence.
+	 * @return The number of items found, and their total current value.
+	 */
+	SalesReportItem summarise(int typeId, String productType, AdjustmentTransform[] transforms,
+			long minValue, long maxValue) {
+		long numItems = 0;
+		BigInteger totalValue = BigInteger.ZERO;
+
+		int count = (typeId < numGroups.length) ? numGroups[typeId] : 0;
+		for (int i = 0; i < count; i++) {
+			ValueGroup group = groups[typeId][i];
+			AdjustmentTransform transform = transforms[group.adjustmentIndex];
+			group.flush();
+
+			for (Run run : group.runs) {
+				int[] range = run.find(transform, minValue, maxValue);
+				long runItems = run.volumeBefore[range[1]] - run.volumeBefore[range[0]];
+
+				numItems += runItems;
+				totalValue = totalValue.add(run.getValueBetween(range[0], range[1]).multiply(transform.getExactMultiplier()))
+						.add(BigInteger.valueOf(runItems).multiply(transform.getExactOffset()));
+			}
+		}
+		// Every item found has been counted by the service, so the count is an int.
+		return new SalesReportItem(productType, Math.toIntExact(numItems), totalValue);
+	}
+
+
+	/*
+	 * Make room for the groups of the given type.
+	 */
+	private void ensureCapacity(int typeId) {
+		if (typeId >= numGroups.length) {
+			int capacity = Math.max(typeId + 1, numGroups.length * 2);
+			groups = Arrays.copyOf(groups, capacity);
+			numGroups = Arrays.copyOf(numGroups, capacity);
+		}
+	}
+
+
+	/*
+	 * The sales of a type recorded after the same number of modifications.
+	 */
+	private static class ValueGroup {
+
+		private static final int INITIAL_PENDING = 16;
+
+		private final int adjustmentIndex;
+
+		// The sorted runs, from the largest, and the sales not yet in any run, each held
+		// as the value in the upper half of a long and the volume in the lower half.
+		private final List<Run> runs = new ArrayList<Run>();
+		private long[] pending = new long[INITIAL_PENDING];
+		private int numPending = 0;
+
+		ValueGroup(int adjustmentIndex) {
+			this.adjustmentIndex = adjustmentIndex;
+		}
+
+		void add(int value, int volume) {
+			if (numPending == pending.length) {
+				pending = Arrays.copyOf(pending, numPending * 2);
+			}
+			pending[numPending++] = ((long) value << 32) | volume;
+		}
+
+		/*
+		 * Add the pending sales as a new run, and merge it with the runs before it
+		 * while they are no larger.
+		 */
+		void flush() {
+			if (0 == numPending) {
+				return;
+			}
+			long[] sales = Arrays.copyOf(pending, numPending);
+			Arrays.sort(sales);
+			numPending = 0;
+			if (INITIAL_PENDING < pending.length) {
+				pending = new long[INITIAL_PENDING];
+			}
+
+			while (!runs.isEmpty() && (runs.get(runs.size() - 1).sales.length <= sales.length)) {
+				sales = merge(runs.remove(runs.size() - 1).sales, sales);
+			}
+			runs.add(new Run(sales));
+		}
+
+		private static long[] merge(long[] first, long[] second) {
+			long[] merged = new long[first.length + second.length];
+			int i = 0;
+			int j = 0;
+			int k = 0;
+			while ((i < first.length) && (j < second.length)) {
+				merged[k++] = (first[i] <= second[j]) ? first[i++] : second[j++];
+			}
+			while (i < first.length) {
+				merged[k++] = first[i++];
+			}
+			while (j < second.length) {
+				merged[k++] = second[j++];
+			}
+			return merged;
+		}
+	}
+
+
+	/*
+	 * Sales in order of their recorded value, with the number of items and their
+	 * total recorded value before each position.
+	 */
+	private static class Run {
+
+		private final long[] sales;
+		private final long[] volumeBefore;
+		private final long[] valueBefore;
+
+		// The exact total values before each position, if the total of the run is beyond
+		// the range of a long, or null.
+		private BigInteger[] exactValueBefore = null;
+
+		Run(long[] sales) {
+			this.sales = sales;
+			this.volumeBefore = new long[sales.length + 1];
+			this.valueBefore = new long[sales.length + 1];
+
+			for (int i = 0; i < sales.length; i++) {
+				// The value and volume are each an int, so their product fits a long.
+				long volume = sales[i] & 0xFFFFFFFFL;
+				long value = (sales[i] >>> 32) * volume;
+				volumeBefore[i + 1] = volumeBefore[i] + volume;
+
+				if (null == exactValueBefore) {
+					try {
+						valueBefore[i + 1] = Math.addExact(valueBefore[i], value);
+						continue;
+					}
+					catch (ArithmeticException e) {
+						escalate(i);
+					}
+				}
+				exactValueBefore[i + 1] = exactValueBefore[i].add(BigInteger.valueOf(value));
+			}
+		}
+
+		/*
+		 * Move the total values to exact arithmetic, from the given position on.
+		 */
+		private void escalate(int position) {
+			exactValueBefore = new BigInteger[sales.length + 1];
+			for (int i = 0; i <= position; i++) {
+				exactValueBefore[i] = BigInteger.valueOf(valueBefore[i]);
+			}
+		}
+
+		/*
+		 * Returns the total recorded value of the items between two positions.
+		 */
+		BigInteger getValueBetween(int start, int end) {
+			if (null == exactValueBefore) {
+				return BigInteger.valueOf(valueBefore[end] - valueBefore[start]);
+			}
+			return exactValueBefore[end].subtract(exactValueBefore[start]);
+		}
+
+		/*
+		 * Returns the start and end of the positions whose current value, once the
+		 * transform is applied, falls within the range.
+		 */
+		int[] find(AdjustmentTransform transform, long minValue, long maxValue) {
+			int sign = transform.getExactMultiplier().signum();
+
+			if (0 == sign) {
+				BigInteger offset = transform.getExactOffset();
+				boolean inRange = (0 <= offset.compareTo(BigInteger.valueOf(minValue)))
+						&& (0 >= offset.compareTo(BigInteger.valueOf(maxValue)));
+				return new int[] { 0, inRange ? sales.length : 0 };
+			}
+			int start;
+			int end;
+			if (0 < sign) {
+				start = firstBeyond(transform, minValue, true, true);
+				end = firstBeyond(transform, maxValue, true, false);
+			}
+			else {
+				start = firstBeyond(transform, maxValue, false, true);
+				end = firstBeyond(transform, minValue, false, false);
+			}
+			return new int[] { start, Math.max(start, end) };
+		}
+
+		/*
+		 * Returns the first position whose current value is above (or below) the bound,
+		 * or equal to it if inclusive.  The current values must be in increasing (or
+		 * decreasing) order.
+		 */
+		private int firstBeyond(AdjustmentTransform transform, long bound, boolean above, boolean inclusive) {
+			int low = 0;
+			int high = sales.length;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				int comparison = compareCurrentValue(transform, (int) (sales[middle] >>> 32), bound);
+
+				boolean beyond = above ? ((0 < comparison) || (inclusive && (0 == comparison)))
+						: ((0 > comparison) || (inclusive && (0 == comparison)));
+				if (beyond) {
+					high = middle;
+				}
+				else {
+					low = middle + 1;
+				}
+			}
+			return low;
+		}
+
+		/*
+		 * Compare the current value of a recorded value, once the transform is applied,
+		 * with a bound, using exact arithmetic only if the current value is beyond the
+		 * range of a long.
+		 */
+		private static int compareCurrentValue(AdjustmentTransform transform, int value, long bound) {
+			if (!transform.isExact()) {
+				try {
+					return Long.compare(transform.apply(value), bound);
+				}
+				catch (ArithmeticException e) {
+					// Fall through to exact arithmetic.
+				}
+			}
+			return transform.applyExact(value).compareTo(BigInteger.valueOf(bound));
+		}
+	}
+
+}
@@ -0,0 +1,325 @@
+/**
+ * A front end to the sales service that accepts sale and adjustment messages from
+ * any number of threads, and applies them to the service on a single thread of its
+ * own, in the order in which they were accepted.
+ *
+ * Messages are held in a ring of slots that are allocated when the pipeline is
+ * created and reused, so that passing on a message allocates nothing.  A producer
+ * claims the next slot by advancing a shared sequence, fills it, and publishes it
+ * by marking the slot with its sequence.  The applying thread takes every slot
+ * published since it last looked as one batch, and applies the batch while holding
+ * the service's lock once.  If the ring is full, producers wait for slots to be
+ * freed.  Closing the pipeline sets a flag held in the same sequence, so that no
+ * slot may be claimed once it is closed, and every slot claimed before is applied.
+ *
+ * As all messages are applied by the one thread, the service reports and pauses
+ * after exactly the same sales as it would if they had been recorded directly.
+ * Sales that reach the service after it has paused are rejected, and counted.
+ */
+package mjr.techtest.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import mjr.techtest.Sale;
+import mjr.techtest.SalesException;
+import mjr.techtest.SalesPausedException;
+import mjr.techtest.SalesService;
+
+/**
+ * @author mrowe
+ *
+ */
+public class SalesIngestionPipeline implements SalesService, Closeable {
+
+	private static final int DEFAULT_CAPACITY = 4096;
+
+	private static final byte SALE = 1;
+	private static final byte ADJUSTMENT = 2;
+
+	// The flag set in the claimed sequence once the pipeline is closed.
+	private static final long CLOSED = Long.MIN_VALUE;
+
+	// The number of times the applying thread checks for messages before it sleeps.
+	private static final int SPINS_BEFORE_SLEEP = 100;
+
+	// Thrown for every sale rejected once paused, without a stack trace so that it
+	// may be shared.
+	private static final SalesPausedException PAUSED_EXCEPTION =
+			new SalesPausedException("Application has paused", null, false, false);
+
+	private final SalesMessagesService service;
+	private final int mask;
+
+	// The slots of the ring, held as columns.
+	private final byte[] kinds;
+	private final String[] productTypes;
+	private final int[] firstValues;
+	private final int[] secondValues;
+	private final adjustmentOperation[] operations;
+
+	// The sequence held by each slot once it is published, or -1.
+	private final AtomicLongArray published;
+
+	// The sequence of the next slot to be claimed, with the closed flag, and of the
+	// next to be applied.
+	private final AtomicLong claimed = new AtomicLong();
+	private final AtomicLong applied = new AtomicLong();
+
+	private final Thread applyingThread;
+
+	private volatile boolean applierSleeping = false;
+	private volatile long rejectedItems = 0;
+	private volatile Exception applyFailure = null;
+
+
+	/**
+	 * @param service  The service to which messages are passed on.
+	 */
+	public SalesIngestionPipeline(SalesMessagesService service) {
+		this(service, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param service   The service to which messages are passed on.
+	 * @param capacity  The number of messages that may be waiting to be applied.  This
+	 *                      must be a power of two.
+	 */
+	public SalesIngestionPipeline(SalesMessagesService service, int capacity) {
+		if ((0 >= capacity) || (0 != (capacity & (capacity - 1)))) {
+			throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+		}
+		this.service = service;
+		this.mask = capacity - 1;
+
+		this.kinds = new byte[capacity];
+		this.productTypes = new String[capacity];
+		this.firstValues = new int[capacity];
+		this.secondValues = new int[capacity];
+		this.operations = new adjustmentOperation[capacity];
+		this.published = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			published.set(i, -1);
+		}
+
+		this.applyingThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				applyMessages();
+			}
+		}, "sales-ingestion");
+		applyingThread.setDaemon(true);
+		applyingThread.start();
+	}
+
+
+	/* (non-Javadoc)
+	 * @see mjr.techtest.SalesService#recordSale(mjr.techtest.Sale)
+	 *
+	 * The sale is rejected at once if the service is already paused.  Otherwise it is
+	 * queued, and may yet be rejected if the service pauses before it is applied.
+	 */
+	@Override
+	public void recordSale(Sale newSale) throws SalesException {
+		recordSale(newSale, 1);
+	}
+
+	/* (non-Javadoc)
+	 * @see mjr.techtest.SalesService#recordSale(mjr.techtest.Sale, int)
+	 */
+	@Override
+	public void recordSale(Sale newSale, int volume) throws SalesException {
+		if (SalesMessagesService.State.PAUSED == service.getCurrState()) {
+			throw PAUSED_EXCEPTION;
+		}
+		if (0 < volume) {
+			validate(newSale);
+			publish(SALE, newSale.getProductType(), newSale.getValue(), volume, null);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see mjr.techtest.SalesService#adjustSale(mjr.techtest.Sale, mjr.techtest.SalesService.adjustmentOperation, int)
+	 */
+	@Override
+	public void adjustSale(Sale existingSale, adjustmentOperation adjustment, int adjustmentValue) {
+		publish(ADJUSTMENT, existingSale.getProductType(), adjustmentValue, 0, adjustment);
+	}
+
+
+	/*
+	 * Check that a sale is still valid, as it may have been changed since it was
+	 * created.
+	 */
+	static void validate(Sale sale) throws SalesException {
+		Sale.validate(sale.getProductType(), sale.getValue());
+	}
+
+
+	/*
+	 * Claim the next slot, waiting for it to be freed if the ring is full, fill it
+	 * and publish it to the applying thread.  Once claimed, a slot is always published,
+	 * even if the pipeline is closed meanwhile, as the applying thread waits for it.
+	 */
+	private void publish(byte kind, String productType, int first, int second, adjustmentOperation operation) {
+		long sequence;
+		do {
+			sequence = claimed.get();
+			if (0 != (sequence & CLOSED)) {
+				throw new IllegalStateException("Ingestion pipeline is closed");
+			}
+		} while (!claimed.compareAndSet(sequence, sequence + 1));
+
+		long wrapPoint = sequence - (mask + 1);
+		while (wrapPoint >= applied.get()) {
+			LockSupport.parkNanos(1);
+		}
+
+		int slot = (int) sequence & mask;
+		kinds[slot] = kind;
+		productTypes[slot] = productType;
+		firstValues[slot] = first;
+		secondValues[slot] = second;
+		operations[slot] = operation;
+		published.set(slot, sequence);
+
+		if (applierSleeping) {
+			LockSupport.unpark(applyingThread);
+		}
+	}
+
+
+	/*
+	 * Apply published messages to the service in batches, until the pipeline is closed
+	 * and every claimed slot has been applied.  Once closed no more slots are claimed,
+	 * so the last is known.
+	 */
+	private void applyMessages() {
+		long next = applied.get();
+		int idleSpins = 0;
+
+		long state;
+		while ((0 == ((state = claimed.get()) & CLOSED)) || (next < (state & ~CLOSED))) {
+			long end = next;
+			while (published.get((int) end & mask) == end) {
+				end++;
+			}
+
+			if (end == next) {
+				if (SPINS_BEFORE_SLEEP > ++idleSpins) {
+					Thread.yield();
+				}
+				else {
+					// Check once more after saying that we are about to sleep, so that a
+					// slot published in the meantime is not missed.
+					applierSleeping = true;
+					if ((published.get((int) next & mask) != next) && (0 == (claimed.get() & CLOSED))) {
+						LockSupport.park(this);
+					}
+					applierSleeping = false;
+					idleSpins = 0;
+				}
+				continue;
+			}
+
+			applyBatch(next, end);
+			applied.set(end);
+			next = end;
+			idleSpins = 0;
+		}
+	}
+
+
+	/*
+	 * Apply the messages in the given range of sequences, holding the service's lock
+	 * throughout.
+	 */
+	private void applyBatch(long start, long end) {
+		long rejected = 0;
+
+		synchronized (service) {
+			for (long sequence = start; sequence < end; sequence++) {
+				int slot = (int) sequence & mask;
+				try {
+					if (SALE == kinds[slot]) {
+						rejected += secondValues[slot] - service.offer(productTypes[slot], firstValues[slot], secondValues[slot]);
+					}
+					else {
+						service.adjustSale(productTypes[slot], operations[slot], firstValues[slot]);
+					}
+				}
+				catch (SalesException | RuntimeException e) {
+					if (null == applyFailure) {
+						applyFailure = e;
+					}
+				}
+				productTypes[slot] = null;
+				operations[slot] = null;
+			}
+		}
+
+		if (0 < rejected) {
+			rejectedItems += rejected;
+		}
+	}
+
+
+	/**
+	 * Wait until every message accepted before this call has been applied to the service.
+	 *
+	 * @throws SalesException if any message could not be applied.
+	 */
+	public void flush() throws SalesException {
+		long target = claimed.get() & ~CLOSED;
+		while (applied.get() < target) {
+			LockSupport.parkNanos(1000);
+		}
+
+		Exception failure = applyFailure;
+		if (failure instanceof SalesException) {
+			throw (SalesException) failure;
+		}
+		else if (null != failure) {
+			throw new SalesException("Unable to apply message", failure);
+		}
+	}
+
+
+	/**
+	 * @return The number of items whose sale reached the service after it had paused,
+	 *             and so were not recorded.
+	 */
+	public long getRejectedCount() {
+		return rejectedItems;
+	}
+
+
+	/**
+	 * Apply any messages still waiting, and stop the applying thread.  No further messages
+	 * are accepted.
+	 *
+	 * @throws IOException if any message could not be applied.
+	 */
+	@Override
+	public void close() throws IOException {
+		long sequence;
+		do {
+			sequence = claimed.get();
+		} while (!claimed.compareAndSet(sequence, sequence | CLOSED));
+		LockSupport.unpark(applyingThread);
+		try {
+			applyingThread.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (null != applyFailure) {
+			throw new IOException("Unable to apply message", applyFailure);
+		}
+	}
+
+}
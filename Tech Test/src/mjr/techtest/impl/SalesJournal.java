@@ -0,0 +1,267 @@
+/**
+ * An append-only log of the sales and adjustments applied by the sales service,
+ * from which the service can be restored after a failure.
+ *
+ * Each event is written as a record holding its length, its contents and a CRC32
+ * checksum of its contents, so that a record left incomplete by a failure part way
+ * through a write can be recognised, and discarded, when the log is read back.
+ *
+ * Records are collected in a buffer, and written and forced to the storage device
+ * together once a given number have been logged (a "group commit"), rather than
+ * one at a time.  Records logged since the last commit may be lost on failure, so
+ * the service also commits when it pauses, and may commit after a time limit, so that
+ * a service that falls idle does not leave records uncommitted indefinitely.
+ */
+package mjr.techtest.impl;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import mjr.techtest.SalesService.adjustmentOperation;
+
+/**
+ * @author mrowe
+ *
+ */
+public class SalesJournal implements Closeable {
+
+	/**
+	 * Receives the events read back from a journal, in the order in which they were logged.
+	 */
+	public interface Listener {
+
+		public void sale(String productType, int value, int volume);
+
+		public void adjustment(String productType, adjustmentOperation operation, int value);
+
+		public void resumed();
+	}
+
+	private static final byte SALE = 1;
+	private static final byte ADJUSTMENT = 2;
+	private static final byte RESUME = 3;
+
+	// The contents of a record, excluding the product type, are a kind and two ints.
+	private static final int FIXED_CONTENT_SIZE = 1 + 2 + 4 + 4;
+	private static final int MAX_RECORD_SIZE = 4 + FIXED_CONTENT_SIZE + 0xFFFF + 8;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final FileChannel channel;
+	private final int commitInterval;
+	private final ByteBuffer buffer = ByteBuffer.allocate(Math.max(BUFFER_SIZE, MAX_RECORD_SIZE));
+	private final CRC32 checksum = new CRC32();
+
+	private int uncommittedRecords = 0;
+	private long recordCount = 0;
+
+
+	/**
+	 * Open a journal for the addition of further records.  Any incomplete record at the end
+	 * of an existing journal is discarded.
+	 *
+	 * @param file            The journal file, which is created if it does not exist.
+	 * @param commitInterval  The number of records logged between each commit.
+	 * @throws IOException
+	 */
+	public SalesJournal(Path file, int commitInterval) throws IOException {
+		long validLength = Files.exists(file) ? replay(file, null) : 0;
+
+		this.commitInterval = Math.max(1, commitInterval);
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		channel.truncate(validLength);
+		channel.position(validLength);
+	}
+
+
+	/**
+	 * Log the sale of a number of items.
+	 *
+	 * @param productType  The type of item sold.
+	 * @param value        The value of each item.
+	 * @param volume       The number of items sold.
+	 * @throws IOException
+	 */
+	public void logSale(String productType, int value, int volume) throws IOException {
+		append(SALE, productType, value, volume);
+	}
+
+	/**
+	 * Log an adjustment to the value of a type of item.
+	 *
+	 * @param productType  The type of item adjusted.
+	 * @param operation    The operation applied.
+	 * @param value        The value for the operation.
+	 * @throws IOException
+	 */
+	public void logAdjustment(String productType, adjustmentOperation operation, int value) throws IOException {
+		append(ADJUSTMENT, productType, operation.ordinal(), value);
+	}
+
+	/**
+	 * Log the resumption of a paused service.
+	 *
+	 * @throws IOException
+	 */
+	public void logResume() throws IOException {
+		append(RESUME, "", 0, 0);
+	}
+
+
+	/*
+	 * Add a record to the buffer, writing out the buffer if it is full and committing
+	 * if enough records have been logged.
+	 */
+	private void append(byte kind, String productType, int first, int second) throws IOException {
+		byte[] type = productType.getBytes(StandardCharsets.UTF_8);
+		if (0xFFFF < type.length) {
+			throw new IOException("Product type too long to be logged: " + productType);
+		}
+		int contentSize = FIXED_CONTENT_SIZE + type.length;
+
+		if (buffer.remaining() < 4 + contentSize + 8) {
+			write();
+		}
+		buffer.putInt(contentSize);
+		int contentStart = buffer.position();
+		buffer.put(kind);
+		buffer.putShort((short) type.length);
+		buffer.put(type);
+		buffer.putInt(first);
+		buffer.putInt(second);
+
+		checksum.reset();
+		checksum.update(buffer.array(), contentStart, contentSize);
+		buffer.putLong(checksum.getValue());
+
+		recordCount++;
+		if (++uncommittedRecords >= commitInterval) {
+			commit();
+		}
+	}
+
+
+	/*
+	 * Write the contents of the buffer to the file, without forcing them to the
+	 * storage device.
+	 */
+	private void write() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+
+	/**
+	 * Write all records logged so far to the file, and force them to the storage device.
+	 *
+	 * @throws IOException
+	 */
+	public void commit() throws IOException {
+		write();
+		channel.force(false);
+		uncommittedRecords = 0;
+	}
+
+	/**
+	 * @return The number of records logged since the last commit.
+	 */
+	public int getUncommittedCount() {
+		return uncommittedRecords;
+	}
+
+
+	/**
+	 * @return The number of records logged since the journal was opened.
+	 */
+	public long getRecordCount() {
+		return recordCount;
+	}
+
+
+	/**
+	 * Commit any outstanding records and close the journal.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			commit();
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+
+	/**
+	 * Read back the records held in a journal.  Reading stops at the first record that
+	 * is incomplete or fails its checksum.
+	 *
+	 * @param file      The journal file.
+	 * @param listener  The listener to which events are passed, or null if the journal is
+	 *                      only to be checked.
+	 * @return The length of the journal up to the end of the last complete record.
+	 * @throws IOException
+	 */
+	public static long replay(Path file, Listener listener) throws IOException {
+		long validLength = 0;
+		CRC32 readChecksum = new CRC32();
+		byte[] content = new byte[MAX_RECORD_SIZE];
+
+		try (InputStream fileInput = Files.newInputStream(file);
+				DataInputStream input = new DataInputStream(new BufferedInputStream(fileInput, BUFFER_SIZE))) {
+			while (true) {
+				int contentSize = input.readInt();
+				if ((FIXED_CONTENT_SIZE > contentSize) || (content.length < contentSize)) {
+					break;
+				}
+				input.readFully(content, 0, contentSize);
+				long expectedChecksum = input.readLong();
+
+				readChecksum.reset();
+				readChecksum.update(content, 0, contentSize);
+				if (readChecksum.getValue() != expectedChecksum) {
+					break;
+				}
+
+				if (null != listener) {
+					ByteBuffer record = ByteBuffer.wrap(content, 0, contentSize);
+					byte kind = record.get();
+					int typeLength = record.getShort() & 0xFFFF;
+					String productType = new String(content, record.position(), typeLength, StandardCharsets.UTF_8);
+					record.position(record.position() + typeLength);
+					int first = record.getInt();
+					int second = record.getInt();
+
+					if (SALE == kind) {
+						listener.sale(productType, first, second);
+					}
+					else if (ADJUSTMENT == kind) {
+						listener.adjustment(productType, adjustmentOperation.values()[first], second);
+					}
+					else if (RESUME == kind) {
+						listener.resumed();
+					}
+				}
+				validLength += 4 + contentSize + 8;
+			}
+		}
+		catch (EOFException e) {
+			// The end of the journal, or an incomplete final record.
+		}
+		return validLength;
+	}
+
+}
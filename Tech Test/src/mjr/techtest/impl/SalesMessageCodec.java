@@ -0,0 +1,102 @@
+/**
+ * The binary format in which upstream systems send sale and adjustment messages,
+ * and the means of writing messages in that format.
+ *
+ * Each message starts with a byte giving its kind, followed by the length of the
+ * product type as an unsigned byte and the product type in UTF-8.  The remainder
+ * depends on the kind, with all ints big-endian:
+ * - SALE:        the value of the item (int).
+ * - SALES:       the value of each item (int), and the number of items (int).
+ * - ADJUSTMENT:  the operation (byte, the ordinal of the adjustment operation),
+ *                    and the value for the operation (int).
+ *
+ * Where a reply is sent for a message, it is a single byte saying whether the
+ * message was accepted, rejected because the service has paused, or rejected
+ * for any other reason.
+ */
+package mjr.techtest.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import mjr.techtest.SalesService.adjustmentOperation;
+
+/**
+ * @author mrowe
+ *
+ */
+public final class SalesMessageCodec {
+
+	public static final byte SALE = 1;
+	public static final byte SALES = 2;
+	public static final byte ADJUSTMENT = 3;
+
+	public static final byte REPLY_ACCEPTED = 0;
+	public static final byte REPLY_PAUSED = 1;
+	public static final byte REPLY_REJECTED = 2;
+
+	public static final int MAX_TYPE_LENGTH = 0xFF;
+
+	// The longest message: kind, type length, type, and at most five further bytes.
+	public static final int MAX_MESSAGE_SIZE = 1 + 1 + MAX_TYPE_LENGTH + 1 + 4 + 4;
+
+
+	private SalesMessageCodec() {
+	}
+
+
+	/**
+	 * Write a message recording the sale of a single item.
+	 *
+	 * @param buffer       The buffer to which the message is written.
+	 * @param productType  The type of item sold.
+	 * @param value        The value of the item.
+	 */
+	public static void encodeSale(ByteBuffer buffer, String productType, int value) {
+		putHeader(buffer, SALE, productType);
+		buffer.putInt(value);
+	}
+
+	/**
+	 * Write a message recording the sale of a number of items.
+	 *
+	 * @param buffer       The buffer to which the message is written.
+	 * @param productType  The type of item sold.
+	 * @param value        The value of each item.
+	 * @param volume       The number of items sold.
+	 */
+	public static void encodeSales(ByteBuffer buffer, String productType, int value, int volume) {
+		putHeader(buffer, SALES, productType);
+		buffer.putInt(value);
+		buffer.putInt(volume);
+	}
+
+	/**
+	 * Write a message recording an adjustment to the value of a type of item.
+	 *
+	 * @param buffer       The buffer to which the message is written.
+	 * @param productType  The type of item adjusted.
+	 * @param operation    The operation applied.
+	 * @param value        The value for the operation.
+	 */
+	public static void encodeAdjustment(ByteBuffer buffer, String productType, adjustmentOperation operation, int value) {
+		putHeader(buffer, ADJUSTMENT, productType);
+		buffer.put((byte) operation.ordinal());
+		buffer.putInt(value);
+	}
+
+
+	/*
+	 * Write the kind of a message and its product type.
+	 */
+	private static void putHeader(ByteBuffer buffer, byte kind, String productType) {
+		byte[] type = productType.getBytes(StandardCharsets.UTF_8);
+		if (MAX_TYPE_LENGTH < type.length) {
+			throw new IllegalArgumentException("Product type too long to be sent: " + productType);
+		}
+		buffer.put(kind);
+		buffer.put((byte) type.length);
+		buffer.put(type);
+	}
+
+}
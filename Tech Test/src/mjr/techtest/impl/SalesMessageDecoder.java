@@ -0,0 +1,226 @@
+/**
+ * Reads sale and adjustment messages, in the format described by SalesMessageCodec,
+ * from a buffer and passes each on to a sales service as it is read.
+ *
+ * The decoder keeps a Sale for each product type it has seen, found by the bytes of
+ * the product type without creating a String for them, and reuses it for every later
+ * message for that type.  Only the first message for a type creates a String and a
+ * Sale.  The services copy the details of a sale when it is recorded, so the reused
+ * Sale is not retained by them.
+ */
+package mjr.techtest.impl;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import mjr.techtest.Sale;
+import mjr.techtest.SalesException;
+import mjr.techtest.SalesService;
+import mjr.techtest.SalesService.adjustmentOperation;
+
+/**
+ * @author mrowe
+ *
+ */
+public class SalesMessageDecoder {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private static final adjustmentOperation[] OPERATIONS = adjustmentOperation.values();
+
+	private final SalesService service;
+
+	// An open-addressed table of the product types seen, by the bytes of the type.
+	private byte[][] typeBytes = new byte[INITIAL_CAPACITY][];
+	private Sale[] typeSales = new Sale[INITIAL_CAPACITY];
+	private int numTypes = 0;
+
+	private long messageCount = 0;
+
+
+	/**
+	 * @param service  The service to which decoded messages are passed.
+	 */
+	public SalesMessageDecoder(SalesService service) {
+		this.service = service;
+	}
+
+
+	/**
+	 * Decode the complete messages held in a buffer, from its position to its limit,
+	 * passing each to the service.  The buffer is left positioned at the start of the
+	 * first incomplete message, if any.
+	 *
+	 * If a message is not valid, or the service rejects it, the buffer is left 
+	 * positioned after that message, so that decoding may continue with the next.
+	 *
+	 * @param buffer  The buffer holding the messages.
+	 * @return The number of messages passed to the service.
+	 * @throws IOException if the buffer does not hold a message in the expected format.
+	 * @throws SalesException if a message is not valid, or the service rejects it.
+	 */
+	public int decode(ByteBuffer buffer) throws IOException, SalesException {
+		int numMessages = 0;
+		int size;
+
+		while (0 < (size = getMessageSize(buffer))) {
+			// The message is consumed before it is passed on, whether or not it is accepted.
+			int start = buffer.position();
+			buffer.position(start + size);
+			messageCount++;
+
+			byte kind = buffer.get(start);
+			int typeLength = buffer.get(start + 1) & 0xFF;
+			int body = start + 2 + typeLength;
+
+			if (SalesMessageCodec.ADJUSTMENT == kind) {
+				int operation = buffer.get(body) & 0xFF;
+				if (OPERATIONS.length <= operation) {
+					buffer.position(start);
+					messageCount--;
+					throw new StreamCorruptedException("Unknown adjustment operation: " + operation);
+				}
+				Sale sale = findSale(buffer, start + 2, typeLength);
+				service.adjustSale(sale, OPERATIONS[operation], buffer.getInt(body + 1));
+			}
+			else {
+				Sale sale = findSale(buffer, start + 2, typeLength);
+				int value = buffer.getInt(body);
+				Sale.validate(sale.getProductType(), value);
+				sale.setValue(value);
+				if (SalesMessageCodec.SALES == kind) {
+					service.recordSale(sale, buffer.getInt(body + 4));
+				}
+				else {
+					service.recordSale(sale);
+				}
+			}
+			numMessages++;
+		}
+		return numMessages;
+	}
+
+
+	/**
+	 * @return The number of messages read since the decoder was created, including those
+	 *             that were not valid or were rejected by the service.
+	 */
+	public long getMessageCount() {
+		return messageCount;
+	}
+
+
+	/*
+	 * Returns the size of the message at the position of the buffer, or 0 if the buffer
+	 * does not hold the whole message.
+	 */
+	private static int getMessageSize(ByteBuffer buffer) throws IOException {
+		int position = buffer.position();
+		if (2 > buffer.remaining()) {
+			return 0;
+		}
+
+		byte kind = buffer.get(position);
+		int bodySize;
+		if (SalesMessageCodec.SALE == kind) {
+			bodySize = 4;
+		}
+		else if (SalesMessageCodec.SALES == kind) {
+			bodySize = 4 + 4;
+		}
+		else if (SalesMessageCodec.ADJUSTMENT == kind) {
+			bodySize = 1 + 4;
+		}
+		else {
+			throw new StreamCorruptedException("Unknown sales message kind: " + kind);
+		}
+		int size = 2 + (buffer.get(position + 1) & 0xFF) + bodySize;
+
+		return (size <= buffer.remaining()) ? size : 0;
+	}
+
+
+	/*
+	 * Find the sale kept for the product type held in the buffer at the given offset,
+	 * creating one if the type has not been seen.
+	 */
+	private Sale findSale(ByteBuffer buffer, int offset, int length) throws SalesException {
+		int mask = typeBytes.length - 1;
+		int slot = hash(buffer, offset, length) & mask;
+
+		while (null != typeBytes[slot]) {
+			if (matches(typeBytes[slot], buffer, offset, length)) {
+				return typeSales[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		byte[] type = new byte[length];
+		for (int i = 0; i < length; i++) {
+			type[i] = buffer.get(offset + i);
+		}
+		Sale sale = new Sale(new String(type, StandardCharsets.UTF_8), 0);
+
+		typeBytes[slot] = type;
+		typeSales[slot] = sale;
+		if (++numTypes * 2 > typeBytes.length) {
+			grow();
+		}
+		return sale;
+	}
+
+
+	/*
+	 * Double the size of the table of product types.
+	 */
+	private void grow() {
+		byte[][] oldBytes = typeBytes;
+		Sale[] oldSales = typeSales;
+		typeBytes = new byte[oldBytes.length * 2][];
+		typeSales = new Sale[oldBytes.length * 2];
+		int mask = typeBytes.length - 1;
+
+		for (int i = 0; i < oldBytes.length; i++) {
+			if (null != oldBytes[i]) {
+				int slot = hash(ByteBuffer.wrap(oldBytes[i]), 0, oldBytes[i].length) & mask;
+				while (null != typeBytes[slot]) {
+					slot = (slot + 1) & mask;
+				}
+				typeBytes[slot] = oldBytes[i];
+				typeSales[slot] = oldSales[i];
+			}
+		}
+	}
+
+
+	/*
+	 * FNV-1a hash of bytes held in the buffer.
+	 */
+	static int hash(ByteBuffer buffer, int offset, int length) {
+		int hash = 0x811c9dc5;
+		for (int i = 0; i < length; i++) {
+			hash ^= buffer.get(offset + i);
+			hash *= 0x01000193;
+		}
+		return hash ^ (hash >>> 16);
+	}
+
+
+	/*
+	 * Check whether bytes held in the buffer match those of a known product type.
+	 */
+	static boolean matches(byte[] type, ByteBuffer buffer, int offset, int length) {
+		if (type.length != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (type[i] != buffer.get(offset + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
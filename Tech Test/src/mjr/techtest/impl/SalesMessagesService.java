@@ -3,11 +3,25 @@
  */
 package mjr.techtest.impl;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import mjr.techtest.Sale;
 import mjr.techtest.SalesException;
@@ -15,113 +29,772 @@ import mjr.techtest.SalesPausedException;
 import mjr.techtest.SalesService;
 
 /**
+ * The public methods of the service are synchronized, so that producers waiting
+ * for a paused service to be resumed (see {@link #offer(Sale, long, TimeUnit)})
+ * may do so on threads of their own.
+ * 
  * @author mrowe
  *
  */
-public class SalesMessagesService implements SalesService {
+public class SalesMessagesService implements SalesService, Closeable {
 	
 	public enum State {RUNNING, LOGGING, PAUSED};
 	
-	private List<Sale> receivedSales = new ArrayList<Sale>();
+	private static final String SNAPSHOT_FILE = "sales.snapshot";
+	private static final String JOURNAL_PREFIX = "sales-";
+	private static final String JOURNAL_SUFFIX = ".journal";
+	
+	// The number of stored sales below which a parallel recalculation is not divided further.
+	private static final int PARALLEL_RECALCULATION_THRESHOLD = 1 << 16;
+	
+	// Product types are referred to by id, both in the stored sales and the totals.
+	private ProductTypeRegistry productTypes = new ProductTypeRegistry();
+	private SalesStore receivedSales;
 	private ModificationRecord saleModifications = new ModificationRecord();
 	
-	private State currState;
+	// Running totals for each product type, maintained as sales are recorded and
+	// adjusted so that a report does not need to revisit every stored sale.
+	private TypeTotals salesTotals = new TypeTotals();
+	
+	private volatile State currState;
+	
+	// The number of individual sales recorded, counting each item of a bulk sale.
+	private int salesCount = 0;
 	
 	private int logInterval = 10;
-	private int pauseInterval = 50;
+	
+	// The service pauses when the sales count reaches the pause point given by the
+	// policy, counting from the point at which it started or was last resumed.
+	private FlowControlPolicy flowControlPolicy = FlowControlPolicy.pauseEvery(50);
+	private int resumeCount = 0;
+	private int pausePoint = 50;
+	
+	private SalesReportSink reportSink = new SalesReportPrinter();
+	
+	// Whether reports are built and passed to the sink as sales are recorded.
+	private boolean reporting = true;
+	
+	// The exception thrown for sales rejected while paused, and the sales count at
+	// which it was created.
+	private SalesPausedException pausedException = null;
+	private int pausedExceptionCount;
+	
+	// Rolling totals over recent sales, which are timestamped by the clock as they
+	// are recorded.
+	private Clock clock = Clock.systemUTC();
+	private List<SalesWindow> windows = new ArrayList<SalesWindow>();
+	
+	// The types leading by volume and value, if the reports produced as sales are
+	// recorded are to be limited to these.
+	private TopTypesTracker topTypes = null;
+	
+	// The stored sales indexed by type and value, if they are to be queried by value.
+	private SalesIndex salesIndex = null;
+	
+	// The latest view of the totals and modifications, if views are being published for
+	// readers that do not hold the lock.
+	private volatile SalesView salesView = null;
+	
+	// Metrics for the hot paths, if enabled.
+	private SalesMetrics metrics = null;
+	
+	// The journal of sales and adjustments, if the service is to survive a restart.
+	// Each snapshot taken starts a new generation of the journal.
+	private Path journalDirectory = null;
+	private SalesJournal journal = null;
+	private long journalGeneration = 0;
+	private int commitInterval = 0;
+	private int snapshotInterval = 0;
+	
+	// Commits the journal after a time limit, if one has been set, and the first failure
+	// to do so, which is thrown when the service is closed.
+	private ScheduledExecutorService commitScheduler = null;
+	private IOException commitFailure = null;
+	
+	// The snapshot from which the service was restored, which stands in for the
+	// sales recorded before it was taken.
+	private SalesSnapshot baseline = null;
 
 	public SalesMessagesService() {
+		this(new ColumnarSalesStore());
+	}
+	
+	/**
+	 * Create the service, holding the sales recorded in the given store.
+	 * 
+	 * @param salesStore  The store for recorded sales.  This must be empty.
+	 */
+	public SalesMessagesService(SalesStore salesStore) {
+		this.receivedSales = salesStore;
+		
 		// Initialise the service in the running state.
 		this.currState = State.RUNNING;
 	}
+	
+	/**
+	 * Create the service, holding the sales recorded in the given store, and reporting
+	 * and pausing at the given intervals rather than every 10 and 50 sales.
+	 * 
+	 * @param salesStore     The store for recorded sales.  This must be empty.
+	 * @param logInterval    The number of sales between each report.
+	 * @param pauseInterval  The number of sales after which the service pauses.
+	 */
+	public SalesMessagesService(SalesStore salesStore, int logInterval, int pauseInterval) {
+		this(salesStore);
+		this.logInterval = logInterval;
+		this.flowControlPolicy = FlowControlPolicy.pauseEvery(pauseInterval);
+		this.pausePoint = flowControlPolicy.getPausePoint(resumeCount);
+	}
+	
+	/**
+	 * Create the service, restoring any sales and adjustments previously recorded in 
+	 * the given directory, and logging all further sales and adjustments there.
+	 * 
+	 * On restart the service is restored from the latest snapshot, together with the
+	 * events logged since it was taken.  The stored sales held in the given store are
+	 * those recorded since the snapshot; earlier sales are represented only by the 
+	 * totals held in the snapshot.
+	 * 
+	 * @param salesStore        The store for recorded sales.  This must be empty.
+	 * @param journalDirectory  The directory holding the journal and snapshots.
+	 * @param commitInterval    The number of events logged between each commit of the 
+	 *                              journal to the storage device.
+	 * @param snapshotInterval  The number of events logged between each snapshot.
+	 * @throws IOException
+	 */
+	public SalesMessagesService(SalesStore salesStore, Path journalDirectory, int commitInterval, 
+			int snapshotInterval) throws IOException {
+		this(salesStore);
+		this.journalDirectory = journalDirectory;
+		this.commitInterval = commitInterval;
+		this.snapshotInterval = snapshotInterval;
+		
+		recover();
+	}
 
 	public State getCurrState() {
 		return currState;
 	}
+	
+	/**
+	 * Set the destination for the reports produced as sales are recorded.  By default
+	 * reports are printed to the console by the thread recording the sales.
+	 * 
+	 * @param reportSink  The destination for reports.
+	 */
+	public synchronized void setReportSink(SalesReportSink reportSink) {
+		this.reportSink = reportSink;
+	}
+	
+	/**
+	 * Set whether reports are produced as sales are recorded.  While they are not, the
+	 * service reports nothing at logging points or when it pauses, and builds no report
+	 * to do so, but otherwise behaves as before, moving through the same states and 
+	 * pausing after the same sales.  By default reports are produced.  Recording a
+	 * sale allocates nothing only while reports are not; each report is a new list of
+	 * new items, as the sink may keep it.
+	 * 
+	 * @param reporting  true to produce reports, false to produce none.
+	 */
+	public synchronized void setReporting(boolean reporting) {
+		this.reporting = reporting;
+	}
+	
+	/**
+	 * @return true if reports are produced as sales are recorded.
+	 */
+	public synchronized boolean isReporting() {
+		return reporting;
+	}
+	
+	/*
+	 * Returns the destination for reports, so that it may be replaced for a time.
+	 */
+	synchronized SalesReportSink getReportSink() {
+		return reportSink;
+	}
+	
+	/**
+	 * Set the policy that decides when the service pauses.  By default the service pauses
+	 * once 50 sales have been recorded since it started or was last resumed.
+	 * 
+	 * The new policy takes effect immediately, from the point at which the service
+	 * started or was last resumed.  This may pause the service at once, or release a 
+	 * service that was paused.
+	 * 
+	 * @param flowControlPolicy  The policy.
+	 */
+	public synchronized void setFlowControlPolicy(FlowControlPolicy flowControlPolicy) {
+		this.flowControlPolicy = flowControlPolicy;
+		this.pausePoint = flowControlPolicy.getPausePoint(resumeCount);
+		
+		if (isPauseDue()) {
+			setState(State.PAUSED);
+		}
+		else if (State.PAUSED == currState) {
+			setState(State.RUNNING);
+			notifyAll();
+		}
+	}
+
+
+	/**
+	 * Start keeping metrics for the recording of sales and adjustments, the production
+	 * of reports and the time spent in each state.  Until this is called, no metrics
+	 * are kept, and keeping them costs nothing.
+	 * 
+	 * @return The metrics, which may be read from any thread, and registered for JMX.
+	 */
+	public synchronized SalesMetrics enableMetrics() {
+		if (null == metrics) {
+			metrics = new SalesMetrics(currState, receivedSales.size(), salesCount);
+		}
+		return metrics;
+	}
+	
+	/**
+	 * Stop keeping metrics.  The metrics kept so far remain readable, and registered
+	 * for JMX if they were.
+	 */
+	public synchronized void disableMetrics() {
+		metrics = null;
+	}
+	
+	/**
+	 * @return The metrics being kept, or null if they are not enabled.
+	 */
+	public synchronized SalesMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Limit the reports produced as sales are recorded to the types with the greatest
+	 * total value, so that their cost does not depend on the number of types sold.  The
+	 * types leading by volume and by value are tracked in bounded space as sales are
+	 * recorded, see {@link #generateTopTypesReport()}.
+	 * 
+	 * The distribution of sale values is known only for sales recorded from this point.
+	 * 
+	 * @param numTypes  The number of types reported, or 0 to report every type.
+	 */
+	public synchronized void setTopTypesReports(int numTypes) {
+		if (0 == numTypes) {
+			topTypes = null;
+			return;
+		}
+		
+		topTypes = new TopTypesTracker(numTypes);
+		for (int typeId = 0; typeId < productTypes.size(); typeId++) {
+			if (0 < salesTotals.getNumItems(typeId)) {
+				topTypes.addTotals(typeId, salesTotals.getNumItems(typeId), salesTotals.getTotalValue(typeId));
+			}
+		}
+	}
+	
+	/**
+	 * Start indexing the stored sales by type and value, so that they may be queried by
+	 * their current value, see {@link #findSalesInRange(String, long, long)}.  The sales
+	 * already stored are indexed at once.
+	 */
+	public synchronized void enableSalesIndex() {
+		if (null != salesIndex) {
+			return;
+		}
+		
+		salesIndex = new SalesIndex();
+		for (int entry = 0; entry < receivedSales.size(); entry++) {
+			salesIndex.add(receivedSales.getTypeId(entry), receivedSales.getValue(entry), 
+					receivedSales.getVolume(entry), receivedSales.getAdjustmentIndex(entry));
+		}
+	}
+	
+	/**
+	 * Start publishing a view of the totals and modifications each time a sale is
+	 * recorded or a type adjusted, see {@link #getSalesView()}.  Each publication copies
+	 * the totals of the type changed and the few nodes on its path through the view's
+	 * tree, however many types there are.
+	 */
+	public synchronized void enableSalesView() {
+		if (null == salesView) {
+			salesView = SalesView.create(productTypes, salesTotals, saleModifications, salesCount);
+		}
+	}
+	
+	/**
+	 * Returns the latest published view of the totals and modifications.  Unlike the
+	 * other methods of the service, this does not wait for the lock, so readers are not
+	 * held up by, and do not hold up, the recording of sales.  Each view is consistent
+	 * with a single point between recording sales and adjustments.
+	 * 
+	 * @return The view.
+	 * @throws IllegalStateException if views are not being published.
+	 */
+	public SalesView getSalesView() {
+		SalesView currView = salesView;
+		
+		if (null == currView) {
+			throw new IllegalStateException("Views are not being published");
+		}
+		return currView;
+	}
+	
+	/**
+	 * Set the clock by which sales are timestamped as they are recorded, for the
+	 * windows measured by time.  By default this is the system clock.
+	 * 
+	 * @param clock  The clock.
+	 */
+	public synchronized void setClock(Clock clock) {
+		this.clock = clock;
+	}
+	
+	/**
+	 * Add a window of rolling totals measured by the time at which sales are recorded.
+	 * 
+	 * @param bucketMillis  The width of each bucket, and so of each tumbling window,
+	 *                          in milliseconds.
+	 * @param numBuckets    The number of buckets, and so the longest sliding window.
+	 * @return The window, from which reports may be taken.
+	 */
+	public synchronized SalesWindow addTimeWindow(long bucketMillis, int numBuckets) {
+		SalesWindow window = new SalesWindow(this, productTypes, false, bucketMillis, numBuckets);
+		windows.add(window);
+		return window;
+	}
+	
+	/**
+	 * Add a window of rolling totals measured by the number of sales recorded.
+	 * 
+	 * @param bucketSales  The number of sales in each bucket, and so in each tumbling window.
+	 * @param numBuckets   The number of buckets, and so the longest sliding window.
+	 * @return The window, from which reports may be taken.
+	 */
+	public synchronized SalesWindow addSalesWindow(int bucketSales, int numBuckets) {
+		SalesWindow window = new SalesWindow(this, productTypes, true, bucketSales, numBuckets);
+		windows.add(window);
+		return window;
+	}
+	
+	/*
+	 * Returns the current time, or the number of sales recorded, for a window.
+	 */
+	long getWindowPosition(boolean measuredBySales) {
+		return measuredBySales ? salesCount : clock.millis();
+	}
 
 
 	/* (non-Javadoc)
 	 * @see mjr.techtest.SalesNotifications#recordSale(mjr.techtest.Sale)
 	 */
 	@Override
-	public void recordSale(Sale newSale) throws SalesException{
-		Sale actualNewSale = new Sale(newSale.getProductType(), newSale.getValue());
-		addSale(actualNewSale);
-		processSales();
+	public synchronized void recordSale(Sale newSale) throws SalesException{
+		String productType = newSale.getProductType();
+		int value = newSale.getValue();
+		Sale.validate(productType, value);
+		if (0 == addSales(productType, value, 1)) {
+			throw pausedException();
+		}
 	}
 
 	/* (non-Javadoc)
 	 * @see mjr.techtest.SalesNotifications#recordSale(mjr.techtest.Sale, int)
+	 * 
+	 * The items are stored as a single entry, rather than one at a time.  The service
+	 * behaves as though each item had been recorded individually, logging at each
+	 * multiple of 10 sales and pausing at 50 sales, part way through the items if
+	 * necessary.
 	 */
 	@Override
-	public void recordSale(Sale newSale, int volume) throws SalesException {
-		for (int i = 0; i < volume; i++) {
-			recordSale(newSale);
+	public synchronized void recordSale(Sale newSale, int volume) throws SalesException {
+		if (0 < volume) {
+			String productType = newSale.getProductType();
+			int value = newSale.getValue();
+			Sale.validate(productType, value);
+			if (addSales(productType, value, volume) < volume) {
+				throw pausedException();
+			}
 		}
-
+	}
+	
+	
+	/**
+	 * Record the sale of a single item, if the service is not paused.  Unlike
+	 * {@link #recordSale(Sale)}, no exception is thrown if the sale is rejected.
+	 * 
+	 * @param newSale  The item sold.
+	 * @return true if the sale was recorded, false if the service is paused.
+	 * @throws SalesException if the sale is not valid.
+	 */
+	public synchronized boolean offer(Sale newSale) throws SalesException {
+		return 1 == offer(newSale, 1);
+	}
+	
+	/**
+	 * Record the sale of a number of items, as far as the service allows before it 
+	 * pauses.  Unlike {@link #recordSale(Sale, int)}, no exception is thrown if some
+	 * or all of the items are rejected.
+	 * 
+	 * @param newSale  The type of item sold.
+	 * @param volume   The number of those items sold.
+	 * @return The number of items recorded.
+	 * @throws SalesException if the sale is not valid.
+	 */
+	public synchronized int offer(Sale newSale, int volume) throws SalesException {
+		int accepted = 0;
+		
+		if (0 < volume) {
+			String productType = newSale.getProductType();
+			int value = newSale.getValue();
+			Sale.validate(productType, value);
+			accepted = addSales(productType, value, volume);
+		}
+		return accepted;
+	}
+	
+	/**
+	 * Record the sale of a single item, waiting up to the given time for the service to
+	 * be resumed if it is paused.
+	 * 
+	 * @param newSale  The item sold.
+	 * @param timeout  The longest time to wait.
+	 * @param unit     The unit of the timeout.
+	 * @return true if the sale was recorded, false if the service remained paused.
+	 * @throws SalesException if the sale is not valid.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public synchronized boolean offer(Sale newSale, long timeout, TimeUnit unit) 
+			throws SalesException, InterruptedException {
+		return 1 == offer(newSale, 1, timeout, unit);
+	}
+	
+	/**
+	 * Record the sale of a number of items.  If the service pauses before all have been
+	 * recorded, wait up to the given time in all for it to be resumed, and record the
+	 * remainder.
+	 * 
+	 * @param newSale  The type of item sold.
+	 * @param volume   The number of those items sold.
+	 * @param timeout  The longest time to wait.
+	 * @param unit     The unit of the timeout.
+	 * @return The number of items recorded.
+	 * @throws SalesException if the sale is not valid.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public synchronized int offer(Sale newSale, int volume, long timeout, TimeUnit unit) 
+			throws SalesException, InterruptedException {
+		if (0 >= volume) {
+			return 0;
+		}
+		String productType = newSale.getProductType();
+		int value = newSale.getValue();
+		Sale.validate(productType, value);
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		
+		int accepted = addSales(productType, value, volume);
+		while (accepted < volume) {
+			long remaining = deadline - System.nanoTime();
+			while ((State.PAUSED == currState) && (0 < remaining)) {
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+				remaining = deadline - System.nanoTime();
+			}
+			if (State.PAUSED == currState) {
+				break;
+			}
+			accepted += addSales(productType, value, volume - accepted);
+		}
+		return accepted;
+	}
+	
+	
+	/**
+	 * Resume a paused service, so that it accepts sales again until the next pause
+	 * point given by the flow control policy.  Any producers waiting for the service
+	 * to resume are released.  This has no effect if the service is not paused.
+	 * 
+	 * @throws SalesException if the resumption cannot be recorded in the journal.
+	 */
+	public synchronized void resume() throws SalesException {
+		if (State.PAUSED != currState) {
+			return;
+		}
+		if (null != journal) {
+			try {
+				journal.logResume();
+			}
+			catch (IOException e) {
+				throw new SalesException("Unable to record resumption", e);
+			}
+		}
+		applyResume();
+		notifyAll();
+	}
+	
+	
+	/*
+	 * Start counting towards the next pause from the current number of sales.
+	 */
+	private void applyResume() {
+		resumeCount = salesCount;
+		pausePoint = flowControlPolicy.getPausePoint(resumeCount);
+		setState(isPauseDue() ? State.PAUSED : State.RUNNING);
+	}
+	
+	/*
+	 * Check whether the pause point given by the policy has been reached.
+	 */
+	private boolean isPauseDue() {
+		return (FlowControlPolicy.NEVER != pausePoint) && (pausePoint <= salesCount);
+	}
+	
+	
+	/*
+	 * Get the exception thrown when a sale is rejected because the service is paused.
+	 * Its stack trace is not filled in, as rejection is an expected outcome for which 
+	 * the trace would be of no use, and so one exception is shared by every sale 
+	 * rejected at the same pause.
+	 */
+	private SalesPausedException pausedException() {
+		if ((null == pausedException) || (pausedExceptionCount != salesCount)) {
+			pausedException = new SalesPausedException("Application has processed " + salesCount + " sales", 
+					null, false, false);
+			pausedExceptionCount = salesCount;
+		}
+		return pausedException;
 	}
 
 	/* (non-Javadoc)
 	 * @see mjr.techtest.SalesNotifications#adjustSale(mjr.techtest.Sale, mjr.techtest.SalesNotifications.adjustmentOperation, float)
 	 * 
 	 * Applies the specified operation to all stored items of a particular type.
+	 * The stored sales themselves are not altered - the operation is recorded for
+	 * the type, and applied to a sale's value whenever that value is required.
 	 */
 	@Override
-	public void adjustSale(Sale newSale, adjustmentOperation adjustment, int adjustmentValue) {
-		
-		String typeToAdjust = newSale.getProductType();
-
-		for (Sale currSale : receivedSales) {
-			if (currSale.getProductType().equals(typeToAdjust)) {
-
-				if (adjustmentOperation.ADD == adjustment) {
-					currSale.setValue(currSale.getValue() + adjustmentValue);
-				}
-				else if (adjustmentOperation.SUBTRACT == adjustment) {
-					currSale.setValue(currSale.getValue() - adjustmentValue);
-				}
-				else if (adjustmentOperation.MULTIPLY == adjustment) {
-					currSale.setValue(currSale.getValue() * adjustmentValue);
-				}
-				
+	public synchronized void adjustSale(Sale newSale, adjustmentOperation adjustment, int adjustmentValue) {
+		adjustSale(newSale.getProductType(), adjustment, adjustmentValue);
+	}
+	
+	
+	/*
+	 * Record a number of items sold, as far as the service allows, returning the number
+	 * recorded.  This is for the use of the ingestion pipeline, which passes on sales
+	 * that have already been validated without creating a Sale for each.
+	 */
+	synchronized int offer(String productType, int value, int volume) throws SalesException {
+		return (0 < volume) ? addSales(productType, value, volume) : 0;
+	}
+	
+	
+	/*
+	 * Apply an operation to all stored items of a particular type.
+	 */
+	synchronized void adjustSale(String typeToAdjust, adjustmentOperation adjustment, int adjustmentValue) {
+		long startNanos = (null == metrics) ? 0 : System.nanoTime();
+		try {
+			if (null != journal) {
+				journal.logAdjustment(typeToAdjust, adjustment, adjustmentValue);
 			}
+			applyAdjustment(typeToAdjust, adjustment, adjustmentValue);
+			checkSnapshotDue();
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException("Unable to record adjustment", e);
+		}
+		if (null != metrics) {
+			metrics.saleAdjusted(startNanos);
 		}
+	}
+	
+	
+	/*
+	 * Apply a modification to the running totals, and record it against its type.
+	 */
+	private void applyAdjustment(String typeToAdjust, adjustmentOperation adjustment, int adjustmentValue) {
+		int typeId = productTypes.register(typeToAdjust);
+		
+		// Apply the same operation to the running total for the type.  Every sale of
+		// the type is adjusted, so additions and subtractions scale with the count.
+		salesTotals.adjust(typeId, adjustment, adjustmentValue);
 		
 		// Record the modification made
-		saleModifications.recordModification(typeToAdjust, new ModificationRecordItem(adjustment, adjustmentValue));
+		saleModifications.recordModification(typeToAdjust, adjustment, adjustmentValue);
+		
+		for (int i = 0; i < windows.size(); i++) {
+			windows.get(i).adjust(typeId, adjustment, adjustmentValue);
+		}
+		if (null != topTypes) {
+			topTypes.adjust(typeId, adjustment, adjustmentValue, salesTotals);
+		}
+		publishView(typeId, typeToAdjust);
 	}
 	
 	
 	/*
-	 * Add the sale to the currently stored record of sales that have been made.
-	 * This will fail if the service is not in a state suitable for accepting
-	 * messages.
+	 * Publish a new view, if views are being published, in which the given type has
+	 * changed.
 	 */
-	private void addSale(Sale newSale) throws SalesPausedException {
-		if (State.PAUSED != currState) {
-			currState = State.RUNNING;
-			receivedSales.add(newSale);
+	private void publishView(int typeId, String productType) {
+		if (null != salesView) {
+			salesView = salesView.update(typeId, productType, salesTotals, saleModifications, salesCount);
 		}
-		else {
-			throw new SalesPausedException("Application has processed 50 sales");
+	}
+	
+	
+	/*
+	 * Add a number of items of the sale to the currently stored record of sales that
+	 * have been made, and process the sales at each point at which logging or pausing
+	 * is due, returning the number of items added.
+	 * No items are added if the service is not in a state suitable for accepting
+	 * messages.  If the service pauses part way through the items, those items
+	 * recorded before the pause are retained.
+	 */
+	private int addSales(String productType, int value, int volume) throws SalesException {
+		if (null == metrics) {
+			return storeAndProcessSales(productType, value, volume);
 		}
+		
+		long startNanos = System.nanoTime();
+		int accepted = storeAndProcessSales(productType, value, volume);
+		metrics.salesRecorded(accepted, volume - accepted, startNanos, receivedSales.size(), salesCount);
+		return accepted;
+	}
+	
+	/*
+	 * Add sales as described for addSales, which also keeps the metrics.
+	 */
+	private int storeAndProcessSales(String productType, int value, int volume) throws SalesException {
+		if (State.PAUSED == currState) {
+			return 0;
+		}
+		
+		int accepted = (FlowControlPolicy.NEVER == pausePoint) ? volume : Math.min(volume, pausePoint - salesCount);
+		if (Integer.MAX_VALUE - salesCount < accepted) {
+			throw new SalesException("Unable to count more than " + Integer.MAX_VALUE + " sales");
+		}
+		if (null != journal) {
+			try {
+				journal.logSale(productType, value, accepted);
+			}
+			catch (IOException e) {
+				throw new SalesException("Unable to record sale", e);
+			}
+		}
+		int typeId = storeSales(productType, value, accepted);
+		
+		if (!windows.isEmpty()) {
+			long timestamp = clock.millis();
+			for (int i = 0; i < windows.size(); i++) {
+				windows.get(i).add(typeId, value, accepted, timestamp, salesCount);
+			}
+		}
+		
+		// Advance to each logging point in turn, so that every report includes exactly
+		// the sales recorded up to that point.
+		int remaining = accepted;
+		while (0 < remaining) {
+			setState(State.RUNNING);
+			int toNextLog = logInterval - (salesCount % logInterval);
+			int count = Math.min(remaining, toNextLog);
+			
+			salesTotals.add(typeId, value, count);
+			if (null != topTypes) {
+				topTypes.add(typeId, value, count);
+			}
+			salesCount += count;
+			remaining -= count;
+			processSales();
+		}
+		if (0 < accepted) {
+			publishView(typeId, productType);
+		}
+		
+		try {
+			checkSnapshotDue();
+		}
+		catch (IOException e) {
+			throw new SalesException("Unable to take snapshot", e);
+		}
+		
+		return accepted;
+	}
+	
+
+	/*
+	 * Move the service into a new state, noting the change in the metrics.
+	 */
+	private void setState(State newState) {
+		if (newState != currState) {
+			currState = newState;
+			if (null != metrics) {
+				metrics.stateChanged(newState);
+			}
+		}
+	}
+	
+
+	/*
+	 * Store a number of items sold, returning the id of their type.
+	 */
+	private int storeSales(String productType, int value, int volume) {
+		int typeId = productTypes.register(productType);
+		int adjustmentIndex = saleModifications.getModificationCount(productType);
+		receivedSales.add(typeId, value, volume, salesCount, adjustmentIndex);
+		if (null != salesIndex) {
+			salesIndex.add(typeId, value, volume, adjustmentIndex);
+		}
+		
+		return typeId;
 	}
 	
 
 	/*
 	 * Processes the current record of sales, logging if necessary (which occurs once
 	 * every 10 sales) or suspending the service's ability to process sales (which
-	 * occurs once 50 sales have been recorded). 
+	 * occurs at the pause point given by the flow control policy). 
 	 */
-	private void processSales() {
-		if (0 == receivedSales.size() % this.logInterval) {
-			currState = State.LOGGING;
-			List<SalesReportItem> report = generateReport();
-			printReport(report);
+	private void processSales() throws SalesException {
+		if (0 == salesCount % this.logInterval) {
+			setState(State.LOGGING);
+			if (reporting) {
+				reportSales();
+			}
 		}
-		if (this.pauseInterval == receivedSales.size()) {
-			currState = State.PAUSED;
-			logModifications();
+		if (this.pausePoint == salesCount) {
+			setState(State.PAUSED);
+			if (reporting) {
+				reportSink.reportModifications(new ModificationRecord(saleModifications));
+			}
+			
+			// No further sales arrive until the service is resumed, so nothing logged
+			// should wait for the commit interval to be reached.
+			if (null != journal) {
+				try {
+					journal.commit();
+				}
+				catch (IOException e) {
+					throw new SalesException("Unable to commit sales", e);
+				}
+			}
+		}
+	}
+	
+	
+	/*
+	 * Build the report for a logging point, and pass it to the sink.
+	 */
+	private void reportSales() {
+		long startNanos = (null == metrics) ? 0 : System.nanoTime();
+		List<SalesReportItem> report = (null == topTypes) ? createReport(salesTotals)
+				: topTypes.createValueReport(salesTotals, productTypes);
+		
+		if (null == metrics) {
+			reportSink.reportSales(report);
+		}
+		else {
+			metrics.reportGenerated(startNanos);
+			startNanos = System.nanoTime();
+			reportSink.reportSales(report);
+			metrics.reportSent(startNanos);
 		}
 	}
 	
@@ -133,32 +806,359 @@ public class SalesMessagesService implements SalesService {
 	 * - The type of the item.
 	 * - The number of that type of item sold.
 	 * - The total cost of the items sold.
+	 * 
+	 * The report is built from the running totals for each type, so its cost depends
+	 * on the number of types sold rather than the number of sales.
 	 */
-	public List<SalesReportItem> generateReport() {
-		List<SalesReportItem> report;
+	public synchronized List<SalesReportItem> generateReport() {
+		if (null == metrics) {
+			return createReport(salesTotals);
+		}
 		
-		Map<String, SalesReportItem> discoveredTypes = new HashMap<String, SalesReportItem>();
+		long startNanos = System.nanoTime();
+		List<SalesReportItem> report = createReport(salesTotals);
+		metrics.reportGenerated(startNanos);
+		return report;
+	}
+	
+	/**
+	 * Generate a report of the types leading by the number of items sold and by their
+	 * total value, as tracked once {@link #setTopTypesReports(int)} has been called.  The
+	 * cost of the report depends on the number of types reported rather than the number
+	 * sold.
+	 * 
+	 * @return The report.
+	 * @throws IllegalStateException if the leading types are not being tracked.
+	 */
+	public synchronized TopTypesReport generateTopTypesReport() {
+		if (null == topTypes) {
+			throw new IllegalStateException("Leading types are not being tracked");
+		}
+		return topTypes.createReport(salesTotals, productTypes);
+	}
+	
+	
+	/**
+	 * Returns the number of items of a type sold and their total value, from the running
+	 * totals.
+	 * 
+	 * @param productType  The type.
+	 * @return The report item for the type, or null if no items of the type have been sold.
+	 */
+	public synchronized SalesReportItem getTypeReport(String productType) {
+		int typeId = productTypes.getTypeId(productType);
 		
-		for (Sale currSale : receivedSales) {
-			String currType = currSale.getProductType();
-			
-			SalesReportItem currReportItem = discoveredTypes.get(currType);
-			if (null == currReportItem) {
-				currReportItem = new SalesReportItem(currType, 1, currSale.getValue());
-				discoveredTypes.put(currType, currReportItem);
+		if ((0 > typeId) || (0 == salesTotals.getNumItems(typeId))) {
+			return null;
+		}
+		return salesTotals.createReportItem(typeId, productType);
+	}
+	
+	/**
+	 * Returns the types with the greatest total value, from the running totals.  Unlike
+	 * the report of {@link #generateTopTypesReport()}, the values are exact, and the cost
+	 * depends on the number of types sold.
+	 * 
+	 * @param numTypes  The greatest number of types to return.
+	 * @return The report items for the types, in decreasing order of total value.
+	 */
+	public synchronized List<SalesReportItem> getTopTypesByValue(int numTypes) {
+		Comparator<SalesReportItem> byValue = new Comparator<SalesReportItem>() {
+			@Override
+			public int compare(SalesReportItem first, SalesReportItem second) {
+				return first.getExactTotalValue().compareTo(second.getExactTotalValue());
 			}
-			else {
-				currReportItem.setNumItems(currReportItem.getNumItems() + 1);
-				currReportItem.setTotalValue(currReportItem.getTotalValue() + currSale.getValue());
+		};
+		
+		// Keep the leading types seen so far, with the least of them at the head.
+		PriorityQueue<SalesReportItem> leading = new PriorityQueue<SalesReportItem>(Math.max(1, numTypes), byValue);
+		for (int typeId = 0; (0 < numTypes) && (typeId < productTypes.size()); typeId++) {
+			if (0 < salesTotals.getNumItems(typeId)) {
+				leading.add(salesTotals.createReportItem(typeId, productTypes.getProductType(typeId)));
+				if (numTypes < leading.size()) {
+					leading.poll();
+				}
 			}
 		}
 		
-		report = new ArrayList<SalesReportItem>(discoveredTypes.values());
+		List<SalesReportItem> report = new ArrayList<SalesReportItem>(leading);
+		Collections.sort(report, Collections.reverseOrder(byValue));
+		return report;
+	}
+	
+	/**
+	 * Find the stored sales of a type whose current value, once all modifications made
+	 * to the type since they were recorded have been applied, falls within a range.  
+	 * Once {@link #enableSalesIndex()} has been called the cost depends on the number of
+	 * modifications made to the type, rather than the number of sales.
+	 * 
+	 * As for {@link #recalculateReport()}, sales known only by the totals of the 
+	 * snapshot from which the service was restored are not included.
+	 * 
+	 * @param productType  The type.
+	 * @param minValue     The least current value of an item included, in pence.
+	 * @param maxValue     The greatest current value of an item included, in pence.
+	 * @return The number of items found, and their total current value.
+	 * @throws IllegalStateException if the stored sales are not being indexed.
+	 */
+	public synchronized SalesReportItem findSalesInRange(String productType, long minValue, long maxValue) {
+		if (null == salesIndex) {
+			throw new IllegalStateException("Stored sales are not being indexed");
+		}
+		int typeId = productTypes.getTypeId(productType);
+		
+		if (0 > typeId) {
+			return new SalesReportItem(productType, 0, 0);
+		}
+		return salesIndex.summarise(typeId, productType, saleModifications.getTransformsForType(productType), 
+				minValue, maxValue);
+	}
+	
+	
+	/**
+	 * Generate a report of all sale items currently received, by revisiting every
+	 * stored sale rather than using the running totals.
+	 * This is considerably more expensive than {@link #generateReport()}, and is 
+	 * intended for auditing the running totals.
+	 * 
+	 * @throws ArithmeticException if the adjusted value of any single sale is beyond
+	 *             the range of a long.
+	 */
+	public synchronized List<SalesReportItem> recalculateReport() {
+		TypeTotals totals = baselineTotals();
+		addEntries(totals, 0, receivedSales.size(), new AdjustmentTransform[productTypes.size()][]);
+		
+		return createReport(totals);
+	}
+	
+	/**
+	 * Generate a report of all sale items currently received, by revisiting every
+	 * stored sale as {@link #recalculateReport()} does, but dividing the stored sales
+	 * between the threads of the common fork-join pool.
+	 * 
+	 * @throws ArithmeticException if the adjusted value of any single sale is beyond
+	 *             the range of a long.
+	 */
+	public List<SalesReportItem> recalculateReportInParallel() {
+		return recalculateReportInParallel(ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Generate a report of all sale items currently received, by revisiting every
+	 * stored sale as {@link #recalculateReport()} does, but dividing the stored sales
+	 * between the threads of the given pool.  The totals for each part are exact, so 
+	 * the report is the same as that recalculated by a single thread.
+	 * 
+	 * No sales may be recorded or adjusted until the report is complete.
+	 * 
+	 * @param pool  The pool in which the stored sales are revisited.
+	 * @throws ArithmeticException if the adjusted value of any single sale is beyond
+	 *             the range of a long.
+	 */
+	public synchronized List<SalesReportItem> recalculateReportInParallel(ForkJoinPool pool) {
+		TypeTotals totals = baselineTotals();
+		
+		// Work out the adjustments for every type before the work is divided, so that
+		// they are shared by all of the threads.
+		AdjustmentTransform[][] typeTransforms = new AdjustmentTransform[productTypes.size()][];
+		for (int typeId = 0; typeId < typeTransforms.length; typeId++) {
+			typeTransforms[typeId] = saleModifications.getTransformsForType(productTypes.getProductType(typeId));
+		}
+		
+		totals.addAll(pool.invoke(new RecalculationTask(0, receivedSales.size(), typeTransforms)));
+		return createReport(totals);
+	}
+	
+	
+	/*
+	 * Recalculates the totals for a range of the stored sales, dividing the range until
+	 * each part is small enough to be worked through by a single thread.
+	 */
+	private class RecalculationTask extends RecursiveTask<TypeTotals> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final int fromEntry;
+		private final int toEntry;
+		private final AdjustmentTransform[][] typeTransforms;
+		
+		RecalculationTask(int fromEntry, int toEntry, AdjustmentTransform[][] typeTransforms) {
+			this.fromEntry = fromEntry;
+			this.toEntry = toEntry;
+			this.typeTransforms = typeTransforms;
+		}
+		
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.RecursiveTask#compute()
+		 */
+		@Override
+		protected TypeTotals compute() {
+			if (PARALLEL_RECALCULATION_THRESHOLD >= toEntry - fromEntry) {
+				TypeTotals totals = new TypeTotals();
+				addEntries(totals, fromEntry, toEntry, typeTransforms);
+				return totals;
+			}
+			
+			int middle = (fromEntry + toEntry) >>> 1;
+			RecalculationTask lower = new RecalculationTask(fromEntry, middle, typeTransforms);
+			lower.fork();
+			TypeTotals totals = new RecalculationTask(middle, toEntry, typeTransforms).compute();
+			totals.addAll(lower.join());
+			return totals;
+		}
+	}
+	
+	
+	/*
+	 * Returns the totals for the sales made before the service was restored, which are
+	 * known only by their totals at the time of the snapshot, to which any later 
+	 * modifications are applied.
+	 */
+	private TypeTotals baselineTotals() {
+		TypeTotals totals = new TypeTotals();
+		
+		if (null != baseline) {
+			for (int typeId = 0; typeId < baseline.getProductTypes().length; typeId++) {
+				String productType = productTypes.getProductType(typeId);
+				int fromIndex = baseline.getModifications().getModificationCount(productType);
+				int toIndex = saleModifications.getModificationCount(productType);
+				
+				totals.restore(typeId, baseline.getNumItems(typeId), baseline.getTotalValue(typeId));
+				for (int i = fromIndex; i < toIndex; i++) {
+					totals.adjust(typeId, saleModifications.getOperation(productType, i), saleModifications.getValue(productType, i));
+				}
+			}
+		}
+		return totals;
+	}
+	
+	/*
+	 * Add the current values of a range of the stored sales to the totals.  The 
+	 * adjustments for each type are worked out once, rather than for every sale, and
+	 * kept in the given array.
+	 */
+	private void addEntries(TypeTotals totals, int fromEntry, int toEntry, AdjustmentTransform[][] typeTransforms) {
+		for (int entry = fromEntry; entry < toEntry; entry++) {
+			int typeId = receivedSales.getTypeId(entry);
+			
+			AdjustmentTransform[] transforms = typeTransforms[typeId];
+			if (null == transforms) {
+				transforms = saleModifications.getTransformsForType(productTypes.getProductType(typeId));
+				typeTransforms[typeId] = transforms;
+			}
+			totals.add(typeId, transforms[receivedSales.getAdjustmentIndex(entry)], receivedSales.getValue(entry), 
+					receivedSales.getVolume(entry));
+		}
+	}
+	
+	/*
+	 * Returns a report item for each type sold, from the given totals.
+	 */
+	private List<SalesReportItem> createReport(TypeTotals totals) {
+		List<SalesReportItem> report = new ArrayList<SalesReportItem>();
 		
+		// Types that have only been adjusted have no sales to report.
+		for (int typeId = 0; typeId < productTypes.size(); typeId++) {
+			if (0 < totals.getNumItems(typeId)) {
+				report.add(totals.createReportItem(typeId, productTypes.getProductType(typeId)));
+			}
+		}
 		return report;
 	}
 	
 	
+	/**
+	 * Returns the current value of a stored sale, once all modifications made to its
+	 * type since it was recorded have been applied.
+	 * 
+	 * @param index  The position of the sale, in the order in which sales were recorded.
+	 * @return The current value of the sale, in pence.
+	 * @throws ArithmeticException if the value is beyond the range of a long.
+	 */
+	public synchronized long getSaleValue(int index) {
+		return getSaleTransform(index).apply(receivedSales.getValue(receivedSales.findEntry(index)));
+	}
+	
+	/**
+	 * Returns the exact current value of a stored sale, once all modifications made to
+	 * its type since it was recorded have been applied.
+	 * 
+	 * @param index  The position of the sale, in the order in which sales were recorded.
+	 * @return The current value of the sale, in pence.
+	 */
+	public synchronized BigInteger getExactSaleValue(int index) {
+		return getSaleTransform(index).applyExact(receivedSales.getValue(receivedSales.findEntry(index)));
+	}
+	
+	/*
+	 * Returns the combined effect of the modifications made to the type of a stored sale
+	 * since it was recorded.
+	 */
+	private AdjustmentTransform getSaleTransform(int index) {
+		int entry = receivedSales.findEntry(index);
+		if (0 > entry) {
+			throw new IndexOutOfBoundsException("No sale at position " + index);
+		}
+		String productType = productTypes.getProductType(receivedSales.getTypeId(entry));
+		
+		return saleModifications.getTransformSince(productType, receivedSales.getAdjustmentIndex(entry));
+	}
+	
+	
+	/**
+	 * Export every stored sale, and the modifications made to each type, to a file for
+	 * offline analysis, see {@link SalesExportReader}.  The export is of the point at
+	 * which it starts.  As the stored sales and modifications are only ever added to,
+	 * the service is held only while the types and modifications are copied, and then
+	 * while each block of sales is copied, not while the file is written, so that sales
+	 * may be recorded throughout.
+	 * 
+	 * As for {@link #recalculateReport()}, sales known only by the totals of the 
+	 * snapshot from which the service was restored are not included.
+	 * 
+	 * @param file  The file written.
+	 * @throws IOException if the export cannot be written.
+	 */
+	public void exportSales(Path file) throws IOException {
+		String[] typeNames;
+		ModificationRecord modifications;
+		int numEntries;
+		synchronized (this) {
+			typeNames = new String[productTypes.size()];
+			for (int typeId = 0; typeId < typeNames.length; typeId++) {
+				typeNames[typeId] = productTypes.getProductType(typeId);
+			}
+			modifications = new ModificationRecord(saleModifications);
+			numEntries = receivedSales.size();
+		}
+		
+		try (SalesExportWriter writer = new SalesExportWriter(Files.newOutputStream(file), typeNames, modifications)) {
+			int blockSize = Math.min(SalesExportWriter.BLOCK_SIZE, numEntries);
+			int[] typeIds = new int[blockSize];
+			int[] values = new int[blockSize];
+			int[] volumes = new int[blockSize];
+			int[] firstIndexes = new int[blockSize];
+			int[] adjustmentIndexes = new int[blockSize];
+			
+			for (int start = 0; start < numEntries; start += blockSize) {
+				int count = Math.min(blockSize, numEntries - start);
+				synchronized (this) {
+					for (int i = 0; i < count; i++) {
+						typeIds[i] = receivedSales.getTypeId(start + i);
+						values[i] = receivedSales.getValue(start + i);
+						volumes[i] = receivedSales.getVolume(start + i);
+						firstIndexes[i] = receivedSales.getFirstIndex(start + i);
+						adjustmentIndexes[i] = receivedSales.getAdjustmentIndex(start + i);
+					}
+				}
+				for (int i = 0; i < count; i++) {
+					writer.add(typeIds[i], values[i], volumes[i], firstIndexes[i], adjustmentIndexes[i]);
+				}
+			}
+		}
+	}
+	
+	
 	/**
 	 * Returns the set of all modifications made to sale item types.
 	 * 
@@ -168,41 +1168,199 @@ public class SalesMessagesService implements SalesService {
 		return saleModifications;
 	}
 	
-
+	
+	/**
+	 * Take a snapshot of the state of the service, and start a new journal for the events
+	 * that follow it.  This has no effect if the service is not keeping a journal.
+	 * 
+	 * Snapshots are taken automatically once the number of events given when creating
+	 * the service have been logged.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void takeSnapshot() throws IOException {
+		if (null == journal) {
+			return;
+		}
+		long nextGeneration = journalGeneration + 1;
+		
+		String[] typeNames = new String[productTypes.size()];
+		int[] numItems = new int[typeNames.length];
+		BigInteger[] totalValues = new BigInteger[typeNames.length];
+		for (int typeId = 0; typeId < typeNames.length; typeId++) {
+			typeNames[typeId] = productTypes.getProductType(typeId);
+			numItems[typeId] = salesTotals.getNumItems(typeId);
+			totalValues[typeId] = salesTotals.getExactTotalValue(typeId);
+		}
+		new SalesSnapshot(nextGeneration, salesCount, resumeCount, typeNames, numItems, totalValues, saleModifications)
+				.write(journalDirectory.resolve(SNAPSHOT_FILE));
+		
+		// The snapshot covers every event in the current journal, which is no longer needed.
+		journal.close();
+		Files.deleteIfExists(getJournalFile(journalGeneration));
+		journalGeneration = nextGeneration;
+		journal = new SalesJournal(getJournalFile(journalGeneration), commitInterval);
+	}
+	
+	
+	/**
+	 * Commit the journal whenever events logged since the last commit have waited for the
+	 * given time, so that no more than this time's events may be lost on failure even if
+	 * the service falls idle before the commit interval is reached.  This has no effect
+	 * if the service is not keeping a journal.
+	 * 
+	 * @param maxDelay  The longest time for which an event is left uncommitted.
+	 * @param unit      The unit of the time.
+	 */
+	public synchronized void setMaxCommitDelay(long maxDelay, TimeUnit unit) {
+		if (null == journal) {
+			return;
+		}
+		if (null != commitScheduler) {
+			commitScheduler.shutdownNow();
+		}
+		commitScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "sales-journal-commit");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		commitScheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				commitPending();
+			}
+		}, maxDelay, maxDelay, unit);
+	}
+	
 	/*
-	 * Output the report to the console.
+	 * Commit any events logged since the last commit.
 	 */
-	private void printReport(List<SalesReportItem> report) {
-		System.out.println("Current sales report:");
-		System.out.println("Item Type\tQuantity Sold\tTotal Sales Value");
-		System.out.println("---------\t-------------\t-----------------");
-		for (SalesReportItem item : report) {
-			
-			String decimalValue = "£" + (item.getTotalValue() / 100) + "." + (item.getTotalValue() % 100); 
-			
-			System.out.println("- " + item.getItemType() + "\t\t" + item.getNumItems() + "\t\t" + decimalValue);
+	private synchronized void commitPending() {
+		if ((null != journal) && (0 < journal.getUncommittedCount())) {
+			try {
+				journal.commit();
+			}
+			catch (IOException e) {
+				if (null == commitFailure) {
+					commitFailure = e;
+				}
+			}
 		}
-		System.out.println("End report.\n");
 	}
 	
 	
 	/*
-	 * Log the changes made to any item types to the console.
+	 * Take a snapshot if enough events have been logged since the last.
 	 */
-	private void logModifications() {
-		Set<String> modifiedTypes = saleModifications.getModifiedTypes();
-		
-		System.out.println("Recorded Modifications");
-		System.out.println("----------------------");
+	private void checkSnapshotDue() throws IOException {
+		if ((null != journal) && (0 < snapshotInterval) && (snapshotInterval <= journal.getRecordCount())) {
+			takeSnapshot();
+		}
+	}
+	
+	
+	/*
+	 * Restore the service from the latest snapshot and the journal that follows it, then
+	 * open the journal for further events.  No reports are produced for the events
+	 * replayed.
+	 */
+	private void recover() throws IOException {
+		Files.createDirectories(journalDirectory);
 		
-		for (String currType : modifiedTypes) {
-			System.out.println("- " + currType + " :");
+		Path snapshotFile = journalDirectory.resolve(SNAPSHOT_FILE);
+		if (Files.exists(snapshotFile)) {
+			baseline = SalesSnapshot.read(snapshotFile);
+			journalGeneration = baseline.getGeneration();
 			
-			for (ModificationRecordItem currItem : saleModifications.getModificationsForType(currType)) {
-				System.out.println("\t" + currItem.getOperation());
+			String[] typeNames = baseline.getProductTypes();
+			for (int typeId = 0; typeId < typeNames.length; typeId++) {
+				productTypes.register(typeNames[typeId]);
+				salesTotals.restore(typeId, baseline.getNumItems(typeId), baseline.getTotalValue(typeId));
+				
+				ModificationRecord baselineModifications = baseline.getModifications();
+				for (int i = 0; i < baselineModifications.getModificationCount(typeNames[typeId]); i++) {
+					saleModifications.recordModification(typeNames[typeId], 
+							baselineModifications.getOperation(typeNames[typeId], i), baselineModifications.getValue(typeNames[typeId], i));
+				}
 			}
+			salesCount = baseline.getSalesCount();
+			resumeCount = baseline.getResumeCount();
+		}
+		
+		Path journalFile = getJournalFile(journalGeneration);
+		if (Files.exists(journalFile)) {
+			SalesJournal.replay(journalFile, new SalesJournal.Listener() {
+				@Override
+				public void sale(String productType, int value, int volume) {
+					int typeId = storeSales(productType, value, volume);
+					salesTotals.add(typeId, value, volume);
+					salesCount += volume;
+				}
+				
+				@Override
+				public void adjustment(String productType, adjustmentOperation operation, int value) {
+					applyAdjustment(productType, operation, value);
+				}
+				
+				@Override
+				public void resumed() {
+					resumeCount = salesCount;
+				}
+			});
+		}
+		
+		// Remove the journals of earlier generations, left behind if the service stopped 
+		// while taking a snapshot.
+		try (DirectoryStream<Path> journals = Files.newDirectoryStream(journalDirectory, JOURNAL_PREFIX + "*" + JOURNAL_SUFFIX)) {
+			for (Path oldJournal : journals) {
+				if (!oldJournal.getFileName().equals(journalFile.getFileName())) {
+					Files.deleteIfExists(oldJournal);
+				}
+			}
+		}
+		journal = new SalesJournal(journalFile, commitInterval);
+		
+		pausePoint = flowControlPolicy.getPausePoint(resumeCount);
+		if (isPauseDue()) {
+			setState(State.PAUSED);
+		}
+		else if ((0 < salesCount) && (0 == salesCount % logInterval)) {
+			setState(State.LOGGING);
+		}
+	}
+	
+	
+	/*
+	 * Returns the journal file for a given generation.
+	 */
+	private Path getJournalFile(long generation) {
+		return journalDirectory.resolve(JOURNAL_PREFIX + generation + JOURNAL_SUFFIX);
+	}
+	
+	
+	/**
+	 * Commit any events not yet committed to the journal, and close it.  This has no 
+	 * effect if the service is not keeping a journal.
+	 * 
+	 * @throws IOException if the journal cannot be committed, or an earlier commit made
+	 *             after the time limit failed.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (null != commitScheduler) {
+			commitScheduler.shutdownNow();
+			commitScheduler = null;
+		}
+		if (null != journal) {
+			journal.close();
+			journal = null;
+		}
+		if (null != commitFailure) {
+			throw commitFailure;
 		}
-		System.out.println("\nMessage processing now paused.\n");
 	}
 	
 }
@@ -0,0 +1,285 @@
+/**
+ * Metrics for the hot paths of a sales service: counts of the sales and adjustments
+ * made, the time taken to record them and to produce reports, the size of the store of
+ * sales, and the time spent in each state.
+ *
+ * Counts are kept in striped counters and durations in lock-free histograms, so that
+ * recording them adds little to each operation, and they may be read from any thread
+ * while the service is in use, either all at once through {@link #getSnapshot()} or
+ * one at a time through JMX once {@link #register(String)} has been called.
+ */
+package mjr.techtest.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import mjr.techtest.impl.SalesMessagesService.State;
+
+/**
+ * Metrics are created by the service, see {@link SalesMessagesService#enableMetrics()}.
+ *
+ * @author mrowe
+ *
+ */
+public class SalesMetrics implements SalesMetricsMXBean {
+
+	private final LongAdder salesRecorded = new LongAdder();
+	private final LongAdder salesRejected = new LongAdder();
+	private final LongAdder adjustments = new LongAdder();
+	private final LongAdder reportsSent = new LongAdder();
+
+	private final LatencyRecorder recordSaleLatency = new LatencyRecorder();
+	private final LatencyRecorder adjustSaleLatency = new LatencyRecorder();
+	private final LatencyRecorder generateReportLatency = new LatencyRecorder();
+	private final LatencyRecorder reportSinkLatency = new LatencyRecorder();
+
+	private volatile int storedSales;
+	private volatile int salesCount;
+
+	// The time spent in each state before the current one, and the current state with
+	// the time at which it was entered.
+	private final AtomicLongArray stateNanos = new AtomicLongArray(State.values().length);
+	private volatile State state;
+	private volatile long stateSince;
+
+	private ObjectName registeredName = null;
+
+
+	SalesMetrics(State state, int storedSales, int salesCount) {
+		this.state = state;
+		this.stateSince = System.nanoTime();
+		this.storedSales = storedSales;
+		this.salesCount = salesCount;
+	}
+
+
+	/**
+	 * Record an attempt to add sales.
+	 *
+	 * @param accepted     The number of items recorded.
+	 * @param rejected     The number of items rejected because the service paused.
+	 * @param startNanos   The time at which the attempt started.
+	 * @param storedSales  The number of entries now stored.
+	 * @param salesCount   The number of individual sales now recorded.
+	 */
+	void salesRecorded(int accepted, int rejected, long startNanos, int storedSales, int salesCount) {
+		recordSaleLatency.recordSince(startNanos);
+		salesRecorded.add(accepted);
+		if (0 < rejected) {
+			salesRejected.add(rejected);
+		}
+		this.storedSales = storedSales;
+		this.salesCount = salesCount;
+	}
+
+	/**
+	 * Record an adjustment.
+	 *
+	 * @param startNanos  The time at which the adjustment started.
+	 */
+	void saleAdjusted(long startNanos) {
+		adjustSaleLatency.recordSince(startNanos);
+		adjustments.increment();
+	}
+
+	/**
+	 * Record the generation of a report.
+	 *
+	 * @param startNanos  The time at which the generation started.
+	 */
+	void reportGenerated(long startNanos) {
+		generateReportLatency.recordSince(startNanos);
+	}
+
+	/**
+	 * Record the passing of a report to the report sink.
+	 *
+	 * @param startNanos  The time at which the report was passed to the sink.
+	 */
+	void reportSent(long startNanos) {
+		reportSinkLatency.recordSince(startNanos);
+		reportsSent.increment();
+	}
+
+	/**
+	 * Record a change in the state of the service.  Changes are made by only one
+	 * thread at a time.
+	 *
+	 * @param newState  The state entered.
+	 */
+	void stateChanged(State newState) {
+		long now = System.nanoTime();
+		stateNanos.addAndGet(state.ordinal(), now - stateSince);
+		stateSince = now;
+		state = newState;
+	}
+
+
+	/**
+	 * @return The values of all of the metrics at this point.
+	 */
+	public SalesMetricsSnapshot getSnapshot() {
+		return new SalesMetricsSnapshot(getSalesRecorded(), getSalesRejected(), getAdjustments(), getReportsSent(),
+				getStoredSales(), getSalesCount(), state, getTimeInState(State.RUNNING),
+				getTimeInState(State.LOGGING), getTimeInState(State.PAUSED), getRecordSaleLatency(),
+				getAdjustSaleLatency(), getGenerateReportLatency(), getReportSinkLatency());
+	}
+
+	/**
+	 * @param inState  A state.
+	 * @return The time spent in the state since metrics were enabled, in nanoseconds.
+	 */
+	public long getTimeInState(State inState) {
+		long nanos = stateNanos.get(inState.ordinal());
+		return (inState == state) ? nanos + (System.nanoTime() - stateSince) : nanos;
+	}
+
+
+	/**
+	 * Register the metrics with the platform MBean server, so that they may be read
+	 * over JMX.
+	 *
+	 * @param name  The name distinguishing this service from any others.
+	 * @return The name under which the metrics are registered.
+	 * @throws JMException if the metrics cannot be registered.
+	 */
+	public synchronized ObjectName register(String name) throws JMException {
+		if (null != registeredName) {
+			throw new IllegalStateException("Metrics are already registered as " + registeredName);
+		}
+		ObjectName objectName = new ObjectName("mjr.techtest:type=SalesMetrics,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		registeredName = objectName;
+		return objectName;
+	}
+
+	/**
+	 * Remove the metrics from the platform MBean server, if registered.
+	 *
+	 * @throws JMException if the metrics cannot be removed.
+	 */
+	public synchronized void unregister() throws JMException {
+		if (null != registeredName) {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+			registeredName = null;
+		}
+	}
+
+
+	/* (non-Javadoc)
+	 * @see mjr.techtest.impl.SalesMetricsMXBean#getSalesRecorded()
+	 */
+	@Override
+	public long getSalesRecorded() {
+		return salesRecorded.sum();
+	}
+
+	/* (non-Javadoc)
+	 * @see mjr.techtest.impl.SalesMetricsMXBean#getSalesRejected()
+	 */
+	@Override
+	public long getSalesRejected() {
+		return salesRejected.sum();
+	}
+
+	/* (non-Javadoc)
+	 * @see mjr.techtest.impl.SalesMetricsMXBean#getAdjustments()
+	 */
+	@Override
+	public long getAdjustments() {
+		return adjustments.sum();
+	}
+
+	/* (non-Javadoc)
+	 * @see mjr.techtest.impl.SalesMetricsMXBean#getReportsSent()
+	 */
+	@Override
+	public long getReportsSent() {
+		return reportsSent.sum();
+	}
+
+	/* (non-Javadoc)
+	 * @see mjr.techtest.impl.SalesMetricsMXBean#getStoredSales()
+	 */
+	@Override
+	public int getStoredSales() {
+		return storedSales;
+	}
+
+	/* (non-Javadoc)
+	 * @see mjr.techtest.impl.SalesMetricsMXBean#getSalesCount()
+	 */
+	@Override
+	public int getSalesCount() {
+		return salesCount;
+	}
+
+	/* (non-Javadoc)
+	 * @see mjr.techtest.impl.SalesMetricsMXBean#getState()
+	 */
+	@Override
+	public String getState() {
+		return state.name();
+	}
+
+	/* (non-Javadoc)
+	 * @see mjr.techtest.impl.SalesMetricsMXBean#getRunningNanos()
+	 */
+	@Override
+	public long getRunningNanos() {
+		return getTimeInState(State.RUNNING);
+	}
+
+	/* (non-Javadoc)
+	 * @see mjr.techtest.impl.SalesMetricsMXBean#getLoggingNanos()
+	 */
+	@Override
+	public long getLoggingNanos() {
+		return getTimeInState(State.LOGGING);
+	}
+
+	/* (non-Javadoc)
+	 * @see mjr.techtest.impl.SalesMetricsMXBean#getPausedNanos()
+	 */
+	@Override
+	public long getPausedNanos() {
+		return getTimeInState(State.PAUSED);
+	}
+
+	/* (non-Javadoc)
+	 * @see mjr.techtest.impl.SalesMetricsMXBean#getRecordSaleLatency()
+	 */
+	@Override
+	public LatencySummary getRecordSaleLatency() {
+		return recordSaleLatency.getSummary();
+	}
+
+	/* (non-Javadoc)
+	 * @see mjr.techtest.impl.SalesMetricsMXBean#getAdjustSaleLatency()
+	 */
+	@Override
+	public LatencySummary getAdjustSaleLatency() {
+		return adjustSaleLatency.getSummary();
+	}
+
+	/* (non-Javadoc)
+	 * @see mjr.techtest.impl.SalesMetricsMXBean#getGenerateReportLatency()
+	 */
+	@Override
+	public LatencySummary getGenerateReportLatency() {
+		return generateReportLatency.getSummary();
+	}
+
+	/* (non-Javadoc)
+	 * @see mjr.techtest.impl.SalesMetricsMXBean#getReportSinkLatency()
+	 */
+	@Override
+	public LatencySummary getReportSinkLatency() {
+		return reportSinkLatency.getSummary();
+	}
+
+}
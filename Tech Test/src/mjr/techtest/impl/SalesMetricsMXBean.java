@@ -0,0 +1,83 @@
+/**
+ * Management interface through which the metrics of a sales service are read over JMX.
+ * Latencies are given as composite data, and all durations are in nanoseconds.
+ */
+package mjr.techtest.impl;
+
+/**
+ * @author mrowe
+ *
+ */
+public interface SalesMetricsMXBean {
+
+	/**
+	 * @return The number of individual sales recorded since metrics were enabled.
+	 */
+	public long getSalesRecorded();
+
+	/**
+	 * @return The number of individual sales rejected because the service was paused.
+	 */
+	public long getSalesRejected();
+
+	/**
+	 * @return The number of adjustments made.
+	 */
+	public long getAdjustments();
+
+	/**
+	 * @return The number of reports sent to the report sink as sales were recorded.
+	 */
+	public long getReportsSent();
+
+	/**
+	 * @return The number of entries held in the store of recorded sales.
+	 */
+	public int getStoredSales();
+
+	/**
+	 * @return The number of individual sales recorded in total.
+	 */
+	public int getSalesCount();
+
+	/**
+	 * @return The current state of the service.
+	 */
+	public String getState();
+
+	/**
+	 * @return The time spent running since metrics were enabled.
+	 */
+	public long getRunningNanos();
+
+	/**
+	 * @return The time spent logging since metrics were enabled.
+	 */
+	public long getLoggingNanos();
+
+	/**
+	 * @return The time spent paused since metrics were enabled.
+	 */
+	public long getPausedNanos();
+
+	/**
+	 * @return The time taken to record sales.
+	 */
+	public LatencySummary getRecordSaleLatency();
+
+	/**
+	 * @return The time taken to make adjustments.
+	 */
+	public LatencySummary getAdjustSaleLatency();
+
+	/**
+	 * @return The time taken to generate reports.
+	 */
+	public LatencySummary getGenerateReportLatency();
+
+	/**
+	 * @return The time taken to pass reports to the report sink.
+	 */
+	public LatencySummary getReportSinkLatency();
+
+}
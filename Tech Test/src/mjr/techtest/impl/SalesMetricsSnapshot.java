@@ -0,0 +1,108 @@
+/**
+ * The values of the metrics of a sales service at a single point.  All durations are
+ * in nanoseconds.
+ */
+package mjr.techtest.impl;
+
+import mjr.techtest.impl.SalesMessagesService.State;
+
+/**
+ * @author mrowe
+ *
+ */
+public class SalesMetricsSnapshot {
+
+	private final long salesRecorded;
+	private final long salesRejected;
+	private final long adjustments;
+	private final long reportsSent;
+	private final int storedSales;
+	private final int salesCount;
+	private final State state;
+	private final long runningNanos;
+	private final long loggingNanos;
+	private final long pausedNanos;
+	private final LatencySummary recordSaleLatency;
+	private final LatencySummary adjustSaleLatency;
+	private final LatencySummary generateReportLatency;
+	private final LatencySummary reportSinkLatency;
+
+
+	public SalesMetricsSnapshot(long salesRecorded, long salesRejected, long adjustments, long reportsSent,
+			int storedSales, int salesCount, State state, long runningNanos, long loggingNanos, long pausedNanos,
+			LatencySummary recordSaleLatency, LatencySummary adjustSaleLatency,
+			LatencySummary generateReportLatency, LatencySummary reportSinkLatency) {
+		this.salesRecorded = salesRecorded;
+		this.salesRejected = salesRejected;
+		this.adjustments = adjustments;
+		this.reportsSent = reportsSent;
+		this.storedSales = storedSales;
+		this.salesCount = salesCount;
+		this.state = state;
+		this.runningNanos = runningNanos;
+		this.loggingNanos = loggingNanos;
+		this.pausedNanos = pausedNanos;
+		this.recordSaleLatency = recordSaleLatency;
+		this.adjustSaleLatency = adjustSaleLatency;
+		this.generateReportLatency = generateReportLatency;
+		this.reportSinkLatency = reportSinkLatency;
+	}
+
+
+	public long getSalesRecorded() {
+		return salesRecorded;
+	}
+
+	public long getSalesRejected() {
+		return salesRejected;
+	}
+
+	public long getAdjustments() {
+		return adjustments;
+	}
+
+	public long getReportsSent() {
+		return reportsSent;
+	}
+
+	public int getStoredSales() {
+		return storedSales;
+	}
+
+	public int getSalesCount() {
+		return salesCount;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public long getRunningNanos() {
+		return runningNanos;
+	}
+
+	public long getLoggingNanos() {
+		return loggingNanos;
+	}
+
+	public long getPausedNanos() {
+		return pausedNanos;
+	}
+
+	public LatencySummary getRecordSaleLatency() {
+		return recordSaleLatency;
+	}
+
+	public LatencySummary getAdjustSaleLatency() {
+		return adjustSaleLatency;
+	}
+
+	public LatencySummary getGenerateReportLatency() {
+		return generateReportLatency;
+	}
+
+	public LatencySummary getReportSinkLatency() {
+		return reportSinkLatency;
+	}
+
+}
@@ -0,0 +1,430 @@
+/**
+ * Replays a file of sale and adjustment messages, in the format described by
+ * SalesMessageCodec, through a sales service, as quickly as the service can apply
+ * them.
+ *
+ * The file is mapped into memory a region at a time, and divided into chunks of
+ * messages.  Finding where each message ends needs only its first two bytes, so this
+ * is done in order by the replaying thread, while the chunks are decoded in parallel
+ * into columns of kinds, type ids and values, with the product types of each chunk
+ * found by their bytes without creating a String for each message.  The decoded
+ * chunks are then applied to the service strictly in the order of the file, holding
+ * the lock of the service once for each chunk.  The service therefore reports and
+ * pauses exactly as it would if each message were recorded in turn, and sales
+ * received while it is paused are rejected and counted.  A message not in the expected
+ * format ends the replay with the same error as SalesMessageDecoder gives, once every
+ * message before it has been applied.
+ *
+ * In silent mode the service builds no reports while replaying, and only the report of
+ * the final totals and modifications is passed to the report sink.
+ */
+package mjr.techtest.impl;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import mjr.techtest.SalesException;
+import mjr.techtest.SalesService.adjustmentOperation;
+
+/**
+ * @author mrowe
+ *
+ */
+public class SalesReplayer {
+
+	// The largest part of the file mapped at once.
+	private static final int REGION_SIZE = 1 << 28;
+
+	// The greatest number of messages in a chunk.
+	private static final int CHUNK_SIZE = 1 << 16;
+
+	// The kind given to messages that are not valid.
+	private static final byte INVALID = 0;
+
+	private static final adjustmentOperation[] OPERATIONS = adjustmentOperation.values();
+
+	private final SalesMessagesService service;
+	private boolean silent = false;
+
+	private long messageCount = 0;
+	private long rejectedCount = 0;
+	private long invalidCount = 0;
+
+
+	/**
+	 * @param service  The service through which messages are replayed.
+	 */
+	public SalesReplayer(SalesMessagesService service) {
+		this.service = service;
+	}
+
+
+	/**
+	 * Set whether the reports that would be produced while replaying are left out,
+	 * leaving only the final report.  By default every report is passed to the report
+	 * sink of the service.
+	 *
+	 * @param silent  true to produce only the final report.
+	 */
+	public void setSilent(boolean silent) {
+		this.silent = silent;
+	}
+
+	/**
+	 * @return The number of messages replayed, including those rejected or not valid.
+	 */
+	public long getMessageCount() {
+		return messageCount;
+	}
+
+	/**
+	 * @return The number of sale messages of which some or all items were rejected as
+	 *             the service was paused.
+	 */
+	public long getRejectedCount() {
+		return rejectedCount;
+	}
+
+	/**
+	 * @return The number of messages that were not valid, and so were not applied.
+	 */
+	public long getInvalidCount() {
+		return invalidCount;
+	}
+
+
+	/**
+	 * Replay a file of messages, decoding them on the threads of the common fork-join
+	 * pool.
+	 *
+	 * @param file  The file of messages.
+	 * @return The number of messages replayed.
+	 * @throws IOException if the file cannot be read, or does not hold messages in the
+	 *             expected format.
+	 * @throws SalesException if a sale cannot be recorded in the journal of the service.
+	 */
+	public long replay(Path file) throws IOException, SalesException {
+		return replay(file, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Replay a file of messages, decoding them on the threads of the given pool.
+	 *
+	 * @param file  The file of messages.
+	 * @param pool  The pool in which the messages are decoded.
+	 * @return The number of messages replayed.
+	 * @throws IOException if the file cannot be read, or does not hold messages in the
+	 *             expected format.
+	 * @throws SalesException if a sale cannot be recorded in the journal of the service.
+	 */
+	public long replay(Path file, ForkJoinPool pool) throws IOException, SalesException {
+		boolean reporting = service.isReporting();
+		if (silent) {
+			service.setReporting(false);
+		}
+
+		long replayed = 0;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			// Keep a few chunks being decoded ahead of the one being applied.
+			int maxPending = 2 * pool.getParallelism() + 1;
+			ArrayDeque<ForkJoinTask<DecodedChunk>> pending = new ArrayDeque<ForkJoinTask<DecodedChunk>>();
+			long position = 0;
+			long size = channel.size();
+
+			while (position < size) {
+				MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position,
+						Math.min(REGION_SIZE, size - position));
+
+				int start = 0;
+				int end;
+				while (start < (end = findChunkEnd(region, start))) {
+					if (maxPending == pending.size()) {
+						replayed += apply(pending.removeFirst().join());
+					}
+					pending.addLast(pool.submit(new DecodeTask(region, start, end)));
+					start = end;
+				}
+				StreamCorruptedException corruption = findCorruption(region, start);
+				if ((null == corruption) && (0 == start) && (region.limit() == size - position)) {
+					corruption = new StreamCorruptedException("Sales message truncated at " + position);
+				}
+				if (null != corruption) {
+					replayed += applyAll(pending);
+					throw corruption;
+				}
+				position += start;
+			}
+			replayed += applyAll(pending);
+		}
+		finally {
+			if (silent) {
+				service.setReporting(reporting);
+			}
+		}
+
+		if (silent) {
+			SalesReportSink reportSink = service.getReportSink();
+			reportSink.reportSales(service.generateReport());
+			synchronized (service) {
+				reportSink.reportModifications(new ModificationRecord(service.getSaleModifications()));
+			}
+		}
+		return replayed;
+	}
+
+
+	/*
+	 * Apply every chunk still being decoded, in order, returning the number of messages
+	 * applied.
+	 */
+	private long applyAll(ArrayDeque<ForkJoinTask<DecodedChunk>> pending) throws SalesException {
+		long applied = 0;
+		while (!pending.isEmpty()) {
+			applied += apply(pending.removeFirst().join());
+		}
+		return applied;
+	}
+
+
+	/*
+	 * Returns the end of the chunk of whole messages in the expected format starting at
+	 * the given position of the buffer, which is the start if no such message starts there.
+	 */
+	private static int findChunkEnd(ByteBuffer buffer, int start) {
+		int position = start;
+
+		for (int count = 0; count < CHUNK_SIZE; count++) {
+			int size = getMessageSize(buffer, position);
+			if ((0 >= size) || (OPERATIONS.length <= getOperation(buffer, position))) {
+				break;
+			}
+			position += size;
+		}
+		return position;
+	}
+
+	/*
+	 * Returns the size of the message at the given position of the buffer, 0 if the
+	 * buffer does not hold the whole message, or -1 if its kind is not known.
+	 */
+	private static int getMessageSize(ByteBuffer buffer, int position) {
+		if (position + 2 > buffer.limit()) {
+			return 0;
+		}
+		int bodySize;
+		switch (buffer.get(position)) {
+		case SalesMessageCodec.SALE:
+			bodySize = 4;
+			break;
+		case SalesMessageCodec.SALES:
+			bodySize = 4 + 4;
+			break;
+		case SalesMessageCodec.ADJUSTMENT:
+			bodySize = 1 + 4;
+			break;
+		default:
+			return -1;
+		}
+		int size = 2 + (buffer.get(position + 1) & 0xFF) + bodySize;
+		return (position + size > buffer.limit()) ? 0 : size;
+	}
+
+	/*
+	 * Returns the error that SalesMessageDecoder gives for the message at the given
+	 * position of the buffer, if it is whole but not in the expected format, or null.
+	 */
+	private static StreamCorruptedException findCorruption(ByteBuffer buffer, int position) {
+		int size = getMessageSize(buffer, position);
+		if (0 > size) {
+			return new StreamCorruptedException("Unknown sales message kind: " + buffer.get(position));
+		}
+		if ((0 < size) && (OPERATIONS.length <= getOperation(buffer, position))) {
+			return new StreamCorruptedException("Unknown adjustment operation: " + getOperation(buffer, position));
+		}
+		return null;
+	}
+
+	/*
+	 * Returns the operation of the whole message at the given position of the buffer, if
+	 * it is an adjustment, or 0.
+	 */
+	private static int getOperation(ByteBuffer buffer, int position) {
+		if (SalesMessageCodec.ADJUSTMENT != buffer.get(position)) {
+			return 0;
+		}
+		return buffer.get(position + 2 + (buffer.get(position + 1) & 0xFF)) & 0xFF;
+	}
+
+
+	/*
+	 * Apply a decoded chunk to the service, returning the number of messages in it.
+	 */
+	private int apply(DecodedChunk chunk) throws SalesException {
+		synchronized (service) {
+			for (int i = 0; i < chunk.numMessages; i++) {
+				String productType = chunk.types[chunk.typeIds[i]];
+
+				switch (chunk.kinds[i]) {
+				case SalesMessageCodec.SALE:
+				case SalesMessageCodec.SALES:
+					int volume = chunk.volumes[i];
+					if (service.offer(productType, chunk.values[i], volume) < volume) {
+						rejectedCount++;
+					}
+					break;
+				case SalesMessageCodec.ADJUSTMENT:
+					service.adjustSale(productType, OPERATIONS[chunk.volumes[i]], chunk.values[i]);
+					break;
+				default:
+					invalidCount++;
+				}
+			}
+		}
+		messageCount += chunk.numMessages;
+		return chunk.numMessages;
+	}
+
+
+	/*
+	 * The messages of a chunk, as columns, with the product types numbered from 0 in
+	 * the order in which they appear.  For an adjustment the volume holds the operation.
+	 */
+	private static class DecodedChunk {
+
+		private final byte[] kinds = new byte[CHUNK_SIZE];
+		private final int[] typeIds = new int[CHUNK_SIZE];
+		private final int[] values = new int[CHUNK_SIZE];
+		private final int[] volumes = new int[CHUNK_SIZE];
+		private int numMessages = 0;
+
+		private String[] types = new String[16];
+	}
+
+
+	/*
+	 * Decode the messages in part of a buffer, which must all be whole.
+	 */
+	private static class DecodeTask extends RecursiveTask<DecodedChunk> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final ByteBuffer buffer;
+		private final int start;
+		private final int end;
+
+		// An open-addressed table of the product types of the chunk, by their bytes.
+		private byte[][] typeBytes = new byte[64][];
+		private int[] slotTypeIds = new int[64];
+		private int numTypes = 0;
+
+		DecodeTask(ByteBuffer buffer, int start, int end) {
+			this.buffer = buffer;
+			this.start = start;
+			this.end = end;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.RecursiveTask#compute()
+		 */
+		@Override
+		protected DecodedChunk compute() {
+			DecodedChunk chunk = new DecodedChunk();
+			int position = start;
+
+			while (position < end) {
+				int i = chunk.numMessages++;
+				byte kind = buffer.get(position);
+				int typeLength = buffer.get(position + 1) & 0xFF;
+				int body = position + 2 + typeLength;
+
+				chunk.kinds[i] = kind;
+				chunk.typeIds[i] = findType(chunk, position + 2, typeLength);
+
+				if (SalesMessageCodec.ADJUSTMENT == kind) {
+					chunk.volumes[i] = buffer.get(body) & 0xFF;
+					chunk.values[i] = buffer.getInt(body + 1);
+					position = body + 1 + 4;
+				}
+				else {
+					chunk.values[i] = buffer.getInt(body);
+					chunk.volumes[i] = (SalesMessageCodec.SALES == kind) ? buffer.getInt(body + 4) : 1;
+					if (0 > chunk.values[i]) {
+						chunk.kinds[i] = INVALID;
+					}
+					position = body + ((SalesMessageCodec.SALES == kind) ? 8 : 4);
+				}
+				if (0 == typeLength) {
+					chunk.kinds[i] = INVALID;
+				}
+			}
+			return chunk;
+		}
+
+		/*
+		 * Returns the number within the chunk of the product type held in the buffer at
+		 * the given offset, numbering it if it has not been seen.
+		 */
+		private int findType(DecodedChunk chunk, int offset, int length) {
+			int mask = typeBytes.length - 1;
+			int slot = SalesMessageDecoder.hash(buffer, offset, length) & mask;
+
+			while (null != typeBytes[slot]) {
+				if (SalesMessageDecoder.matches(typeBytes[slot], buffer, offset, length)) {
+					return slotTypeIds[slot];
+				}
+				slot = (slot + 1) & mask;
+			}
+
+			byte[] type = new byte[length];
+			for (int i = 0; i < length; i++) {
+				type[i] = buffer.get(offset + i);
+			}
+			int typeId = numTypes++;
+			if (typeId == chunk.types.length) {
+				chunk.types = Arrays.copyOf(chunk.types, typeId * 2);
+			}
+			chunk.types[typeId] = new String(type, StandardCharsets.UTF_8);
+			typeBytes[slot] = type;
+			slotTypeIds[slot] = typeId;
+
+			if (numTypes * 2 > typeBytes.length) {
+				grow();
+			}
+			return typeId;
+		}
+
+		/*
+		 * Double the size of the table of product types.
+		 */
+		private void grow() {
+			byte[][] oldBytes = typeBytes;
+			int[] oldTypeIds = slotTypeIds;
+			typeBytes = new byte[oldBytes.length * 2][];
+			slotTypeIds = new int[oldBytes.length * 2];
+			int mask = typeBytes.length - 1;
+
+			for (int i = 0; i < oldBytes.length; i++) {
+				if (null != oldBytes[i]) {
+					int slot = SalesMessageDecoder.hash(ByteBuffer.wrap(oldBytes[i]), 0, oldBytes[i].length) & mask;
+					while (null != typeBytes[slot]) {
+						slot = (slot + 1) & mask;
+					}
+					typeBytes[slot] = oldBytes[i];
+					slotTypeIds[slot] = oldTypeIds[i];
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,66 @@
+/**
+ * Formatting of sales reports and modification records as text, shared by the
+ * destinations for reports.
+ */
+package mjr.techtest.impl;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * @author mrowe
+ *
+ */
+class SalesReportFormatter {
+
+	private static final String NEW_LINE = System.lineSeparator();
+	private static final BigInteger ONE_HUNDRED = BigInteger.valueOf(100);
+	
+	private SalesReportFormatter() {
+	}
+	
+	
+	/*
+	 * Append the text of a report to the given buffer.
+	 */
+	static void appendReport(StringBuilder output, List<SalesReportItem> report) {
+		output.append("Current sales report:").append(NEW_LINE);
+		output.append("Item Type\tQuantity Sold\tTotal Sales Value").append(NEW_LINE);
+		output.append("---------\t-------------\t-----------------").append(NEW_LINE);
+		for (SalesReportItem item : report) {
+			output.append("- ").append(item.getItemType()).append("\t\t").append(item.getNumItems()).append("\t\t");
+			if ((Long.MAX_VALUE == item.getTotalValue()) || (Long.MIN_VALUE == item.getTotalValue())) {
+				BigInteger[] poundsAndPence = item.getExactTotalValue().divideAndRemainder(ONE_HUNDRED);
+				output.append('£').append(poundsAndPence[0]).append('.').append(poundsAndPence[1]);
+			}
+			else {
+				output.append('£').append(item.getTotalValue() / 100).append('.').append(item.getTotalValue() % 100);
+			}
+			output.append(NEW_LINE);
+		}
+		output.append("End report.\n").append(NEW_LINE);
+	}
+	
+	
+	/*
+	 * Append the text of the changes made to any item types to the given buffer.
+	 */
+	static void appendModifications(StringBuilder output, ModificationRecord saleModifications) {
+		Set<String> modifiedTypes = saleModifications.getModifiedTypes();
+		
+		output.append("Recorded Modifications").append(NEW_LINE);
+		output.append("----------------------").append(NEW_LINE);
+		
+		for (String currType : modifiedTypes) {
+			output.append("- ").append(currType).append(" :").append(NEW_LINE);
+			
+			int numModifications = saleModifications.getModificationCount(currType);
+			for (int i = 0; i < numModifications; i++) {
+				output.append('\t').append(saleModifications.getOperation(currType, i)).append(NEW_LINE);
+			}
+		}
+		output.append("\nMessage processing now paused.\n").append(NEW_LINE);
+	}
+	
+}
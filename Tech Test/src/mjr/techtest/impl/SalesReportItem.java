@@ -1,16 +1,33 @@
 package mjr.techtest.impl;
 
+import java.math.BigInteger;
+
 public class SalesReportItem {
 
 	private String itemType;
 	private int numItems;
-	private int totalValue;
+	private long totalValue;
+	
+	// The exact total, where it is beyond the range of a long, or null.
+	private BigInteger exactTotalValue;
 	
-	public SalesReportItem(String itemType, int numItems, int totalValue) {
+	public SalesReportItem(String itemType, int numItems, long totalValue) {
 		this.itemType = itemType;
 		this.numItems = numItems;
 		this.totalValue = totalValue;
 	}
+	
+	/**
+	 * @param itemType    The type of the items.
+	 * @param numItems    The number of items sold.
+	 * @param totalValue  The exact total value of the items sold, which may be beyond
+	 *                        the range of a long.
+	 */
+	public SalesReportItem(String itemType, int numItems, BigInteger totalValue) {
+		this.itemType = itemType;
+		this.numItems = numItems;
+		setExactTotalValue(totalValue);
+	}
 
 	/**
 	 * @return the itemType
@@ -27,12 +44,20 @@ public class SalesReportItem {
 	}
 
 	/**
-	 * @return the totalValue
+	 * @return the totalValue, or the nearest value a long can hold if the total is
+	 *             beyond the range of a long.
 	 */
-	public int getTotalValue() {
+	public long getTotalValue() {
 		return totalValue;
 	}
 
+	/**
+	 * @return the exact totalValue
+	 */
+	public BigInteger getExactTotalValue() {
+		return (null == exactTotalValue) ? BigInteger.valueOf(totalValue) : exactTotalValue;
+	}
+
 	/**
 	 * @param itemType the itemType to set
 	 */
@@ -50,8 +75,23 @@ public class SalesReportItem {
 	/**
 	 * @param totalValue the totalValue to set
 	 */
-	public void setTotalValue(int totalValue) {
+	public void setTotalValue(long totalValue) {
 		this.totalValue = totalValue;
+		this.exactTotalValue = null;
+	}
+
+	/**
+	 * @param totalValue the exact totalValue to set, which may be beyond the range of a long
+	 */
+	public void setExactTotalValue(BigInteger totalValue) {
+		if (totalValue.bitLength() < Long.SIZE) {
+			this.totalValue = totalValue.longValue();
+			this.exactTotalValue = null;
+		}
+		else {
+			this.totalValue = (0 < totalValue.signum()) ? Long.MAX_VALUE : Long.MIN_VALUE;
+			this.exactTotalValue = totalValue;
+		}
 	}
 
 }
@@ -0,0 +1,35 @@
+/**
+ * Output of sales reports and modification records to the console, on the thread
+ * that recorded the sale for which the report is due.
+ */
+package mjr.techtest.impl;
+
+import java.util.List;
+
+/**
+ * @author mrowe
+ *
+ */
+public class SalesReportPrinter implements SalesReportSink {
+
+	/* (non-Javadoc)
+	 * @see mjr.techtest.impl.SalesReportSink#reportSales(java.util.List)
+	 */
+	@Override
+	public void reportSales(List<SalesReportItem> report) {
+		StringBuilder output = new StringBuilder();
+		SalesReportFormatter.appendReport(output, report);
+		System.out.print(output);
+	}
+	
+	/* (non-Javadoc)
+	 * @see mjr.techtest.impl.SalesReportSink#reportModifications(mjr.techtest.impl.ModificationRecord)
+	 */
+	@Override
+	public void reportModifications(ModificationRecord modifications) {
+		StringBuilder output = new StringBuilder();
+		SalesReportFormatter.appendModifications(output, modifications);
+		System.out.print(output);
+	}
+	
+}
@@ -0,0 +1,31 @@
+/**
+ * Interface for the destination of the reports produced by the sales service as
+ * sales are recorded.
+ */
+package mjr.techtest.impl;
+
+import java.util.List;
+
+/**
+ * @author mrowe
+ *
+ */
+public interface SalesReportSink {
+
+	/**
+	 * Output a report of the sales recorded so far.
+	 * 
+	 * @param report  The report.  This is a copy made for the sink, which the service 
+	 *                    will not alter afterwards.
+	 */
+	public void reportSales(List<SalesReportItem> report);
+	
+	/**
+	 * Output the modifications made to sale item types, as the service pauses.
+	 * 
+	 * @param modifications  The modifications.  This is a copy made for the sink, which
+	 *                           the service will not alter afterwards.
+	 */
+	public void reportModifications(ModificationRecord modifications);
+
+}
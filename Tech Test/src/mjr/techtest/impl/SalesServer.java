@@ -0,0 +1,282 @@
+/**
+ * A small TCP server through which clients send sale and adjustment messages, in the
+ * format described by SalesMessageCodec, to a sales service shared by all of them.
+ *
+ * Each connection is handled by a task of its own, which reads messages as they
+ * arrive and passes them to the service.  Where the Java runtime provides virtual
+ * threads, every task runs on a virtual thread, so that thousands of connections
+ * may be open at once; otherwise the tasks run on a pool of ordinary threads.
+ *
+ * For every message the server sends back a single byte saying whether it was
+ * accepted, rejected because the service has paused, or rejected as invalid.  The
+ * replies to all of the messages decoded from one read are written together.
+ *
+ * The service must be safe for use by many threads at once.  The server listens
+ * only on the loopback address.
+ */
+package mjr.techtest.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import mjr.techtest.Sale;
+import mjr.techtest.SalesException;
+import mjr.techtest.SalesPausedException;
+import mjr.techtest.SalesService;
+
+/**
+ * @author mrowe
+ *
+ */
+public class SalesServer implements Closeable {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final SalesService service;
+	private final ServerSocketChannel serverChannel;
+	private final ExecutorService connectionExecutor;
+	private final boolean virtualThreads;
+	private final Thread acceptingThread;
+
+	private final Set<SocketChannel> connections =
+			Collections.newSetFromMap(new ConcurrentHashMap<SocketChannel, Boolean>());
+
+	private volatile boolean open = true;
+
+
+	/**
+	 * Start a server listening on the given port of the loopback address.
+	 *
+	 * @param service  The service to which messages are passed.
+	 * @param port     The port, or 0 for any free port.
+	 * @throws IOException if the server cannot listen on the port.
+	 */
+	public SalesServer(SalesService service, int port) throws IOException {
+		this.service = service;
+		this.serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+
+		ExecutorService virtualExecutor = createVirtualThreadExecutor();
+		this.virtualThreads = (null != virtualExecutor);
+		this.connectionExecutor = virtualThreads ? virtualExecutor : Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "sales-connection");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		this.acceptingThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				acceptConnections();
+			}
+		}, "sales-server");
+		acceptingThread.setDaemon(true);
+		acceptingThread.start();
+	}
+
+
+	/*
+	 * Create an executor that runs each task on a new virtual thread, or return null if
+	 * the runtime does not provide virtual threads.  The executor is found reflectively,
+	 * so that the server may still be built for, and run on, earlier runtimes.
+	 */
+	private static ExecutorService createVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+
+	/*
+	 * Accept connections until the server is closed, handing each to a task of its own.
+	 */
+	private void acceptConnections() {
+		while (open) {
+			final SocketChannel connection;
+			try {
+				connection = serverChannel.accept();
+			}
+			catch (IOException e) {
+				// The server has been closed, or can accept no more connections.
+				break;
+			}
+
+			connections.add(connection);
+			connectionExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					handleConnection(connection);
+				}
+			});
+		}
+	}
+
+
+	/*
+	 * Read and apply the messages sent on a connection, replying to each, until the
+	 * client closes the connection or sends data not in the expected format.
+	 */
+	private void handleConnection(SocketChannel connection) {
+		ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+		ReplyingService replier = new ReplyingService(service, ByteBuffer.allocate(BUFFER_SIZE));
+		SalesMessageDecoder decoder = new SalesMessageDecoder(replier);
+
+		try {
+			while (0 <= connection.read(input)) {
+				input.flip();
+				while (true) {
+					try {
+						decoder.decode(input);
+						break;
+					}
+					catch (SalesException e) {
+						// The decoder has already passed over the message that is not valid.
+						replier.replies.put(SalesMessageCodec.REPLY_REJECTED);
+					}
+				}
+				input.compact();
+
+				replier.replies.flip();
+				while (replier.replies.hasRemaining()) {
+					connection.write(replier.replies);
+				}
+				replier.replies.clear();
+			}
+		}
+		catch (ClosedChannelException e) {
+			// The server has been closed.
+		}
+		catch (IOException e) {
+			// The connection has failed, or the client has sent data that cannot be read.
+		}
+		finally {
+			connections.remove(connection);
+			try {
+				connection.close();
+			}
+			catch (IOException e) {
+				// Nothing more can be done with the connection.
+			}
+		}
+	}
+
+
+	/*
+	 * Passes messages on to the service, and adds the reply to each to a buffer.  Any
+	 * rejection is turned into a reply rather than thrown.
+	 */
+	private static class ReplyingService implements SalesService {
+
+		private final SalesService target;
+		final ByteBuffer replies;
+
+		ReplyingService(SalesService target, ByteBuffer replies) {
+			this.target = target;
+			this.replies = replies;
+		}
+
+		@Override
+		public void recordSale(Sale newSale) {
+			try {
+				target.recordSale(newSale);
+				replies.put(SalesMessageCodec.REPLY_ACCEPTED);
+			}
+			catch (SalesPausedException e) {
+				replies.put(SalesMessageCodec.REPLY_PAUSED);
+			}
+			catch (SalesException | RuntimeException e) {
+				replies.put(SalesMessageCodec.REPLY_REJECTED);
+			}
+		}
+
+		@Override
+		public void recordSale(Sale newSale, int volume) {
+			try {
+				target.recordSale(newSale, volume);
+				replies.put(SalesMessageCodec.REPLY_ACCEPTED);
+			}
+			catch (SalesPausedException e) {
+				replies.put(SalesMessageCodec.REPLY_PAUSED);
+			}
+			catch (SalesException | RuntimeException e) {
+				replies.put(SalesMessageCodec.REPLY_REJECTED);
+			}
+		}
+
+		@Override
+		public void adjustSale(Sale existingSale, adjustmentOperation adjustment, int adjustmentValue) {
+			try {
+				target.adjustSale(existingSale, adjustment, adjustmentValue);
+				replies.put(SalesMessageCodec.REPLY_ACCEPTED);
+			}
+			catch (RuntimeException e) {
+				replies.put(SalesMessageCodec.REPLY_REJECTED);
+			}
+		}
+	}
+
+
+	/**
+	 * @return The port on which the server is listening.
+	 */
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * @return true if connections are handled on virtual threads.
+	 */
+	public boolean isUsingVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * @return The number of connections currently open.
+	 */
+	public int getConnectionCount() {
+		return connections.size();
+	}
+
+
+	/**
+	 * Stop accepting connections, close those that are open, and wait for their tasks
+	 * to finish.
+	 */
+	@Override
+	public void close() throws IOException {
+		open = false;
+		serverChannel.close();
+		for (SocketChannel connection : connections) {
+			connection.close();
+		}
+		connectionExecutor.shutdown();
+
+		try {
+			acceptingThread.join();
+			connectionExecutor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,187 @@
+/**
+ * A point-in-time copy of the running state of the sales service: the number of
+ * sales recorded (in all, and when the service was last resumed), the totals for
+ * each product type and the modifications made to each type.  Together with the
+ * journal of events logged after it was taken, a snapshot allows the service to be
+ * restored without replaying its whole history.
+ *
+ * The individual sales recorded before the snapshot are not held in it; they are
+ * represented only by the totals for their types.
+ */
+package mjr.techtest.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import mjr.techtest.SalesService.adjustmentOperation;
+
+/**
+ * @author mrowe
+ *
+ */
+public class SalesSnapshot {
+
+	private static final int MAGIC = 0x53414c53;
+	private static final int VERSION = 1;
+
+	private final long generation;
+	private final int salesCount;
+	private final int resumeCount;
+	private final String[] productTypes;
+	private final int[] numItems;
+	private final BigInteger[] totalValues;
+	private final ModificationRecord modifications;
+
+
+	/**
+	 * @param generation     The generation of the snapshot.  The journal of events logged
+	 *                           after the snapshot is identified by the same generation.
+	 * @param salesCount     The number of individual sales recorded.
+	 * @param resumeCount    The number of individual sales recorded when the service was
+	 *                           last resumed, or 0 if it has not been resumed.
+	 * @param productTypes   The product types, in the order of their ids.
+	 * @param numItems       The number of items sold of each product type.
+	 * @param totalValues    The total value of the items sold of each product type.
+	 * @param modifications  The modifications made to the product types.
+	 */
+	public SalesSnapshot(long generation, int salesCount, int resumeCount, String[] productTypes, 
+			int[] numItems, BigInteger[] totalValues, ModificationRecord modifications) {
+		this.generation = generation;
+		this.salesCount = salesCount;
+		this.resumeCount = resumeCount;
+		this.productTypes = productTypes;
+		this.numItems = numItems;
+		this.totalValues = totalValues;
+		this.modifications = modifications;
+	}
+
+
+	/**
+	 * Write the snapshot to a file.  The snapshot is written in full to a temporary file
+	 * and forced to the storage device before it replaces any existing file, so that a
+	 * failure part way through leaves the previous snapshot in place.
+	 *
+	 * @param file  The snapshot file.
+	 * @throws IOException
+	 */
+	public void write(Path file) throws IOException {
+		Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+
+		try (FileOutputStream fileOutput = new FileOutputStream(tempFile.toFile())) {
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeLong(generation);
+			output.writeInt(salesCount);
+			output.writeInt(resumeCount);
+			output.writeInt(productTypes.length);
+			for (int typeId = 0; typeId < productTypes.length; typeId++) {
+				output.writeUTF(productTypes[typeId]);
+				output.writeInt(numItems[typeId]);
+				byte[] totalValue = totalValues[typeId].toByteArray();
+				output.writeShort(totalValue.length);
+				output.write(totalValue);
+
+				int numModifications = modifications.getModificationCount(productTypes[typeId]);
+				output.writeInt(numModifications);
+				for (int i = 0; i < numModifications; i++) {
+					output.writeByte(modifications.getOperation(productTypes[typeId], i).ordinal());
+					output.writeInt(modifications.getValue(productTypes[typeId], i));
+				}
+			}
+			output.flush();
+			fileOutput.getFD().sync();
+		}
+		Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+
+	/**
+	 * Read a snapshot from a file.
+	 *
+	 * @param file  The snapshot file.
+	 * @return The snapshot.
+	 * @throws IOException
+	 */
+	public static SalesSnapshot read(Path file) throws IOException {
+		try (InputStream fileInput = Files.newInputStream(file)) {
+			DataInputStream input = new DataInputStream(new BufferedInputStream(fileInput));
+
+			if (MAGIC != input.readInt()) {
+				throw new IOException("Not a sales snapshot: " + file);
+			}
+			int version = input.readInt();
+			if (VERSION != version) {
+				throw new IOException("Unsupported sales snapshot version " + version + ": " + file);
+			}
+			long generation = input.readLong();
+			int salesCount = input.readInt();
+			int resumeCount = input.readInt();
+			int numTypes = input.readInt();
+
+			String[] productTypes = new String[numTypes];
+			int[] numItems = new int[numTypes];
+			BigInteger[] totalValues = new BigInteger[numTypes];
+			ModificationRecord modifications = new ModificationRecord();
+			adjustmentOperation[] operations = adjustmentOperation.values();
+
+			for (int typeId = 0; typeId < numTypes; typeId++) {
+				productTypes[typeId] = input.readUTF();
+				numItems[typeId] = input.readInt();
+				byte[] totalValue = new byte[input.readUnsignedShort()];
+				input.readFully(totalValue);
+				totalValues[typeId] = new BigInteger(totalValue);
+
+				int numModifications = input.readInt();
+				for (int i = 0; i < numModifications; i++) {
+					adjustmentOperation operation = operations[input.readByte()];
+					modifications.recordModification(productTypes[typeId], operation, input.readInt());
+				}
+			}
+			return new SalesSnapshot(generation, salesCount, resumeCount, productTypes, numItems, totalValues, modifications);
+		}
+	}
+
+
+	public long getGeneration() {
+		return generation;
+	}
+
+	public int getSalesCount() {
+		return salesCount;
+	}
+
+	public int getResumeCount() {
+		return resumeCount;
+	}
+
+	/**
+	 * @return The product types, in the order of their ids.
+	 */
+	public String[] getProductTypes() {
+		return productTypes;
+	}
+
+	public int getNumItems(int typeId) {
+		return numItems[typeId];
+	}
+
+	public BigInteger getTotalValue(int typeId) {
+		return totalValues[typeId];
+	}
+
+	public ModificationRecord getModifications() {
+		return modifications;
+	}
+
+}
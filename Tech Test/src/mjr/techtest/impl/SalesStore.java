@@ -0,0 +1,57 @@
+/**
+ * Interface for the storage of sales recorded by the sales service.
+ * 
+ * Each entry records a number of items of a single product type, sold together
+ * at the same value.  The product type is held as the id given to it by a
+ * {@link ProductTypeRegistry}.  Along with the value and number of items, each
+ * entry holds the number of items sold before it, and the number of modifications
+ * made to the product type before it was recorded.
+ * 
+ * Entries may be read by several threads at once, while none are being added.
+ */
+package mjr.techtest.impl;
+
+/**
+ * @author mrowe
+ *
+ */
+public interface SalesStore {
+
+	/**
+	 * Add an entry to the store.
+	 * 
+	 * @param typeId           The id of the product type sold.
+	 * @param value            The value of each item when sold, in pence.
+	 * @param volume           The number of items sold.
+	 * @param firstIndex       The number of items sold before this entry.
+	 * @param adjustmentIndex  The number of modifications made to the product type 
+	 *                             before this entry.
+	 * @return The position of the new entry.
+	 */
+	public int add(int typeId, int value, int volume, int firstIndex, int adjustmentIndex);
+	
+	/**
+	 * Find the entry that holds a given item.
+	 * 
+	 * @param saleIndex  The position of the item, in the order in which items were sold.
+	 * @return The position of the entry holding the item, or -1 if no entry holds it, as
+	 *             when the item was sold before the first entry, or has not been sold.
+	 */
+	public int findEntry(int saleIndex);
+	
+	/**
+	 * @return The number of entries held.
+	 */
+	public int size();
+	
+	public int getTypeId(int entry);
+	
+	public int getValue(int entry);
+	
+	public int getVolume(int entry);
+	
+	public int getFirstIndex(int entry);
+	
+	public int getAdjustmentIndex(int entry);
+
+}
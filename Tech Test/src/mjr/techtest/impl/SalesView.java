@@ -0,0 +1,228 @@
+/**
+ * An unchanging view of the totals for each product type and the modifications made to
+ * them, as they were at a single point.  Views are published by the sales service as
+ * sales are recorded and types adjusted, and may be read by any number of threads
+ * without holding the lock of the service, while it continues to record sales.
+ *
+ * Each view shares all that is unchanged with the view before it.  The types are held
+ * in a tree of fixed-size nodes, with the type id giving the path from the root, and a
+ * new view copies only the nodes on the path to the type that changed, so that the
+ * cost of a view grows with the logarithm of the number of types.  The modifications
+ * made to a type are held in arrays that are only ever added to, so that a view holds
+ * the arrays and the number of modifications it includes, and a later view may add to
+ * the same arrays.
+ */
+package mjr.techtest.impl;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import mjr.techtest.SalesService.adjustmentOperation;
+
+/**
+ * Views are published by the service, see {@link SalesMessagesService#getSalesView()}.
+ *
+ * @author mrowe
+ *
+ */
+public class SalesView {
+
+	private static final int NODE_BITS = 6;
+	private static final int NODE_SIZE = 1 << NODE_BITS;
+	private static final int NODE_MASK = NODE_SIZE - 1;
+
+	// The root of the tree, and the number of levels below it.  The nodes of the lowest
+	// level hold the views of the types, and those of each level above hold the nodes 
+	// of the level below.
+	private final Object[] root;
+	private final int depth;
+	private final int numTypes;
+	private final int salesCount;
+
+
+	private SalesView(Object[] root, int depth, int numTypes, int salesCount) {
+		this.root = root;
+		this.depth = depth;
+		this.numTypes = numTypes;
+		this.salesCount = salesCount;
+	}
+
+
+	/**
+	 * Create a view of every type.
+	 *
+	 * @param productTypes   The product types.
+	 * @param totals         The totals for each type.
+	 * @param modifications  The modifications made to each type.
+	 * @param salesCount     The number of individual sales recorded.
+	 * @return The view.
+	 */
+	static SalesView create(ProductTypeRegistry productTypes, TypeTotals totals, ModificationRecord modifications,
+			int salesCount) {
+		SalesView view = new SalesView(new Object[NODE_SIZE], 0, 0, salesCount);
+
+		// Each type is set in place, as the tree is not yet shared.
+		for (int typeId = 0; typeId < productTypes.size(); typeId++) {
+			view = view.grow(typeId);
+			Object[] node = view.root;
+			for (int level = view.depth; level > 0; level--) {
+				int slot = (typeId >>> (level * NODE_BITS)) & NODE_MASK;
+				if (null == node[slot]) {
+					node[slot] = new Object[NODE_SIZE];
+				}
+				node = (Object[]) node[slot];
+			}
+			node[typeId & NODE_MASK] = new TypeView(null, productTypes.getProductType(typeId), typeId, totals, modifications);
+		}
+		return new SalesView(view.root, view.depth, productTypes.size(), salesCount);
+	}
+
+	/**
+	 * Create a view in which a single type has changed.
+	 *
+	 * @param typeId         The id of the type changed.
+	 * @param productType    The type changed.
+	 * @param totals         The totals for each type.
+	 * @param modifications  The modifications made to each type.
+	 * @param salesCount     The number of individual sales now recorded.
+	 * @return The new view.
+	 */
+	SalesView update(int typeId, String productType, TypeTotals totals, ModificationRecord modifications,
+			int salesCount) {
+		SalesView grown = grow(typeId);
+		Object[] newRoot = grown.root.clone();
+
+		Object[] node = newRoot;
+		for (int level = grown.depth; level > 0; level--) {
+			int slot = (typeId >>> (level * NODE_BITS)) & NODE_MASK;
+			Object[] child = (null == node[slot]) ? new Object[NODE_SIZE] : ((Object[]) node[slot]).clone();
+			node[slot] = child;
+			node = child;
+		}
+		int slot = typeId & NODE_MASK;
+		node[slot] = new TypeView((TypeView) node[slot], productType, typeId, totals, modifications);
+
+		return new SalesView(newRoot, grown.depth, Math.max(numTypes, typeId + 1), salesCount);
+	}
+
+	/*
+	 * Returns a view with the same types whose tree is deep enough to hold the given
+	 * type id, adding levels above the root as needed.  The nodes are shared.
+	 */
+	private SalesView grow(int typeId) {
+		Object[] newRoot = root;
+		int newDepth = depth;
+		while ((newDepth < 5) && (0 != (typeId >>> ((newDepth + 1) * NODE_BITS)))) {
+			Object[] parent = new Object[NODE_SIZE];
+			parent[0] = newRoot;
+			newRoot = parent;
+			newDepth++;
+		}
+		return (newRoot == root) ? this : new SalesView(newRoot, newDepth, numTypes, salesCount);
+	}
+
+
+	/**
+	 * @return The number of individual sales recorded at the point of the view.
+	 */
+	public int getSalesCount() {
+		return salesCount;
+	}
+
+	/**
+	 * Generate a report of the totals for each type sold, as
+	 * {@link SalesMessagesService#generateReport()} would have at the point of the view.
+	 *
+	 * @return The report, which may be changed freely.
+	 */
+	public List<SalesReportItem> getReport() {
+		List<SalesReportItem> report = new ArrayList<SalesReportItem>();
+
+		for (int typeId = 0; typeId < numTypes; typeId++) {
+			TypeView type = getType(typeId);
+			if ((null != type) && (0 < type.numItems)) {
+				report.add((null == type.exactTotalValue) 
+						? new SalesReportItem(type.productType, type.numItems, type.totalValue)
+						: new SalesReportItem(type.productType, type.numItems, type.exactTotalValue));
+			}
+		}
+		return report;
+	}
+
+	/**
+	 * @return A copy of the modifications made to each type at the point of the view.
+	 */
+	public ModificationRecord getSaleModifications() {
+		ModificationRecord record = new ModificationRecord();
+
+		for (int typeId = 0; typeId < numTypes; typeId++) {
+			TypeView type = getType(typeId);
+			if (null != type) {
+				for (int i = 0; i < type.numModifications; i++) {
+					record.recordModification(type.productType, type.operations[i], type.values[i]);
+				}
+			}
+		}
+		return record;
+	}
+
+
+	/*
+	 * Returns the view of a type, or null if it is not known.
+	 */
+	private TypeView getType(int typeId) {
+		Object[] node = root;
+		for (int level = depth; (level > 0) && (null != node); level--) {
+			node = (Object[]) node[(typeId >>> (level * NODE_BITS)) & NODE_MASK];
+		}
+		return (null == node) ? null : (TypeView) node[typeId & NODE_MASK];
+	}
+
+
+	/*
+	 * The totals for a single type, and the modifications made to it.  The total is held
+	 * as a long, and also exactly only if it is beyond the range of a long.  The arrays of
+	 * modifications may be shared with the views of the type that come before and after
+	 * this one, each of which reads only as many as it includes.
+	 */
+	private static class TypeView {
+
+		private final String productType;
+		private final int numItems;
+		private final long totalValue;
+		private final BigInteger exactTotalValue;
+		private final adjustmentOperation[] operations;
+		private final int[] values;
+		private final int numModifications;
+
+		TypeView(TypeView previous, String productType, int typeId, TypeTotals totals,
+				ModificationRecord modifications) {
+			this.productType = productType;
+			this.numItems = totals.getNumItems(typeId);
+			this.totalValue = totals.getTotalValue(typeId);
+			this.exactTotalValue = ((Long.MAX_VALUE == totalValue) || (Long.MIN_VALUE == totalValue)) 
+					? totals.getExactTotalValue(typeId) : null;
+			this.numModifications = modifications.getModificationCount(productType);
+
+			int fromIndex = (null == previous) ? 0 : previous.numModifications;
+			adjustmentOperation[] sharedOperations = (null == previous) ? null : previous.operations;
+			int[] sharedValues = (null == previous) ? null : previous.values;
+
+			if ((null == sharedOperations) || (sharedOperations.length < numModifications)) {
+				int capacity = Math.max(4, Integer.highestOneBit(Math.max(1, numModifications)) << 1);
+				sharedOperations = (null == sharedOperations) ? new adjustmentOperation[capacity]
+						: Arrays.copyOf(sharedOperations, capacity);
+				sharedValues = (null == sharedValues) ? new int[capacity] : Arrays.copyOf(sharedValues, capacity);
+			}
+			for (int i = fromIndex; i < numModifications; i++) {
+				sharedOperations[i] = modifications.getOperation(productType, i);
+				sharedValues[i] = modifications.getValue(productType, i);
+			}
+			this.operations = sharedOperations;
+			this.values = sharedValues;
+		}
+	}
+
+}
@@ -0,0 +1,243 @@
+/**
+ * Rolling totals for each product type over recent sales, measured either by the time
+ * at which the sales were recorded or by their number.
+ *
+ * The window is divided into buckets of a fixed width (a number of milliseconds, or a
+ * number of sales), held in a ring.  Each sale is added to the bucket covering the point
+ * at which it was recorded, and a bucket is cleared when the ring comes round to it
+ * again.  A tumbling window is a single bucket, and a sliding window is a run of the
+ * most recent buckets, so a report of either costs time in proportion to the number
+ * of types and buckets rather than the number of sales.
+ *
+ * The clock may step backwards, so a sale is never added to a bucket older than the
+ * newest yet used, but to the newest instead, where it cannot overwrite more recent
+ * totals.  Reports are likewise taken as of no earlier than the newest bucket.
+ *
+ * Adjustments apply to every sale of a type, so are applied to the totals held in every
+ * bucket.  A window covers only the sales recorded since it was added to the service.
+ */
+package mjr.techtest.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import mjr.techtest.SalesService.adjustmentOperation;
+
+/**
+ * Windows are created by the service, see {@link SalesMessagesService#addTimeWindow(long, int)}
+ * and {@link SalesMessagesService#addSalesWindow(int, int)}.  Reports may be taken from any
+ * thread.
+ *
+ * @author mrowe
+ *
+ */
+public class SalesWindow {
+
+	private final SalesMessagesService service;
+	private final ProductTypeRegistry productTypes;
+	private final boolean measuredBySales;
+	private final long bucketWidth;
+
+	// The totals held in each bucket, and the number of the bucket (the point at which
+	// it starts, divided by the bucket width) each currently holds.
+	private final TypeTotals[] buckets;
+	private final long[] bucketNumbers;
+
+	// The number of the newest bucket used, or -1 if none has been.
+	private long newestBucketNumber = -1;
+
+
+	SalesWindow(SalesMessagesService service, ProductTypeRegistry productTypes, boolean measuredBySales,
+			long bucketWidth, int numBuckets) {
+		if (0 >= bucketWidth) {
+			throw new IllegalArgumentException("Bucket width must be positive: " + bucketWidth);
+		}
+		if (0 >= numBuckets) {
+			throw new IllegalArgumentException("Number of buckets must be positive: " + numBuckets);
+		}
+		this.service = service;
+		this.productTypes = productTypes;
+		this.measuredBySales = measuredBySales;
+		this.bucketWidth = bucketWidth;
+		this.buckets = new TypeTotals[numBuckets];
+		this.bucketNumbers = new long[numBuckets];
+
+		for (int i = 0; i < numBuckets; i++) {
+			buckets[i] = new TypeTotals();
+			bucketNumbers[i] = -1;
+		}
+	}
+
+
+	/**
+	 * @return true if the window is measured by the number of sales, false if by time.
+	 */
+	public boolean isMeasuredBySales() {
+		return measuredBySales;
+	}
+
+	/**
+	 * @return The width of each bucket, in milliseconds or sales.
+	 */
+	public long getBucketWidth() {
+		return bucketWidth;
+	}
+
+	/**
+	 * @return The number of buckets, which is the longest sliding window that may be reported.
+	 */
+	public int getNumBuckets() {
+		return buckets.length;
+	}
+
+
+	/**
+	 * Generate a report of the tumbling window in progress: the sales recorded in the
+	 * current bucket.
+	 *
+	 * @return A report item for each type sold in the window, in the order in which the
+	 *             types were first sold.
+	 */
+	public List<SalesReportItem> getCurrentReport() {
+		synchronized (service) {
+			return report(currentBucketNumber(), 1);
+		}
+	}
+
+	/**
+	 * Generate a report of the last complete tumbling window: the sales recorded in the
+	 * bucket before the current one.
+	 *
+	 * @return A report item for each type sold in the window, in the order in which the
+	 *             types were first sold.
+	 */
+	public List<SalesReportItem> getPreviousReport() {
+		synchronized (service) {
+			return report(currentBucketNumber() - 1, 1);
+		}
+	}
+
+	/**
+	 * Generate a report of a sliding window: the sales recorded in the current bucket
+	 * and those before it.
+	 *
+	 * @param numBuckets  The number of buckets covered, at most the number held.
+	 * @return A report item for each type sold in the window, in the order in which the
+	 *             types were first sold.
+	 */
+	public List<SalesReportItem> getSlidingReport(int numBuckets) {
+		if ((0 >= numBuckets) || (buckets.length < numBuckets)) {
+			throw new IllegalArgumentException("Window must cover between 1 and " + buckets.length
+					+ " buckets: " + numBuckets);
+		}
+		synchronized (service) {
+			return report(currentBucketNumber(), numBuckets);
+		}
+	}
+
+
+	/*
+	 * Returns the number of the bucket covering the current time or sales count, or the
+	 * newest used if the clock has since stepped back.
+	 */
+	private long currentBucketNumber() {
+		return Math.max(service.getWindowPosition(measuredBySales) / bucketWidth, newestBucketNumber);
+	}
+
+
+	/*
+	 * Combine the buckets ending with the given one, skipping any that have not been
+	 * used since the ring last came round, and report on the types sold in them.
+	 */
+	private List<SalesReportItem> report(long lastBucketNumber, int numBuckets) {
+		TypeTotals totals = new TypeTotals();
+
+		for (long bucketNumber = lastBucketNumber - numBuckets + 1; bucketNumber <= lastBucketNumber; bucketNumber++) {
+			if ((0 <= bucketNumber) && (bucketNumbers[slot(bucketNumber)] == bucketNumber)) {
+				totals.addAll(buckets[slot(bucketNumber)]);
+			}
+		}
+
+		List<SalesReportItem> report = new ArrayList<SalesReportItem>();
+		for (int typeId = 0; typeId < productTypes.size(); typeId++) {
+			if (0 < totals.getNumItems(typeId)) {
+				report.add(totals.createReportItem(typeId, productTypes.getProductType(typeId)));
+			}
+		}
+		return report;
+	}
+
+
+	/*
+	 * Returns the position in the ring of the given bucket.
+	 */
+	private int slot(long bucketNumber) {
+		return (int) (bucketNumber % buckets.length);
+	}
+
+
+	/*
+	 * Returns the totals for the given bucket, clearing those left from the last time
+	 * the ring came round if needed.  A bucket older than the newest used is taken as
+	 * the newest.
+	 */
+	private TypeTotals bucket(long bucketNumber) {
+		if (bucketNumber < newestBucketNumber) {
+			bucketNumber = newestBucketNumber;
+		}
+		newestBucketNumber = bucketNumber;
+		int slot = slot(bucketNumber);
+
+		if (bucketNumbers[slot] != bucketNumber) {
+			buckets[slot].clear();
+			bucketNumbers[slot] = bucketNumber;
+		}
+		return buckets[slot];
+	}
+
+
+	/**
+	 * Add a number of items sold to the window.  Where the window is measured by sales,
+	 * the items are spread over as many buckets as they fill, of which only those the
+	 * ring can still hold are added, so that a large volume costs no more than a ring.
+	 *
+	 * @param typeId      The id of the type of item sold.
+	 * @param value       The value of each item.
+	 * @param volume      The number of items sold.
+	 * @param timestamp   The time at which the items were recorded, in milliseconds.
+	 * @param salesCount  The number of sales recorded before these items.
+	 */
+	void add(int typeId, int value, int volume, long timestamp, long salesCount) {
+		if (!measuredBySales) {
+			bucket(timestamp / bucketWidth).add(typeId, value, volume);
+			return;
+		}
+
+		long end = salesCount + volume;
+		long lastBucketNumber = (end - 1) / bucketWidth;
+		long position = Math.max(salesCount, (lastBucketNumber - buckets.length + 1) * bucketWidth);
+		long remaining = end - position;
+		while (0 < remaining) {
+			long bucketNumber = position / bucketWidth;
+			int count = (int) Math.min(remaining, (bucketNumber + 1) * bucketWidth - position);
+
+			bucket(bucketNumber).add(typeId, value, count);
+			position += count;
+			remaining -= count;
+		}
+	}
+
+	/**
+	 * Apply an adjustment to the totals for a type held in every bucket.
+	 *
+	 * @param typeId     The id of the type of item adjusted.
+	 * @param operation  The operation applied.
+	 * @param value      The value for the operation.
+	 */
+	void adjust(int typeId, adjustmentOperation operation, int value) {
+		for (TypeTotals bucket : buckets) {
+			bucket.adjust(typeId, operation, value);
+		}
+	}
+
+}
@@ -0,0 +1,360 @@
+/**
+ * Implementation of the interface for the service that records and manages sale
+ * messages, dividing the product types between a number of independent shards so
+ * that sales of different types are recorded in parallel.
+ */
+package mjr.techtest.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import mjr.techtest.Sale;
+import mjr.techtest.SalesException;
+import mjr.techtest.SalesPausedException;
+import mjr.techtest.SalesService;
+import mjr.techtest.impl.SalesMessagesService.State;
+
+/**
+ * Each shard is a service of its own, holding its own sales and totals, to which
+ * messages are applied by a single thread through an ingestion pipeline.  Each
+ * product type belongs to one shard, chosen by consistent hashing, so every sale
+ * and adjustment of a type is applied by the same thread, in the order in which it
+ * was passed on.
+ *
+ * The shards themselves never report or pause.  Instead, as in the concurrent
+ * service, the sales count across all shards is advanced atomically before a sale is
+ * passed on, which limits the sales accepted to the pause limit and ensures that
+ * each logging point is reported by exactly one thread.  A report made at a logging
+ * point first waits until every sale claimed before that point has been passed on,
+ * see SalesClaimTracker, then until every message passed to the shards has been
+ * applied, and then merges the totals of the shards.  It may also include sales passed
+ * on by other threads while it is being generated.
+ *
+ * @author mrowe
+ *
+ */
+public class ShardedSalesService implements SalesService, Closeable {
+
+	// The number of points on the hash ring for each shard, which evens out the share
+	// of the product types given to each.
+	private static final int POINTS_PER_SHARD = 64;
+
+	// The bits of each point on the ring that hold its shard.
+	private static final int SHARD_BITS = 16;
+	private static final long SHARD_MASK = (1L << SHARD_BITS) - 1;
+
+	private final SalesMessagesService[] shards;
+	private final SalesIngestionPipeline[] pipelines;
+
+	// The points on the hash ring, in order, with the shard to which each belongs held
+	// in the lowest bits.
+	private final long[] ring;
+
+	private final AtomicInteger salesCount = new AtomicInteger();
+
+	// Which of the sales claimed have been passed on to the shards.
+	private final SalesClaimTracker passedOn;
+	private final AtomicReference<State> currState = new AtomicReference<State>(State.RUNNING);
+
+	private final int logInterval;
+	private final int pauseInterval;
+
+	// Thrown for every sale rejected once paused.  It has no stack trace, so may be
+	// shared, and rejecting a sale allocates nothing.
+	private final SalesPausedException pausedException;
+
+	private volatile SalesReportSink reportSink = new SalesReportPrinter();
+
+
+	/**
+	 * @param numShards  The number of shards.
+	 */
+	public ShardedSalesService(int numShards) {
+		this(numShards, 10, 50);
+	}
+
+	/**
+	 * @param numShards      The number of shards.
+	 * @param logInterval    The number of sales between each report.
+	 * @param pauseInterval  The number of sales after which the service pauses.
+	 */
+	public ShardedSalesService(int numShards, int logInterval, int pauseInterval) {
+		if ((0 >= numShards) || (SHARD_MASK < numShards)) {
+			throw new IllegalArgumentException("Number of shards must be between 1 and " + SHARD_MASK + ": " + numShards);
+		}
+		this.logInterval = logInterval;
+		this.pauseInterval = pauseInterval;
+		this.passedOn = new SalesClaimTracker(logInterval);
+		this.pausedException = new SalesPausedException("Application has processed " + pauseInterval + " sales",
+				null, false, false);
+		this.shards = new SalesMessagesService[numShards];
+		this.pipelines = new SalesIngestionPipeline[numShards];
+		this.ring = new long[numShards * POINTS_PER_SHARD];
+
+		for (int shard = 0; shard < numShards; shard++) {
+			shards[shard] = new SalesMessagesService(new ColumnarSalesStore(), Integer.MAX_VALUE, Integer.MAX_VALUE);
+			pipelines[shard] = new SalesIngestionPipeline(shards[shard]);
+
+			for (int point = 0; point < POINTS_PER_SHARD; point++) {
+				ring[shard * POINTS_PER_SHARD + point] =
+						(mix((long) shard * POINTS_PER_SHARD + point) & ~SHARD_MASK) | shard;
+			}
+		}
+		Arrays.sort(ring);
+	}
+
+
+	public State getCurrState() {
+		return currState.get();
+	}
+
+	/**
+	 * Set the destination for the reports produced as sales are recorded.  The sink
+	 * may be passed reports by more than one thread at once.
+	 *
+	 * @param reportSink  The destination for reports.
+	 * @see SalesMessagesService#setReportSink(SalesReportSink)
+	 */
+	public void setReportSink(SalesReportSink reportSink) {
+		this.reportSink = reportSink;
+	}
+
+	/**
+	 * @return The number of individual sales accepted by the service.
+	 */
+	public int getSalesCount() {
+		return salesCount.get();
+	}
+
+	/**
+	 * @return The number of shards.
+	 */
+	public int getNumShards() {
+		return shards.length;
+	}
+
+	/**
+	 * @param productType  A product type.
+	 * @return The shard to which the product type belongs, from 0.
+	 */
+	public int getShard(String productType) {
+		int position = Arrays.binarySearch(ring, mix(productType.hashCode()) & ~SHARD_MASK);
+		if (0 > position) {
+			position = -(position + 1);
+		}
+		return (int) (ring[position % ring.length] & SHARD_MASK);
+	}
+
+
+	/*
+	 * Spread the bits of a value, so that nearby values give distant points on the ring.
+	 */
+	private static long mix(long value) {
+		long mixed = value + 0x9E3779B97F4A7C15L;
+		mixed = (mixed ^ (mixed >>> 30)) * 0xBF58476D1CE4E5B9L;
+		mixed = (mixed ^ (mixed >>> 27)) * 0x94D049BB133111EBL;
+		return mixed ^ (mixed >>> 31);
+	}
+
+
+	/* (non-Javadoc)
+	 * @see mjr.techtest.SalesService#recordSale(mjr.techtest.Sale)
+	 */
+	@Override
+	public void recordSale(Sale newSale) throws SalesException {
+		recordSale(newSale, 1);
+	}
+
+	/* (non-Javadoc)
+	 * @see mjr.techtest.SalesService#recordSale(mjr.techtest.Sale, int)
+	 *
+	 * As with the single-threaded service, if the pause limit is reached part way
+	 * through the items then those before the limit are recorded, and the remainder
+	 * rejected.
+	 */
+	@Override
+	public void recordSale(Sale newSale, int volume) throws SalesException {
+		if (0 >= volume) {
+			return;
+		}
+		SalesIngestionPipeline.validate(newSale);
+
+		// Claim a place in the sequence of sales for the items, before passing them on.
+		int firstIndex;
+		int accepted;
+		do {
+			firstIndex = salesCount.get();
+			if (pauseInterval <= firstIndex) {
+				throw pausedException;
+			}
+			accepted = Math.min(volume, pauseInterval - firstIndex);
+		} while (!salesCount.compareAndSet(firstIndex, firstIndex + accepted));
+
+		try {
+			pipelines[getShard(newSale.getProductType())].recordSale(newSale, accepted);
+		}
+		finally {
+			passedOn.stored(firstIndex, firstIndex + accepted);
+		}
+		processSales(firstIndex, firstIndex + accepted);
+
+		if (accepted < volume) {
+			throw pausedException;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see mjr.techtest.SalesService#adjustSale(mjr.techtest.Sale, mjr.techtest.SalesService.adjustmentOperation, int)
+	 *
+	 * Applies the specified operation to all stored items of a particular type.
+	 */
+	@Override
+	public void adjustSale(Sale existingSale, adjustmentOperation adjustment, int adjustmentValue) {
+		pipelines[getShard(existingSale.getProductType())].adjustSale(existingSale, adjustment, adjustmentValue);
+	}
+
+
+	/*
+	 * Report at each logging point in the range of sales claimed by the caller, and
+	 * pause the service if the range ends at the pause limit.  Since the ranges
+	 * claimed never overlap, only one thread will act on each point.  Each report
+	 * waits for the sales claimed before its point by other threads to be passed on.
+	 */
+	private void processSales(int fromIndex, int toIndex) {
+		setState(State.RUNNING);
+
+		long nextLog = ((long) (fromIndex / logInterval) + 1) * logInterval;
+		for (; nextLog <= toIndex; nextLog += logInterval) {
+			setState(State.LOGGING);
+			passedOn.awaitStored((int) nextLog);
+			reportSink.reportSales(generateReport());
+		}
+		if (pauseInterval == toIndex) {
+			currState.set(State.PAUSED);
+			passedOn.awaitStored(pauseInterval);
+			reportSink.reportModifications(getSaleModifications());
+		}
+	}
+
+
+	/*
+	 * Move to a new state, unless the service has already been paused.
+	 */
+	private void setState(State newState) {
+		State prevState;
+		do {
+			prevState = currState.get();
+			if (State.PAUSED == prevState) {
+				return;
+			}
+		} while (!currState.compareAndSet(prevState, newState));
+	}
+
+
+	/*
+	 * Wait until every message passed to the shards so far has been applied.
+	 */
+	private void flush() {
+		for (SalesIngestionPipeline pipeline : pipelines) {
+			try {
+				pipeline.flush();
+			}
+			catch (SalesException e) {
+				throw new IllegalStateException("Unable to apply message to shard", e);
+			}
+		}
+	}
+
+
+	/**
+	 * Generate a report of all sale items currently received, merging the reports of
+	 * the shards.  The items for the types of each shard are together, in the order in
+	 * which the types were first sold.
+	 *
+	 * @throws IllegalStateException if any message could not be applied to its shard.
+	 * @see SalesMessagesService#generateReport()
+	 */
+	public List<SalesReportItem> generateReport() {
+		flush();
+
+		List<SalesReportItem> report = new ArrayList<SalesReportItem>();
+		for (SalesMessagesService shard : shards) {
+			report.addAll(shard.generateReport());
+		}
+		return report;
+	}
+
+	/**
+	 * Generate a report of all sale items currently received, by revisiting every
+	 * stored sale in each shard rather than using the running totals.
+	 *
+	 * @throws IllegalStateException if any message could not be applied to its shard.
+	 * @see SalesMessagesService#recalculateReport()
+	 */
+	public List<SalesReportItem> recalculateReport() {
+		flush();
+
+		List<SalesReportItem> report = new ArrayList<SalesReportItem>();
+		for (SalesMessagesService shard : shards) {
+			report.addAll(shard.recalculateReport());
+		}
+		return report;
+	}
+
+	/**
+	 * Returns a copy of all modifications made to sale item types.
+	 *
+	 * @return The set of all modifications made to sale item types.
+	 * @throws IllegalStateException if any message could not be applied to its shard.
+	 */
+	public ModificationRecord getSaleModifications() {
+		flush();
+
+		ModificationRecord saleModifications = new ModificationRecord();
+		for (SalesMessagesService shard : shards) {
+			ModificationRecord shardModifications = shard.getSaleModifications();
+			synchronized (shard) {
+				for (String itemType : shardModifications.getModifiedTypes()) {
+					for (int i = 0; i < shardModifications.getModificationCount(itemType); i++) {
+						saleModifications.recordModification(itemType, shardModifications.getOperation(itemType, i),
+								shardModifications.getValue(itemType, i));
+					}
+				}
+			}
+		}
+		return saleModifications;
+	}
+
+
+	/**
+	 * Apply any messages still waiting, and stop the thread of every shard.  No further
+	 * messages are accepted.
+	 *
+	 * @throws IOException if any message could not be applied.
+	 */
+	@Override
+	public void close() throws IOException {
+		IOException failure = null;
+
+		for (int shard = 0; shard < shards.length; shard++) {
+			try {
+				pipelines[shard].close();
+				shards[shard].close();
+			}
+			catch (IOException e) {
+				if (null == failure) {
+					failure = e;
+				}
+			}
+		}
+		if (null != failure) {
+			throw failure;
+		}
+	}
+
+}
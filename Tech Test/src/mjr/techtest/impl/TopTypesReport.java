@@ -0,0 +1,58 @@
+/**
+ * A report of the product types leading by the number of items sold and by their value,
+ * with the distribution of sale values for the types leading by number.
+ */
+package mjr.techtest.impl;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author mrowe
+ *
+ */
+public class TopTypesReport {
+
+	private final List<SalesReportItem> topByVolume;
+	private final List<SalesReportItem> topByValue;
+	private final Map<String, QuantileSketch> valueSketches;
+
+
+	public TopTypesReport(List<SalesReportItem> topByVolume, List<SalesReportItem> topByValue,
+			Map<String, QuantileSketch> valueSketches) {
+		this.topByVolume = Collections.unmodifiableList(topByVolume);
+		this.topByValue = Collections.unmodifiableList(topByValue);
+		this.valueSketches = valueSketches;
+	}
+
+
+	/**
+	 * @return The types with the most items sold, in decreasing order.
+	 */
+	public List<SalesReportItem> getTopByVolume() {
+		return topByVolume;
+	}
+
+	/**
+	 * @return The types with the greatest total value, in decreasing order.
+	 */
+	public List<SalesReportItem> getTopByValue() {
+		return topByValue;
+	}
+
+	/**
+	 * Returns the approximate value at a given quantile of the values of the items of a
+	 * type sold, for the types leading by number.
+	 *
+	 * @param productType  The type.
+	 * @param quantile     The quantile, between 0 and 1.
+	 * @return The value, or NaN if the type is not among those leading by number or its
+	 *             sale values are not known.
+	 */
+	public double getValueQuantile(String productType, double quantile) {
+		QuantileSketch sketch = valueSketches.get(productType);
+		return (null == sketch) ? Double.NaN : sketch.getQuantile(quantile);
+	}
+
+}
@@ -0,0 +1,169 @@
+/**
+ * Keeps track of the product types sold in the greatest numbers and for the greatest
+ * value, together with the distribution of sale values for the types most sold, in
+ * space bounded by the number of types to be reported rather than the number sold.
+ *
+ * The types are chosen by the Space-Saving method (see HeavyHitters), with twice as
+ * many counters as types reported so that those reported are very likely to be the
+ * true leaders.  The figures reported for each type are taken from the exact running
+ * totals, so only the choice of types is approximate.
+ */
+package mjr.techtest.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import mjr.techtest.SalesService.adjustmentOperation;
+
+/**
+ * @author mrowe
+ *
+ */
+public class TopTypesTracker {
+
+	private final int numTypes;
+	private final HeavyHitters byVolume;
+	private final HeavyHitters byValue;
+
+	// The distribution of sale values for the type held by each counter by volume, and
+	// the type to which each belongs.
+	private final QuantileSketch[] valueSketches;
+	private final int[] sketchOwners;
+
+
+	/**
+	 * @param numTypes  The number of types to be reported.
+	 */
+	public TopTypesTracker(int numTypes) {
+		if (0 >= numTypes) {
+			throw new IllegalArgumentException("Number of types must be positive: " + numTypes);
+		}
+		this.numTypes = numTypes;
+		this.byVolume = new HeavyHitters(numTypes * 2);
+		this.byValue = new HeavyHitters(numTypes * 2);
+		this.valueSketches = new QuantileSketch[numTypes * 2];
+		this.sketchOwners = new int[numTypes * 2];
+
+		for (int i = 0; i < valueSketches.length; i++) {
+			valueSketches[i] = new QuantileSketch();
+			sketchOwners[i] = -1;
+		}
+	}
+
+
+	/**
+	 * @return The number of types reported.
+	 */
+	public int getNumTypes() {
+		return numTypes;
+	}
+
+	/**
+	 * Add a number of items sold.
+	 *
+	 * @param typeId  The id of the type of item sold.
+	 * @param value   The value of each item.
+	 * @param volume  The number of items sold.
+	 */
+	public void add(int typeId, int value, int volume) {
+		QuantileSketch sketch = sketchFor(byVolume.offer(typeId, volume), typeId);
+		sketch.add(value, volume);
+		byValue.offer(typeId, Math.max(0, (long) value * volume));
+	}
+
+	/**
+	 * Add the items sold of a type, where the individual sales are not known, as when
+	 * tracking starts once sales have already been recorded.
+	 *
+	 * @param typeId      The id of the type of item sold.
+	 * @param numItems    The number of items sold.
+	 * @param totalValue  The total value of the items.
+	 */
+	public void addTotals(int typeId, int numItems, long totalValue) {
+		sketchFor(byVolume.offer(typeId, numItems), typeId);
+		byValue.offer(typeId, Math.max(0, totalValue));
+	}
+
+	/**
+	 * Apply an adjustment to the values held for a type.
+	 *
+	 * @param typeId     The id of the type of item adjusted.
+	 * @param operation  The operation applied.
+	 * @param value      The value for the operation.
+	 * @param totals     The running totals, already adjusted.
+	 */
+	public void adjust(int typeId, adjustmentOperation operation, int value, TypeTotals totals) {
+		int counter = byVolume.find(typeId);
+		if ((0 <= counter) && (typeId == sketchOwners[counter])) {
+			valueSketches[counter].adjust(operation, value);
+		}
+
+		counter = byValue.find(typeId);
+		if (0 <= counter) {
+			long count = Math.max(0, totals.getTotalValue(typeId)) + byValue.getError(counter);
+			byValue.update(counter, (0 > count) ? Long.MAX_VALUE : count);
+		}
+	}
+
+	/**
+	 * Generate a report of the types leading by volume and by value.
+	 *
+	 * @param totals        The running totals, from which the figures are taken.
+	 * @param productTypes  The names of the types.
+	 * @return The report.
+	 */
+	public TopTypesReport createReport(TypeTotals totals, ProductTypeRegistry productTypes) {
+		List<SalesReportItem> topByVolume = new ArrayList<SalesReportItem>();
+		Map<String, QuantileSketch> sketches = new HashMap<String, QuantileSketch>();
+
+		for (int counter : byVolume.getCountersByWeight()) {
+			if (numTypes == topByVolume.size()) {
+				break;
+			}
+			int typeId = byVolume.getTypeId(counter);
+			String productType = productTypes.getProductType(typeId);
+			topByVolume.add(totals.createReportItem(typeId, productType));
+			if (typeId == sketchOwners[counter]) {
+				sketches.put(productType, new QuantileSketch(valueSketches[counter]));
+			}
+		}
+
+		return new TopTypesReport(topByVolume, createValueReport(totals, productTypes), sketches);
+	}
+
+	/**
+	 * Generate a report of the types leading by value alone, without copying the
+	 * distributions of values.
+	 *
+	 * @param totals        The running totals, from which the figures are taken.
+	 * @param productTypes  The names of the types.
+	 * @return The types leading by value, in order of decreasing value.
+	 */
+	public List<SalesReportItem> createValueReport(TypeTotals totals, ProductTypeRegistry productTypes) {
+		List<SalesReportItem> topByValue = new ArrayList<SalesReportItem>(numTypes);
+		for (int counter : byValue.getCountersByWeight()) {
+			if (numTypes == topByValue.size()) {
+				break;
+			}
+			int typeId = byValue.getTypeId(counter);
+			topByValue.add(totals.createReportItem(typeId, productTypes.getProductType(typeId)));
+		}
+		return topByValue;
+	}
+
+
+	/*
+	 * Returns the sketch held with a counter by volume, clearing it if the counter has
+	 * been taken over by a new type.
+	 */
+	private QuantileSketch sketchFor(int counter, int typeId) {
+		if (typeId != sketchOwners[counter]) {
+			valueSketches[counter].clear();
+			sketchOwners[counter] = typeId;
+		}
+		return valueSketches[counter];
+	}
+
+}
@@ -0,0 +1,290 @@
+/**
+ * The running totals of the sales of each product type, indexed by the id given
+ * to the type by a {@link ProductTypeRegistry}.
+ * 
+ * Total values are held as longs, and every change to them is checked for overflow.
+ * Should the total for a type go beyond the range of a long, that total alone moves
+ * to exact arithmetic with a BigInteger, so that totals are never wrong, while the 
+ * totals of other types, and of all types in the usual case, stay on the faster path.
+ */
+package mjr.techtest.impl;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import mjr.techtest.SalesService.adjustmentOperation;
+
+/**
+ * @author mrowe
+ *
+ */
+public class TypeTotals {
+
+	private static final int INITIAL_CAPACITY = 16;
+	
+	private int[] numItems = new int[INITIAL_CAPACITY];
+	private long[] totalValues = new long[INITIAL_CAPACITY];
+	
+	// The exact total of each type whose total is beyond the range of a long, or null.
+	private BigInteger[] exactTotalValues = null;
+	
+	
+	public TypeTotals() {
+	}
+	
+	/**
+	 * Create a copy of existing totals, which is unaffected by any later changes to 
+	 * the original.
+	 * 
+	 * @param original  The totals to be copied.
+	 */
+	public TypeTotals(TypeTotals original) {
+		numItems = original.numItems.clone();
+		totalValues = original.totalValues.clone();
+		exactTotalValues = (null == original.exactTotalValues) ? null : original.exactTotalValues.clone();
+	}
+	
+	
+	/**
+	 * Add a number of items, each of the same value, to the totals for a type.
+	 * 
+	 * @param typeId  The id of the product type.
+	 * @param value   The value of each item.
+	 * @param count   The number of items.
+	 */
+	public void add(int typeId, long value, int count) {
+		ensureCapacity(typeId);
+		numItems[typeId] = Math.addExact(numItems[typeId], count);
+		
+		if (!isExact(typeId)) {
+			try {
+				totalValues[typeId] = Math.addExact(totalValues[typeId], Math.multiplyExact(value, count));
+				return;
+			}
+			catch (ArithmeticException e) {
+				escalate(typeId);
+			}
+		}
+		exactTotalValues[typeId] = exactTotalValues[typeId].add(BigInteger.valueOf(value).multiply(BigInteger.valueOf(count)));
+	}
+	
+	/**
+	 * Add a number of items, each of the same value once the modifications of a 
+	 * transform have been applied, to the totals for a type.  The adjusted value may be
+	 * beyond the range of a long.
+	 * 
+	 * @param typeId     The id of the product type.
+	 * @param transform  The modifications applied to the value.
+	 * @param value      The value of each item before the modifications.
+	 * @param count      The number of items.
+	 */
+	public void add(int typeId, AdjustmentTransform transform, int value, int count) {
+		if (!transform.isExact()) {
+			long currValue;
+			try {
+				currValue = transform.apply(value);
+			}
+			catch (ArithmeticException e) {
+				add(typeId, transform.applyExact(value), count);
+				return;
+			}
+			add(typeId, currValue, count);
+			return;
+		}
+		add(typeId, transform.applyExact(value), count);
+	}
+	
+	/*
+	 * Add a number of items, each of the same exact value, to the totals for a type.
+	 */
+	private void add(int typeId, BigInteger value, int count) {
+		ensureCapacity(typeId);
+		numItems[typeId] = Math.addExact(numItems[typeId], count);
+		setExact(typeId, getExactTotalValue(typeId).add(value.multiply(BigInteger.valueOf(count))));
+	}
+	
+	/**
+	 * Apply an operation to every item of a type already included in the totals.
+	 * 
+	 * @param typeId     The id of the product type.
+	 * @param operation  The operation to be applied.
+	 * @param value      The value for the operation.
+	 */
+	public void adjust(int typeId, adjustmentOperation operation, int value) {
+		ensureCapacity(typeId);
+		
+		if (!isExact(typeId)) {
+			try {
+				totalValues[typeId] = ModificationRecordItem.applyToTotal(operation, value, numItems[typeId], totalValues[typeId]);
+				return;
+			}
+			catch (ArithmeticException e) {
+				escalate(typeId);
+			}
+		}
+		
+		BigInteger total = exactTotalValues[typeId];
+		BigInteger change = BigInteger.valueOf(value);
+		if (adjustmentOperation.ADD == operation) {
+			total = total.add(change.multiply(BigInteger.valueOf(numItems[typeId])));
+		}
+		else if (adjustmentOperation.SUBTRACT == operation) {
+			total = total.subtract(change.multiply(BigInteger.valueOf(numItems[typeId])));
+		}
+		else if (adjustmentOperation.MULTIPLY == operation) {
+			total = total.multiply(change);
+		}
+		setExact(typeId, total);
+	}
+	
+	
+	/**
+	 * Replace the totals for a type, as when restoring them from a snapshot.
+	 * 
+	 * @param typeId      The id of the product type.
+	 * @param numItems    The number of items of the type sold.
+	 * @param totalValue  The total value of the items of the type sold.
+	 */
+	public void restore(int typeId, int numItems, BigInteger totalValue) {
+		ensureCapacity(typeId);
+		this.numItems[typeId] = numItems;
+		setExact(typeId, totalValue);
+	}
+	
+	
+	/**
+	 * Add the totals for every type held in other totals to these.
+	 * 
+	 * @param other  The totals to be added.
+	 */
+	public void addAll(TypeTotals other) {
+		for (int typeId = other.numItems.length - 1; typeId >= 0; typeId--) {
+			if ((0 == other.numItems[typeId]) && (0 == other.totalValues[typeId]) && !other.isExact(typeId)) {
+				continue;
+			}
+			ensureCapacity(typeId);
+			numItems[typeId] = Math.addExact(numItems[typeId], other.numItems[typeId]);
+			
+			if (!isExact(typeId) && !other.isExact(typeId)) {
+				try {
+					totalValues[typeId] = Math.addExact(totalValues[typeId], other.totalValues[typeId]);
+					continue;
+				}
+				catch (ArithmeticException e) {
+					// Fall through to exact arithmetic.
+				}
+			}
+			setExact(typeId, getExactTotalValue(typeId).add(other.getExactTotalValue(typeId)));
+		}
+	}
+	
+	/**
+	 * Set the totals for every type back to zero.
+	 */
+	public void clear() {
+		Arrays.fill(numItems, 0);
+		Arrays.fill(totalValues, 0);
+		exactTotalValues = null;
+	}
+	
+	
+	/*
+	 * Make sure there is space for the totals of the given type.
+	 */
+	private void ensureCapacity(int typeId) {
+		if (typeId >= numItems.length) {
+			int capacity = Math.max(typeId + 1, numItems.length * 2);
+			numItems = Arrays.copyOf(numItems, capacity);
+			totalValues = Arrays.copyOf(totalValues, capacity);
+			if (null != exactTotalValues) {
+				exactTotalValues = Arrays.copyOf(exactTotalValues, capacity);
+			}
+		}
+	}
+	
+	
+	/*
+	 * Check whether the total of a type is held exactly, being beyond the range of a long.
+	 */
+	private boolean isExact(int typeId) {
+		return (null != exactTotalValues) && (null != exactTotalValues[typeId]);
+	}
+	
+	
+	/*
+	 * Move the total of a type from a long to exact arithmetic.
+	 */
+	private void escalate(int typeId) {
+		if (null == exactTotalValues) {
+			exactTotalValues = new BigInteger[numItems.length];
+		}
+		exactTotalValues[typeId] = BigInteger.valueOf(totalValues[typeId]);
+	}
+	
+	
+	/*
+	 * Set the total of a type, held as a long if it is within range, or exactly if not.
+	 */
+	private void setExact(int typeId, BigInteger totalValue) {
+		if (totalValue.bitLength() < Long.SIZE) {
+			totalValues[typeId] = totalValue.longValue();
+			if (null != exactTotalValues) {
+				exactTotalValues[typeId] = null;
+			}
+		}
+		else {
+			if (null == exactTotalValues) {
+				exactTotalValues = new BigInteger[numItems.length];
+			}
+			exactTotalValues[typeId] = totalValue;
+		}
+	}
+	
+	
+	/**
+	 * @param typeId  The id of the product type.
+	 * @return The number of items of the type sold.
+	 */
+	public int getNumItems(int typeId) {
+		return (typeId < numItems.length) ? numItems[typeId] : 0;
+	}
+	
+	/**
+	 * @param typeId  The id of the product type.
+	 * @return The total value of the items of the type sold, or the nearest value a long 
+	 *             can hold, if the total is beyond the range of a long.
+	 */
+	public long getTotalValue(int typeId) {
+		if ((typeId < numItems.length) && isExact(typeId)) {
+			return (0 < exactTotalValues[typeId].signum()) ? Long.MAX_VALUE : Long.MIN_VALUE;
+		}
+		return (typeId < totalValues.length) ? totalValues[typeId] : 0;
+	}
+	
+	/**
+	 * @param typeId  The id of the product type.
+	 * @return The exact total value of the items of the type sold.
+	 */
+	public BigInteger getExactTotalValue(int typeId) {
+		if ((typeId < numItems.length) && isExact(typeId)) {
+			return exactTotalValues[typeId];
+		}
+		return BigInteger.valueOf(getTotalValue(typeId));
+	}
+	
+	
+	/**
+	 * Create an item of a sales report from the totals for a type.
+	 * 
+	 * @param typeId       The id of the product type.
+	 * @param productType  The product type.
+	 * @return The report item.
+	 */
+	public SalesReportItem createReportItem(int typeId, String productType) {
+		if ((typeId < numItems.length) && isExact(typeId)) {
+			return new SalesReportItem(productType, numItems[typeId], exactTotalValues[typeId]);
+		}
+		return new SalesReportItem(productType, getNumItems(typeId), getTotalValue(typeId));
+	}
+
+}
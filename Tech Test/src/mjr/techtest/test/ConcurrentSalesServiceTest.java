@@ -0,0 +1,646 @@
+/**
+ * Tests for the implementation of the SalesService interface that may be used by
+ * a number of threads at once.
+ */
+package mjr.techtest.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import mjr.techtest.Sale;
+import mjr.techtest.SalesPausedException;
+import mjr.techtest.SalesService;
+import mjr.techtest.impl.ColumnarSalesStore;
+import mjr.techtest.impl.ConcurrentSalesMessagesService;
+import mjr.techtest.impl.ModificationRecord;
+import mjr.techtest.impl.SalesIngestionPipeline;
+import mjr.techtest.impl.SalesMessagesService;
+import mjr.techtest.impl.SalesReportItem;
+import mjr.techtest.impl.SalesReportSink;
+import mjr.techtest.impl.SalesView;
+import mjr.techtest.impl.ShardedSalesService;
+
+/**
+ * @author mrowe
+ *
+ */
+public class ConcurrentSalesServiceTest {
+
+	private static final int NUM_THREADS = 8;
+
+	private String[] types = {"apple", "pear", "pie", "plum", "fig"};
+
+
+	/*
+	 * Run the given task on a number of threads, all starting at once, and wait for
+	 * them all to finish.
+	 */
+	private void runThreads(final Runnable task) throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+
+		for (int i = 0; i < NUM_THREADS; i++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					}
+					catch (InterruptedException e) {
+						return;
+					}
+					task.run();
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+	}
+
+
+	/*
+	 * Tests that exactly 50 sales are accepted when many threads record sales at once,
+	 * and that every other sale is rejected.
+	 */
+	@Test
+	public void testPauseUnderContention() throws Exception {
+		final ConcurrentSalesMessagesService testService = new ConcurrentSalesMessagesService();
+		final AtomicInteger accepted = new AtomicInteger();
+		final AtomicInteger rejected = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		final int salesPerThread = 200;
+
+		runThreads(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < salesPerThread; i++) {
+					try {
+						testService.recordSale(new Sale(types[i % types.length], 10));
+						accepted.incrementAndGet();
+					}
+					catch (SalesPausedException spe) {
+						rejected.incrementAndGet();
+					}
+					catch (Exception e) {
+						failed.incrementAndGet();
+					}
+				}
+			}
+		});
+
+		assertEquals(0, failed.get());
+		assertEquals(50, accepted.get());
+		assertEquals((NUM_THREADS * salesPerThread) - 50, rejected.get());
+		assertEquals(SalesMessagesService.State.PAUSED, testService.getCurrState());
+
+		int numItems = 0;
+		int totalValue = 0;
+		for (SalesReportItem item : testService.generateReport()) {
+			numItems += item.getNumItems();
+			totalValue += item.getTotalValue();
+		}
+		assertEquals(50, numItems);
+		assertEquals(500, totalValue);
+	}
+
+
+	/*
+	 * Tests that the report made at each logging point includes every sale up to that
+	 * point, however the threads recording them are scheduled.  Reports may be passed
+	 * on in any order, but the i'th smallest may only be smaller than the i'th logging
+	 * point if the report at some earlier point had missed sales before it.
+	 */
+	@Test
+	public void testReportsIncludeEarlierSales() throws Exception {
+		ConcurrentSalesMessagesService testService = new ConcurrentSalesMessagesService(10, Integer.MAX_VALUE);
+		List<Integer> reportedItems = Collections.synchronizedList(new ArrayList<Integer>());
+
+		testService.setReportSink(countingSink(reportedItems));
+		recordFromThreads(testService);
+		assertReportsIncludeEarlierSales(reportedItems, testService.getSalesCount());
+	}
+
+	/*
+	 * Tests the same across the shards, where sales are claimed before they are passed
+	 * to the shards.
+	 */
+	@Test
+	public void testShardedReportsIncludeEarlierSales() throws Exception {
+		ShardedSalesService testService = new ShardedSalesService(4, 10, Integer.MAX_VALUE);
+		List<Integer> reportedItems = Collections.synchronizedList(new ArrayList<Integer>());
+
+		try {
+			testService.setReportSink(countingSink(reportedItems));
+			recordFromThreads(testService);
+			assertReportsIncludeEarlierSales(reportedItems, testService.getSalesCount());
+		}
+		finally {
+			testService.close();
+		}
+	}
+
+	/*
+	 * Returns a sink that adds the number of items in each report to a list.
+	 */
+	private SalesReportSink countingSink(final List<Integer> reportedItems) {
+		return new SalesReportSink() {
+			@Override
+			public void reportSales(List<SalesReportItem> report) {
+				int numItems = 0;
+				for (SalesReportItem item : report) {
+					numItems += item.getNumItems();
+				}
+				reportedItems.add(numItems);
+			}
+
+			@Override
+			public void reportModifications(ModificationRecord modifications) {
+			}
+		};
+	}
+
+	/*
+	 * Record sales of varying volumes from every thread at once.
+	 */
+	private void recordFromThreads(final SalesService testService) throws Exception {
+		final AtomicInteger failed = new AtomicInteger();
+		final int salesPerThread = 2000;
+
+		runThreads(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < salesPerThread; i++) {
+					try {
+						testService.recordSale(new Sale(types[i % types.length], 10), 1 + (i % 3));
+					}
+					catch (Exception e) {
+						failed.incrementAndGet();
+					}
+				}
+			}
+		});
+		assertEquals(0, failed.get());
+	}
+
+	/*
+	 * Check that there was a report at each logging point, and that none missed sales
+	 * before its point.
+	 */
+	private void assertReportsIncludeEarlierSales(List<Integer> reportedItems, int salesCount) {
+		List<Integer> sorted = new ArrayList<Integer>(reportedItems);
+		Collections.sort(sorted);
+		assertEquals(salesCount / 10, sorted.size());
+		for (int i = 0; i < sorted.size(); i++) {
+			assertTrue("Report " + i + " missed earlier sales", sorted.get(i) >= 10 * (i + 1));
+		}
+	}
+
+
+	/*
+	 * Tests that the running totals stay consistent with the stored sales when many
+	 * threads record and adjust sales at once.
+	 */
+	@Test
+	public void testTotalsUnderContention() throws Exception {
+		final ConcurrentSalesMessagesService testService =
+				new ConcurrentSalesMessagesService(Integer.MAX_VALUE, Integer.MAX_VALUE);
+		final AtomicInteger failed = new AtomicInteger();
+		final int salesPerThread = 20000;
+
+		runThreads(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < salesPerThread; i++) {
+						Sale sale = new Sale(types[i % types.length], i % 100);
+						if (0 == i % 50) {
+							testService.adjustSale(sale, SalesService.adjustmentOperation.ADD, 3);
+						}
+						else if (0 == i % 73) {
+							testService.adjustSale(sale, SalesService.adjustmentOperation.SUBTRACT, 2);
+						}
+						else if (0 == i % 997) {
+							testService.adjustSale(sale, SalesService.adjustmentOperation.MULTIPLY, 2);
+						}
+						else if (0 == i % 7) {
+							testService.recordSale(sale, 3);
+						}
+						else {
+							testService.recordSale(sale);
+						}
+					}
+				}
+				catch (Exception e) {
+					failed.incrementAndGet();
+				}
+			}
+		});
+
+		assertEquals(0, failed.get());
+
+		List<SalesReportItem> report = testService.generateReport();
+		List<SalesReportItem> recalculated = testService.recalculateReport();
+		assertEquals(types.length, report.size());
+		assertEquals(types.length, recalculated.size());
+
+		int numItems = 0;
+		for (SalesReportItem item : report) {
+			for (SalesReportItem match : recalculated) {
+				if (match.getItemType().equals(item.getItemType())) {
+					assertEquals(match.getNumItems(), item.getNumItems());
+					assertEquals(match.getTotalValue(), item.getTotalValue());
+				}
+			}
+			numItems += item.getNumItems();
+		}
+		assertEquals(testService.getSalesCount(), numItems);
+		assertEquals(SalesMessagesService.State.RUNNING, testService.getCurrState());
+	}
+
+
+	/*
+	 * Tests that sales passed through the ingestion pipeline by many threads are applied
+	 * one at a time, so that exactly 50 are recorded before the service pauses and all
+	 * others are rejected, either at once or once they reach the service.
+	 */
+	@Test
+	public void testPipelinePause() throws Exception {
+		SalesMessagesService service = new SalesMessagesService();
+		final SalesIngestionPipeline pipeline = new SalesIngestionPipeline(service, 64);
+		final AtomicInteger rejected = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		final int salesPerThread = 200;
+
+		runThreads(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < salesPerThread; i++) {
+					try {
+						pipeline.recordSale(new Sale(types[i % types.length], 10));
+					}
+					catch (SalesPausedException spe) {
+						rejected.incrementAndGet();
+					}
+					catch (Exception e) {
+						failed.incrementAndGet();
+					}
+				}
+			}
+		});
+		pipeline.close();
+
+		assertEquals(0, failed.get());
+		assertEquals((NUM_THREADS * salesPerThread) - 50, rejected.get() + pipeline.getRejectedCount());
+		assertEquals(SalesMessagesService.State.PAUSED, service.getCurrState());
+
+		int numItems = 0;
+		for (SalesReportItem item : service.generateReport()) {
+			numItems += item.getNumItems();
+		}
+		assertEquals(50, numItems);
+	}
+
+
+	/*
+	 * Tests that messages from many threads, passing through a pipeline much smaller than
+	 * their number, are all applied, and that messages from one thread are applied in
+	 * the order in which they were sent.
+	 */
+	@Test
+	public void testPipelineThroughput() throws Exception {
+		SalesMessagesService service = new SalesMessagesService(new ColumnarSalesStore(), 
+				Integer.MAX_VALUE, Integer.MAX_VALUE);
+		final SalesIngestionPipeline pipeline = new SalesIngestionPipeline(service, 16);
+		final AtomicInteger failed = new AtomicInteger();
+		final int salesPerThread = 20000;
+
+		runThreads(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Sale sale = new Sale(types[0], 1);
+					for (int i = 0; i < salesPerThread; i++) {
+						pipeline.recordSale(sale, 2);
+					}
+				}
+				catch (Exception e) {
+					failed.incrementAndGet();
+				}
+			}
+		});
+
+		Sale sale = new Sale(types[1], 10);
+		pipeline.recordSale(sale, 5);
+		pipeline.adjustSale(sale, SalesService.adjustmentOperation.MULTIPLY, 3);
+		pipeline.recordSale(sale, 5);
+		pipeline.flush();
+
+		assertEquals(0, failed.get());
+		assertEquals(0, pipeline.getRejectedCount());
+		List<SalesReportItem> report = service.generateReport();
+		assertEquals(NUM_THREADS * salesPerThread * 2, report.get(0).getNumItems());
+		assertEquals(NUM_THREADS * salesPerThread * 2, report.get(0).getTotalValue(), 0);
+		assertEquals(10, report.get(1).getNumItems());
+		assertEquals((5 * 10 * 3) + (5 * 10), report.get(1).getTotalValue(), 0);
+		pipeline.close();
+	}
+
+
+
+	/*
+	 * Tests that every sale accepted by a pipeline is applied when it is closed while
+	 * threads are still recording sales, and that none waits for ever for a full ring.
+	 */
+	@Test(timeout = 60000)
+	public void testPipelineCloseUnderContention() throws Exception {
+		for (int round = 0; round < 20; round++) {
+			SalesMessagesService service = new SalesMessagesService(new ColumnarSalesStore(), 
+					Integer.MAX_VALUE, Integer.MAX_VALUE);
+			final SalesIngestionPipeline pipeline = new SalesIngestionPipeline(service, 4);
+			final AtomicInteger started = new AtomicInteger();
+			final AtomicInteger accepted = new AtomicInteger();
+			final AtomicInteger failed = new AtomicInteger();
+
+			runThreads(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (0 == started.getAndIncrement()) {
+							Thread.sleep(1);
+							pipeline.close();
+							return;
+						}
+						Sale sale = new Sale(types[0], 1);
+						while (true) {
+							pipeline.recordSale(sale);
+							accepted.incrementAndGet();
+						}
+					}
+					catch (IllegalStateException e) {
+						// The pipeline has been closed.
+					}
+					catch (Exception e) {
+						failed.incrementAndGet();
+					}
+				}
+			});
+
+			assertEquals(0, failed.get());
+			List<SalesReportItem> report = service.generateReport();
+			assertEquals(accepted.get(), report.isEmpty() ? 0 : report.get(0).getNumItems());
+		}
+	}
+
+
+	/*
+	 * Tests that exactly 50 sales are accepted across the shards when many threads
+	 * record sales at once, with a report at each logging point.
+	 */
+	@Test
+	public void testShardedPause() throws Exception {
+		final ShardedSalesService testService = new ShardedSalesService(4);
+		final AtomicInteger accepted = new AtomicInteger();
+		final AtomicInteger rejected = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		final AtomicInteger reports = new AtomicInteger();
+		final AtomicInteger modificationReports = new AtomicInteger();
+		final int salesPerThread = 200;
+
+		testService.setReportSink(new SalesReportSink() {
+			@Override
+			public void reportSales(List<SalesReportItem> report) {
+				reports.incrementAndGet();
+			}
+
+			@Override
+			public void reportModifications(ModificationRecord modifications) {
+				modificationReports.incrementAndGet();
+			}
+		});
+
+		try {
+			runThreads(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < salesPerThread; i++) {
+						try {
+							testService.recordSale(new Sale(types[i % types.length], 10));
+							accepted.incrementAndGet();
+						}
+						catch (SalesPausedException spe) {
+							rejected.incrementAndGet();
+						}
+						catch (Exception e) {
+							failed.incrementAndGet();
+						}
+					}
+				}
+			});
+
+			assertEquals(0, failed.get());
+			assertEquals(50, accepted.get());
+			assertEquals((NUM_THREADS * salesPerThread) - 50, rejected.get());
+			assertEquals(SalesMessagesService.State.PAUSED, testService.getCurrState());
+			assertEquals(5, reports.get());
+			assertEquals(1, modificationReports.get());
+
+			int numItems = 0;
+			long totalValue = 0;
+			for (SalesReportItem item : testService.generateReport()) {
+				numItems += item.getNumItems();
+				totalValue += item.getTotalValue();
+			}
+			assertEquals(50, numItems);
+			assertEquals(500, totalValue);
+		}
+		finally {
+			testService.close();
+		}
+	}
+
+
+	/*
+	 * Tests that the product types are spread over the shards, and that the totals
+	 * merged from the shards stay consistent with the stored sales when many threads
+	 * record and adjust sales at once.
+	 */
+	@Test
+	public void testShardedTotals() throws Exception {
+		final ShardedSalesService testService = new ShardedSalesService(4, Integer.MAX_VALUE, Integer.MAX_VALUE);
+		final AtomicInteger failed = new AtomicInteger();
+		final int salesPerThread = 20000;
+		final int numTypes = 1000;
+
+		int[] typesPerShard = new int[testService.getNumShards()];
+		for (int i = 0; i < numTypes; i++) {
+			int shard = testService.getShard("type" + i);
+			assertEquals(shard, testService.getShard("type" + i));
+			typesPerShard[shard]++;
+		}
+		for (int count : typesPerShard) {
+			assertTrue(count > numTypes / testService.getNumShards() / 2);
+		}
+
+		try {
+			runThreads(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < salesPerThread; i++) {
+							Sale sale = new Sale("type" + (i % numTypes), i % 100);
+							if (0 == i % 50) {
+								testService.adjustSale(sale, SalesService.adjustmentOperation.ADD, 3);
+							}
+							else if (0 == i % 7) {
+								testService.recordSale(sale, 3);
+							}
+							else {
+								testService.recordSale(sale);
+							}
+						}
+					}
+					catch (Exception e) {
+						failed.incrementAndGet();
+					}
+				}
+			});
+
+			assertEquals(0, failed.get());
+
+			List<SalesReportItem> report = testService.generateReport();
+			List<SalesReportItem> recalculated = testService.recalculateReport();
+			assertEquals(recalculated.size(), report.size());
+
+			int numItems = 0;
+			for (int i = 0; i < report.size(); i++) {
+				assertEquals(recalculated.get(i).getItemType(), report.get(i).getItemType());
+				assertEquals(recalculated.get(i).getNumItems(), report.get(i).getNumItems());
+				assertEquals(recalculated.get(i).getTotalValue(), report.get(i).getTotalValue());
+				numItems += report.get(i).getNumItems();
+			}
+			assertEquals(testService.getSalesCount(), numItems);
+			assertEquals(NUM_THREADS * (salesPerThread / 50), countModifications(testService.getSaleModifications()));
+		}
+		finally {
+			testService.close();
+		}
+	}
+
+
+	/*
+	 * Tests that readers of the published views, which do not take the lock of the
+	 * service, always see a consistent point while other threads record sales, and that
+	 * the final view matches the service.
+	 */
+	@Test
+	public void testSalesViewUnderContention() throws Exception {
+		final SalesMessagesService testService = new SalesMessagesService(new ColumnarSalesStore(),
+				Integer.MAX_VALUE, Integer.MAX_VALUE);
+		final AtomicInteger roles = new AtomicInteger();
+		final AtomicInteger writersDone = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		final int numReaders = 2;
+		final int salesPerThread = 5000;
+
+		try {
+			testService.getSalesView();
+			fail("Views are not being published");
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+		testService.recordSale(new Sale(types[0], 10), 5);
+		testService.enableSalesView();
+		assertEquals(5, testService.getSalesView().getSalesCount());
+
+		runThreads(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (numReaders > roles.getAndIncrement()) {
+						readViews();
+					}
+					else {
+						for (int i = 0; i < salesPerThread; i++) {
+							Sale sale = new Sale(types[i % types.length], 10);
+							if (0 == i % 100) {
+								// Multiplying by one records a modification without changing any value.
+								testService.adjustSale(sale, SalesService.adjustmentOperation.MULTIPLY, 1);
+							}
+							testService.recordSale(sale);
+						}
+						writersDone.incrementAndGet();
+					}
+				}
+				catch (Exception e) {
+					failed.incrementAndGet();
+				}
+			}
+
+			/*
+			 * Every sale has the value 10, so in a consistent view the total value is ten
+			 * times the number of sales, and nothing in a later view goes backwards.
+			 */
+			private void readViews() {
+				int prevSalesCount = 0;
+				int prevModifications = 0;
+
+				while (NUM_THREADS - numReaders > writersDone.get()) {
+					SalesView view = testService.getSalesView();
+					int numItems = 0;
+					long totalValue = 0;
+					for (SalesReportItem item : view.getReport()) {
+						numItems += item.getNumItems();
+						totalValue += item.getTotalValue();
+					}
+					int numModifications = countModifications(view.getSaleModifications());
+
+					if ((view.getSalesCount() != numItems) || (10L * numItems != totalValue)
+							|| (prevSalesCount > numItems) || (prevModifications > numModifications)) {
+						failed.incrementAndGet();
+						return;
+					}
+					prevSalesCount = numItems;
+					prevModifications = numModifications;
+				}
+			}
+		});
+
+		assertEquals(0, failed.get());
+
+		SalesView view = testService.getSalesView();
+		List<SalesReportItem> report = testService.generateReport();
+		List<SalesReportItem> viewReport = view.getReport();
+		assertEquals(report.size(), viewReport.size());
+		for (int i = 0; i < report.size(); i++) {
+			assertEquals(report.get(i).getItemType(), viewReport.get(i).getItemType());
+			assertEquals(report.get(i).getNumItems(), viewReport.get(i).getNumItems());
+			assertEquals(report.get(i).getTotalValue(), viewReport.get(i).getTotalValue());
+		}
+		assertEquals(5 + (NUM_THREADS - numReaders) * salesPerThread, view.getSalesCount());
+		assertEquals((NUM_THREADS - numReaders) * (salesPerThread / 100), countModifications(view.getSaleModifications()));
+	}
+
+	/*
+	 * Returns the number of modifications held in a record.
+	 */
+	private int countModifications(ModificationRecord record) {
+		int count = 0;
+		for (String itemType : record.getModifiedTypes()) {
+			count += record.getModificationCount(itemType);
+		}
+		return count;
+	}
+
+}
@@ -0,0 +1,461 @@
+/**
+ * Tests for the reading of sale and adjustment messages from channels.
+ */
+package mjr.techtest.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import mjr.techtest.Sale;
+import mjr.techtest.SalesException;
+import mjr.techtest.SalesPausedException;
+import mjr.techtest.SalesService;
+import mjr.techtest.impl.ColumnarSalesStore;
+import mjr.techtest.impl.ModificationRecord;
+import mjr.techtest.impl.SalesChannelReader;
+import mjr.techtest.impl.SalesMessageCodec;
+import mjr.techtest.impl.SalesMessageDecoder;
+import mjr.techtest.impl.SalesMessagesService;
+import mjr.techtest.impl.SalesReplayer;
+import mjr.techtest.impl.SalesReportItem;
+import mjr.techtest.impl.SalesReportSink;
+
+/**
+ * @author mrowe
+ *
+ */
+public class SalesMessageReaderTest {
+
+	private String typeApple = "apple";
+	private String typePie = "pie";
+
+	private int costApple = 20;
+	private int costPie = 129;
+
+
+	/*
+	 * Write the contents of a buffer, from its start to its position, to a channel.
+	 */
+	private void writeAll(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+
+	/*
+	 * Tests that messages sent over a pipe are applied to the service, including a message
+	 * that arrives in two parts.
+	 */
+	@Test
+	public void testReadFromPipe() throws Exception {
+		SalesMessagesService service = new SalesMessagesService();
+		SalesChannelReader reader = new SalesChannelReader(service);
+		Pipe pipe = Pipe.open();
+		reader.register(pipe.source());
+
+		ByteBuffer buffer = ByteBuffer.allocate(1024);
+		SalesMessageCodec.encodeSale(buffer, typeApple, costApple);
+		SalesMessageCodec.encodeSales(buffer, typePie, costPie, 4);
+		SalesMessageCodec.encodeAdjustment(buffer, typeApple, SalesService.adjustmentOperation.ADD, 5);
+		SalesMessageCodec.encodeSales(buffer, typeApple, costApple, 3);
+
+		// Send all but the last three bytes, which complete the final message.
+		buffer.flip();
+		ByteBuffer tail = buffer.duplicate();
+		buffer.limit(buffer.limit() - 3);
+		tail.position(buffer.limit());
+		while (buffer.hasRemaining()) {
+			pipe.sink().write(buffer);
+		}
+
+		int numMessages = 0;
+		while (3 > numMessages) {
+			numMessages += reader.poll(1000);
+		}
+		assertEquals(3, numMessages);
+
+		while (tail.hasRemaining()) {
+			pipe.sink().write(tail);
+		}
+		while (4 > numMessages) {
+			numMessages += reader.poll(1000);
+		}
+
+		List<SalesReportItem> report = service.generateReport();
+		assertEquals(2, report.size());
+		assertEquals(4, report.get(0).getNumItems());
+		assertEquals((costApple + 5) + (costApple * 3), report.get(0).getTotalValue(), 0);
+		assertEquals(costPie * 4, report.get(1).getTotalValue(), 0);
+
+		// The reader closes the channel once the other end is closed.
+		pipe.sink().close();
+		while (0 < reader.getOpenChannels()) {
+			reader.poll(1000);
+		}
+		reader.close();
+	}
+
+
+	/*
+	 * Tests that messages are read from a file to its end, and that those rejected once
+	 * the service pauses are counted without stopping the reading.
+	 */
+	@Test
+	public void testReadFromFile() throws Exception {
+		Path file = Files.createTempFile("sales", ".msg");
+
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(1024);
+			try (FileChannel output = FileChannel.open(file, StandardOpenOption.WRITE)) {
+				for (int i = 0; i < 60; i++) {
+					SalesMessageCodec.encodeSale(buffer, (0 == i % 2) ? typeApple : typePie, costApple);
+					if (buffer.remaining() < SalesMessageCodec.MAX_MESSAGE_SIZE) {
+						writeAll(buffer, output);
+					}
+				}
+				writeAll(buffer, output);
+			}
+
+			SalesMessagesService service = new SalesMessagesService();
+			SalesChannelReader reader = new SalesChannelReader(service);
+			try (FileChannel input = FileChannel.open(file, StandardOpenOption.READ)) {
+				assertEquals(60, reader.readFully(input));
+			}
+			assertEquals(10, reader.getRejectedCount());
+			assertEquals(SalesMessagesService.State.PAUSED, service.getCurrState());
+			assertEquals(25, service.generateReport().get(0).getNumItems());
+			reader.close();
+		}
+		finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+
+	/*
+	 * Tests that a channel sending data that is not in the expected format is closed.
+	 */
+	@Test
+	public void testMalformedMessage() throws Exception {
+		SalesMessagesService service = new SalesMessagesService();
+		SalesChannelReader reader = new SalesChannelReader(service);
+		Pipe pipe = Pipe.open();
+		reader.register(pipe.source());
+
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		SalesMessageCodec.encodeSale(buffer, typeApple, costApple);
+		buffer.put((byte) 99).put((byte) 0);
+		writeAll(buffer, pipe.sink());
+
+		try {
+			while (true) {
+				reader.poll(1000);
+			}
+		}
+		catch (IOException e) {
+			// Expected.
+		}
+		assertEquals(0, reader.getOpenChannels());
+		assertEquals(1, service.generateReport().get(0).getNumItems());
+		reader.close();
+	}
+
+
+	/*
+	 * Tests that a channel ending part way through a message is closed with an error, as
+	 * when it is read fully, once the complete messages before it are read.
+	 */
+	@Test
+	public void testIncompleteMessageAtEnd() throws Exception {
+		SalesMessagesService service = new SalesMessagesService();
+		SalesChannelReader reader = new SalesChannelReader(service);
+		Pipe pipe = Pipe.open();
+		reader.register(pipe.source());
+
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		SalesMessageCodec.encodeSale(buffer, typeApple, costApple);
+		int end = buffer.position();
+		SalesMessageCodec.encodeSale(buffer, typePie, costPie);
+		buffer.position(end + 3);
+		writeAll(buffer, pipe.sink());
+		pipe.sink().close();
+
+		try {
+			while (0 < reader.getOpenChannels()) {
+				reader.poll(1000);
+			}
+			fail("IOException expected.");
+		}
+		catch (IOException e) {
+			assertEquals("Incomplete sales message at the end of the channel", e.getMessage());
+		}
+		assertEquals(0, reader.getOpenChannels());
+		assertEquals(1, reader.getMessageCount());
+		assertEquals(1, service.generateReport().size());
+		reader.close();
+	}
+
+
+	/*
+	 * Tests that the decoder reuses one Sale for every message for the same product type.
+	 */
+	@Test
+	public void testSaleReused() throws Exception {
+		final List<Sale> received = new ArrayList<Sale>();
+		final List<Integer> values = new ArrayList<Integer>();
+		SalesMessageDecoder decoder = new SalesMessageDecoder(new SalesService() {
+			@Override
+			public void recordSale(Sale newSale) throws SalesException {
+				received.add(newSale);
+				values.add(newSale.getValue());
+			}
+
+			@Override
+			public void recordSale(Sale newSale, int volume) throws SalesException {
+				recordSale(newSale);
+			}
+
+			@Override
+			public void adjustSale(Sale existingSale, adjustmentOperation adjustment, int adjustmentValue) {
+			}
+		});
+
+		ByteBuffer buffer = ByteBuffer.allocate(1024);
+		SalesMessageCodec.encodeSale(buffer, typeApple, 1);
+		SalesMessageCodec.encodeSale(buffer, typePie, 2);
+		SalesMessageCodec.encodeSales(buffer, typeApple, 3, 10);
+		buffer.flip();
+		assertEquals(3, decoder.decode(buffer));
+
+		assertSame(received.get(0), received.get(2));
+		assertNotSame(received.get(0), received.get(1));
+		assertEquals(typeApple, received.get(2).getProductType());
+		assertEquals(3, values.get(2).intValue());
+		assertEquals(1, values.get(0).intValue());
+	}
+	
+	
+	/*
+	 * Tests that replaying a file of messages in parallel chunks gives the same reports,
+	 * at the same points, as decoding the messages one at a time, including the pause and
+	 * the rejection of later sales, and that a silent replay gives only the final report.
+	 */
+	@Test
+	public void testReplay() throws Exception {
+		Path file = Files.createTempFile("sales", ".msg");
+		Random random = new Random(5);
+		int numMessages = 200000;
+		
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+			for (int i = 0; i < numMessages; i++) {
+				if (buffer.remaining() < SalesMessageCodec.MAX_MESSAGE_SIZE) {
+					writeAll(buffer, channel);
+				}
+				String type = "type" + random.nextInt(50);
+				if (0 == i % 1000) {
+					SalesMessageCodec.encodeAdjustment(buffer, type, SalesService.adjustmentOperation.ADD, 1);
+				}
+				else if (0 == i % 9999) {
+					SalesMessageCodec.encodeSale(buffer, (0 == i % 2) ? "" : type, -1);
+				}
+				else if (0 == i % 3) {
+					SalesMessageCodec.encodeSales(buffer, type, random.nextInt(500), 1 + random.nextInt(4));
+				}
+				else {
+					SalesMessageCodec.encodeSale(buffer, type, random.nextInt(500));
+				}
+			}
+			writeAll(buffer, channel);
+		}
+		
+		try {
+			// Decode the messages one at a time, as they would have been received.
+			List<String> expectedReports = new ArrayList<String>();
+			SalesMessagesService expectedService = new SalesMessagesService(new ColumnarSalesStore(), 1000, 250000);
+			expectedService.setReportSink(new RecordingSink(expectedReports));
+			SalesMessageDecoder decoder = new SalesMessageDecoder(expectedService);
+			ByteBuffer messages = ByteBuffer.wrap(Files.readAllBytes(file));
+			int rejected = 0;
+			int invalid = 0;
+			while (messages.hasRemaining()) {
+				try {
+					decoder.decode(messages);
+				}
+				catch (SalesPausedException e) {
+					rejected++;
+				}
+				catch (SalesException e) {
+					invalid++;
+				}
+			}
+			assertEquals(SalesMessagesService.State.PAUSED, expectedService.getCurrState());
+			assertTrue(0 < rejected);
+			assertTrue(0 < invalid);
+			
+			List<String> reports = new ArrayList<String>();
+			SalesMessagesService service = new SalesMessagesService(new ColumnarSalesStore(), 1000, 250000);
+			service.setReportSink(new RecordingSink(reports));
+			SalesReplayer replayer = new SalesReplayer(service);
+			assertEquals(numMessages, replayer.replay(file));
+			assertEquals(numMessages, replayer.getMessageCount());
+			assertEquals(rejected, replayer.getRejectedCount());
+			assertEquals(invalid, replayer.getInvalidCount());
+			assertEquals(expectedReports, reports);
+			assertEquals(SalesMessagesService.State.PAUSED, service.getCurrState());
+			
+			List<String> silentReports = new ArrayList<String>();
+			SalesMessagesService silentService = new SalesMessagesService(new ColumnarSalesStore(), 1000, 250000);
+			silentService.setReportSink(new RecordingSink(silentReports));
+			SalesReplayer silentReplayer = new SalesReplayer(silentService);
+			silentReplayer.setSilent(true);
+			assertEquals(numMessages, silentReplayer.replay(file));
+			
+			// Adjustments are still applied once paused, so the final report is of the
+			// totals at the end rather than those at the last logging point.
+			List<String> finalReports = new ArrayList<String>();
+			RecordingSink finalSink = new RecordingSink(finalReports);
+			finalSink.reportSales(expectedService.generateReport());
+			finalSink.reportModifications(expectedService.getSaleModifications());
+			assertEquals(finalReports, silentReports);
+			
+			// An adjustment with an unknown operation ends both the decoder and the 
+			// replay with the same error, once the messages before it are applied.
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, 
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+				for (int i = 0; i < 100; i++) {
+					SalesMessageCodec.encodeSales(buffer, "type" + (i % 7), i, 2);
+				}
+				int badAdjustment = buffer.position();
+				SalesMessageCodec.encodeAdjustment(buffer, "type1", SalesService.adjustmentOperation.ADD, 1);
+				buffer.put(badAdjustment + 2 + "type1".length(), (byte) 9);
+				SalesMessageCodec.encodeSale(buffer, "type1", 10);
+				writeAll(buffer, channel);
+			}
+			
+			expectedReports.clear();
+			expectedService = new SalesMessagesService(new ColumnarSalesStore(), 30, 250000);
+			expectedService.setReportSink(new RecordingSink(expectedReports));
+			decoder = new SalesMessageDecoder(expectedService);
+			String expectedError = null;
+			try {
+				decoder.decode(ByteBuffer.wrap(Files.readAllBytes(file)));
+			}
+			catch (IOException e) {
+				expectedError = e.getMessage();
+			}
+			assertEquals("Unknown adjustment operation: 9", expectedError);
+			
+			reports.clear();
+			service = new SalesMessagesService(new ColumnarSalesStore(), 30, 250000);
+			service.setReportSink(new RecordingSink(reports));
+			replayer = new SalesReplayer(service);
+			try {
+				replayer.replay(file);
+				fail("StreamCorruptedException expected.");
+			}
+			catch (StreamCorruptedException e) {
+				assertEquals(expectedError, e.getMessage());
+			}
+			assertEquals(decoder.getMessageCount(), replayer.getMessageCount());
+			assertEquals(0, replayer.getInvalidCount());
+			assertEquals(expectedReports, reports);
+			assertEquals(expectedService.generateReport().size(), service.generateReport().size());
+			
+			// A file ending part way through a message ends the replay with an error, once
+			// every whole message before it, over several chunks, has been applied.
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, 
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+				for (int i = 0; i < 200000; i++) {
+					if (buffer.remaining() < SalesMessageCodec.MAX_MESSAGE_SIZE) {
+						writeAll(buffer, channel);
+					}
+					SalesMessageCodec.encodeSale(buffer, "type" + (i % 7), 1 + (i % 50));
+				}
+				int end = buffer.position();
+				SalesMessageCodec.encodeSale(buffer, "type1", 10);
+				buffer.position(end + 4);
+				writeAll(buffer, channel);
+			}
+			
+			expectedReports.clear();
+			expectedService = new SalesMessagesService(new ColumnarSalesStore(), 30, 250000);
+			expectedService.setReportSink(new RecordingSink(expectedReports));
+			decoder = new SalesMessageDecoder(expectedService);
+			decoder.decode(ByteBuffer.wrap(Files.readAllBytes(file)));
+			assertEquals(200000, decoder.getMessageCount());
+			
+			reports.clear();
+			service = new SalesMessagesService(new ColumnarSalesStore(), 30, 250000);
+			service.setReportSink(new RecordingSink(reports));
+			replayer = new SalesReplayer(service);
+			try {
+				replayer.replay(file);
+				fail("StreamCorruptedException expected.");
+			}
+			catch (StreamCorruptedException e) {
+				// Do nothing
+			}
+			assertEquals(decoder.getMessageCount(), replayer.getMessageCount());
+			assertEquals(expectedReports, reports);
+			assertEquals(expectedService.generateReport().get(1).getTotalValue(), 
+					service.generateReport().get(1).getTotalValue());
+		}
+		finally {
+			Files.delete(file);
+		}
+	}
+	
+	
+	/*
+	 * Keeps a description of each report and record of modifications passed to it.
+	 */
+	private static class RecordingSink implements SalesReportSink {
+		
+		private final List<String> reports;
+		
+		RecordingSink(List<String> reports) {
+			this.reports = reports;
+		}
+		
+		@Override
+		public void reportSales(List<SalesReportItem> report) {
+			StringBuilder description = new StringBuilder("sales:");
+			for (SalesReportItem item : report) {
+				description.append(' ').append(item.getItemType()).append('=').append(item.getNumItems())
+						.append('/').append(item.getExactTotalValue());
+			}
+			reports.add(description.toString());
+		}
+		
+		@Override
+		public void reportModifications(ModificationRecord modifications) {
+			StringBuilder description = new StringBuilder("modifications:");
+			for (String itemType : new TreeSet<String>(modifications.getModifiedTypes())) {
+				description.append(' ').append(itemType).append('=').append(modifications.getModificationCount(itemType));
+			}
+			reports.add(description.toString());
+		}
+	}
+
+}
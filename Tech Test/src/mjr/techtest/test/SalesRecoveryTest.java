@@ -0,0 +1,366 @@
+/**
+ * Tests for the restoration of the sales service from its journal and snapshots.
+ */
+package mjr.techtest.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import mjr.techtest.Sale;
+import mjr.techtest.SalesPausedException;
+import mjr.techtest.SalesService;
+import mjr.techtest.impl.ColumnarSalesStore;
+import mjr.techtest.impl.ModificationRecord;
+import mjr.techtest.impl.SalesJournal;
+import mjr.techtest.impl.SalesMessagesService;
+import mjr.techtest.impl.SalesReportItem;
+import mjr.techtest.impl.SalesReportSink;
+
+/**
+ * @author mrowe
+ *
+ */
+public class SalesRecoveryTest {
+
+	private String typeApple = "apple";
+	private String typePie = "pie";
+
+	private int costApple = 20;
+	private int costPie = 129;
+
+	private Path journalDirectory;
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		journalDirectory = Files.createTempDirectory("sales");
+	}
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@After
+	public void tearDown() throws Exception {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(journalDirectory)) {
+			for (Path file : files) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(journalDirectory);
+	}
+
+
+	/*
+	 * Open a service on the test directory, with the given snapshot interval.
+	 */
+	private SalesMessagesService openService(int snapshotInterval) throws IOException {
+		return new SalesMessagesService(new ColumnarSalesStore(), journalDirectory, 1, snapshotInterval);
+	}
+
+
+	/*
+	 * Returns the number of items whose sale has been committed to the first journal.
+	 */
+	private int countJournalledSales() throws IOException {
+		final int[] numSales = new int[1];
+		SalesJournal.replay(journalDirectory.resolve("sales-0.journal"), new SalesJournal.Listener() {
+			@Override
+			public void sale(String productType, int value, int volume) {
+				numSales[0] += volume;
+			}
+
+			@Override
+			public void adjustment(String productType, SalesService.adjustmentOperation operation, int value) {
+			}
+
+			@Override
+			public void resumed() {
+			}
+		});
+		return numSales[0];
+	}
+
+
+	/*
+	 * Returns the report item for a type, or null if the type is not in the report.
+	 */
+	private SalesReportItem findItem(List<SalesReportItem> report, String itemType) {
+		for (SalesReportItem item : report) {
+			if (itemType.equals(item.getItemType())) {
+				return item;
+			}
+		}
+		return null;
+	}
+
+
+	/*
+	 * Tests that sales and adjustments are restored from the journal alone, when no
+	 * snapshot has been taken.
+	 */
+	@Test
+	public void testRecoverFromJournal() throws Exception {
+		Sale saleApple = new Sale(typeApple, costApple);
+		Sale salePie = new Sale(typePie, costPie);
+
+		SalesMessagesService service = openService(0);
+		service.recordSale(saleApple, 3);
+		service.adjustSale(saleApple, SalesService.adjustmentOperation.MULTIPLY, 2);
+		service.recordSale(salePie);
+		service.recordSale(saleApple);
+		service.close();
+
+		SalesMessagesService recovered = openService(0);
+		List<SalesReportItem> report = recovered.generateReport();
+		assertEquals(2, report.size());
+		assertEquals(4, findItem(report, typeApple).getNumItems());
+		assertEquals((costApple * 2 * 3) + costApple, findItem(report, typeApple).getTotalValue(), 0);
+		assertEquals(costPie, findItem(report, typePie).getTotalValue(), 0);
+		assertEquals(1, recovered.getSaleModifications().getModificationsForType(typeApple).size());
+		assertEquals(costApple * 2, recovered.getSaleValue(0));
+		recovered.close();
+	}
+
+
+	/*
+	 * Tests that the service is restored from a snapshot and the events that follow it,
+	 * and that the recalculated report still agrees with the running totals.
+	 */
+	@Test
+	public void testRecoverFromSnapshot() throws Exception {
+		Sale saleApple = new Sale(typeApple, costApple);
+		Sale salePie = new Sale(typePie, costPie);
+
+		SalesMessagesService service = openService(4);
+		for (int i = 0; i < 5; i++) {
+			service.recordSale(saleApple, 2);
+			service.recordSale(salePie);
+		}
+		service.adjustSale(salePie, SalesService.adjustmentOperation.ADD, 10);
+		service.recordSale(salePie);
+		List<SalesReportItem> expected = service.generateReport();
+		service.close();
+
+		SalesMessagesService recovered = openService(4);
+		List<SalesReportItem> report = recovered.generateReport();
+		List<SalesReportItem> recalculated = recovered.recalculateReport();
+		assertEquals(expected.size(), report.size());
+		for (SalesReportItem expectedItem : expected) {
+			SalesReportItem item = findItem(report, expectedItem.getItemType());
+			assertEquals(expectedItem.getNumItems(), item.getNumItems());
+			assertEquals(expectedItem.getTotalValue(), item.getTotalValue());
+			assertEquals(expectedItem.getTotalValue(), findItem(recalculated, expectedItem.getItemType()).getTotalValue());
+		}
+
+		// Only the latest generation of the journal should be kept.
+		int numJournals = 0;
+		try (DirectoryStream<Path> journals = Files.newDirectoryStream(journalDirectory, "*.journal")) {
+			for (@SuppressWarnings("unused") Path journal : journals) {
+				numJournals++;
+			}
+		}
+		assertEquals(1, numJournals);
+		recovered.close();
+	}
+
+
+	/*
+	 * Tests that the service remembers how close it is to pausing, and that an incomplete
+	 * record at the end of the journal is ignored.
+	 */
+	@Test
+	public void testRecoverPausePosition() throws Exception {
+		Sale sale = new Sale(typePie, costPie);
+
+		SalesMessagesService service = openService(0);
+		service.recordSale(sale, 45);
+		service.close();
+
+		// Simulate a failure part way through writing a record.
+		Path journalFile = journalDirectory.resolve("sales-0.journal");
+		Files.write(journalFile, new byte[] {0, 0, 0, 20, 1, 0}, StandardOpenOption.APPEND);
+
+		SalesMessagesService recovered = openService(0);
+		assertEquals(SalesMessagesService.State.RUNNING, recovered.getCurrState());
+		recovered.recordSale(sale, 5);
+		assertEquals(SalesMessagesService.State.PAUSED, recovered.getCurrState());
+		try {
+			recovered.recordSale(sale);
+			fail("SalesPausedException expected.");
+		}
+		catch (SalesPausedException spe) {
+			// Do nothing
+		}
+		recovered.close();
+
+		recovered = openService(0);
+		assertEquals(SalesMessagesService.State.PAUSED, recovered.getCurrState());
+		assertEquals(costPie * 50, recovered.generateReport().get(0).getTotalValue(), 0);
+		recovered.resume();
+		recovered.recordSale(sale, 10);
+		recovered.close();
+
+		// The resumption is restored, from the journal and then from a snapshot.
+		recovered = openService(0);
+		assertEquals(SalesMessagesService.State.LOGGING, recovered.getCurrState());
+		recovered.takeSnapshot();
+		recovered.close();
+		recovered = openService(0);
+		recovered.recordSale(sale, 39);
+		assertEquals(SalesMessagesService.State.RUNNING, recovered.getCurrState());
+		recovered.recordSale(sale);
+		assertEquals(SalesMessagesService.State.PAUSED, recovered.getCurrState());
+		recovered.close();
+	}
+
+
+	/*
+	 * Tests that a total beyond the range of a long is restored exactly from a snapshot.
+	 */
+	@Test
+	public void testRecoverLargeTotal() throws Exception {
+		Sale sale = new Sale(typePie, Integer.MAX_VALUE);
+
+		SalesMessagesService service = openService(0);
+		service.recordSale(sale, 10);
+		service.adjustSale(sale, SalesService.adjustmentOperation.MULTIPLY, 1000000000);
+		service.adjustSale(sale, SalesService.adjustmentOperation.MULTIPLY, 1000000000);
+		service.takeSnapshot();
+		service.close();
+
+		BigInteger expected = BigInteger.valueOf(Integer.MAX_VALUE).multiply(BigInteger.TEN)
+				.multiply(BigInteger.TEN.pow(18));
+		SalesMessagesService recovered = openService(0);
+		assertEquals(expected, recovered.generateReport().get(0).getExactTotalValue());
+		assertEquals(expected, recovered.recalculateReport().get(0).getExactTotalValue());
+		recovered.close();
+	}
+
+
+	/*
+	 * Tests that adjustments whose combined effect is beyond the range of a long are
+	 * applied exactly, and restored from the journal.
+	 */
+	@Test
+	public void testRecoverOverflowingAdjustments() throws Exception {
+		Sale sale = new Sale(typePie, 5);
+
+		SalesMessagesService service = openService(0);
+		service.recordSale(sale, 2);
+		for (int i = 0; i < 3; i++) {
+			service.adjustSale(sale, SalesService.adjustmentOperation.MULTIPLY, 1000000000);
+		}
+
+		BigInteger expectedValue = BigInteger.valueOf(5).multiply(BigInteger.TEN.pow(27));
+		BigInteger expectedTotal = expectedValue.multiply(BigInteger.valueOf(2));
+		assertEquals(3, service.getSaleModifications().getModificationCount(typePie));
+		assertEquals(expectedTotal, service.generateReport().get(0).getExactTotalValue());
+		assertEquals(expectedTotal, service.recalculateReport().get(0).getExactTotalValue());
+		assertEquals(expectedValue, service.getExactSaleValue(0));
+		try {
+			service.getSaleValue(0);
+			fail("ArithmeticException expected.");
+		}
+		catch (ArithmeticException ae) {
+			// Do nothing
+		}
+
+		// A further adjustment brings the value back within the range of a long.
+		service.adjustSale(sale, SalesService.adjustmentOperation.MULTIPLY, 0);
+		service.adjustSale(sale, SalesService.adjustmentOperation.ADD, 7);
+		assertEquals(7, service.getSaleValue(1));
+		service.adjustSale(sale, SalesService.adjustmentOperation.ADD, 1);
+		service.recordSale(sale);
+		for (int i = 0; i < 3; i++) {
+			service.adjustSale(sale, SalesService.adjustmentOperation.MULTIPLY, 1000000000);
+		}
+		List<SalesReportItem> expected = service.generateReport();
+		service.close();
+
+		SalesMessagesService recovered = openService(0);
+		assertEquals(expected.get(0).getExactTotalValue(), recovered.generateReport().get(0).getExactTotalValue());
+		assertEquals(expected.get(0).getExactTotalValue(), recovered.recalculateReport().get(0).getExactTotalValue());
+		assertEquals(BigInteger.valueOf(8).multiply(BigInteger.TEN.pow(27)), recovered.getExactSaleValue(0));
+		assertEquals(expectedValue, recovered.getExactSaleValue(2));
+		recovered.close();
+	}
+
+
+	/*
+	 * Tests that a sale made before the first sale held in the store, once restored from
+	 * a snapshot, is not found.
+	 */
+	@Test
+	public void testRecoverSaleBeforeStore() throws Exception {
+		SalesMessagesService service = openService(0);
+		service.recordSale(new Sale(typeApple, costApple), 3);
+		service.takeSnapshot();
+		service.recordSale(new Sale(typePie, costPie));
+		service.close();
+
+		SalesMessagesService recovered = openService(0);
+		for (int index = 0; index < 3; index++) {
+			try {
+				recovered.getSaleValue(index);
+				fail("IndexOutOfBoundsException expected.");
+			}
+			catch (IndexOutOfBoundsException ioobe) {
+				// Do nothing
+			}
+		}
+		assertEquals(costPie, recovered.getSaleValue(3));
+		recovered.close();
+	}
+
+
+	/*
+	 * Tests that the journal is committed when the service pauses, and after the time
+	 * limit, before the commit interval is reached.
+	 */
+	@Test
+	public void testCommitWithoutInterval() throws Exception {
+		Sale sale = new Sale(typePie, costPie);
+
+		SalesMessagesService service = new SalesMessagesService(new ColumnarSalesStore(), journalDirectory, 1000, 0);
+		service.setReportSink(new SalesReportSink() {
+			@Override
+			public void reportSales(List<SalesReportItem> report) {
+			}
+
+			@Override
+			public void reportModifications(ModificationRecord modifications) {
+			}
+		});
+		service.recordSale(sale, 49);
+		assertEquals(0, countJournalledSales());
+		service.recordSale(sale);
+		assertEquals(SalesMessagesService.State.PAUSED, service.getCurrState());
+		assertEquals(50, countJournalledSales());
+
+		service.resume();
+		service.recordSale(sale, 3);
+		assertEquals(50, countJournalledSales());
+		service.setMaxCommitDelay(10, TimeUnit.MILLISECONDS);
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while ((53 != countJournalledSales()) && (System.nanoTime() < deadline)) {
+			Thread.sleep(10);
+		}
+		assertEquals(53, countJournalledSales());
+		service.close();
+	}
+
+}
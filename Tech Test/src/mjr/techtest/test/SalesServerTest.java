@@ -0,0 +1,136 @@
+/**
+ * Tests for the TCP server through which clients send messages to the sales service.
+ */
+package mjr.techtest.test;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import mjr.techtest.SalesService;
+import mjr.techtest.impl.ColumnarSalesStore;
+import mjr.techtest.impl.SalesMessageCodec;
+import mjr.techtest.impl.SalesMessagesService;
+import mjr.techtest.impl.SalesReportItem;
+import mjr.techtest.impl.SalesServer;
+
+/**
+ * @author mrowe
+ *
+ */
+public class SalesServerTest {
+
+	private String typeApple = "apple";
+	private String typePie = "pie";
+
+	private int costApple = 20;
+	private int costPie = 129;
+
+
+	/*
+	 * Open a connection to the server.
+	 */
+	private SocketChannel connect(SalesServer server) throws Exception {
+		return SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+	}
+
+
+	/*
+	 * Send the messages held in a buffer, and read the given number of replies.
+	 */
+	private byte[] exchange(SocketChannel connection, ByteBuffer messages, int numReplies) throws Exception {
+		messages.flip();
+		while (messages.hasRemaining()) {
+			connection.write(messages);
+		}
+
+		ByteBuffer replies = ByteBuffer.allocate(numReplies);
+		while (replies.hasRemaining()) {
+			if (0 > connection.read(replies)) {
+				fail("Connection closed before all replies were received.");
+			}
+		}
+		return replies.array();
+	}
+
+
+	/*
+	 * Tests that messages sent over many connections at once are all applied to the one
+	 * service, and each is acknowledged.
+	 */
+	@Test
+	public void testManyConnections() throws Exception {
+		SalesMessagesService service = new SalesMessagesService(new ColumnarSalesStore(),
+				Integer.MAX_VALUE, Integer.MAX_VALUE);
+		SalesServer server = new SalesServer(service, 0);
+		int numConnections = 200;
+		List<SocketChannel> connections = new ArrayList<SocketChannel>();
+
+		try {
+			for (int i = 0; i < numConnections; i++) {
+				connections.add(connect(server));
+			}
+
+			ByteBuffer messages = ByteBuffer.allocate(1024);
+			for (SocketChannel connection : connections) {
+				SalesMessageCodec.encodeSale(messages, typeApple, costApple);
+				SalesMessageCodec.encodeSales(messages, typePie, costPie, 3);
+				byte[] replies = exchange(connection, messages, 2);
+				assertEquals(SalesMessageCodec.REPLY_ACCEPTED, replies[0]);
+				assertEquals(SalesMessageCodec.REPLY_ACCEPTED, replies[1]);
+				messages.clear();
+			}
+
+			List<SalesReportItem> report = service.generateReport();
+			assertEquals(numConnections, report.get(0).getNumItems());
+			assertEquals(numConnections * 3, report.get(1).getNumItems());
+			assertEquals(numConnections * 3 * costPie, report.get(1).getTotalValue(), 0);
+		}
+		finally {
+			for (SocketChannel connection : connections) {
+				connection.close();
+			}
+			server.close();
+		}
+		assertEquals(0, server.getConnectionCount());
+	}
+
+
+	/*
+	 * Tests that the replies to a batch of messages report which were accepted, and which
+	 * were rejected once the service paused or because they were not valid.
+	 */
+	@Test
+	public void testReplies() throws Exception {
+		SalesMessagesService service = new SalesMessagesService();
+		SalesServer server = new SalesServer(service, 0);
+
+		try (SocketChannel connection = connect(server)) {
+			ByteBuffer messages = ByteBuffer.allocate(1024);
+			SalesMessageCodec.encodeSale(messages, typeApple, -1);
+			SalesMessageCodec.encodeSales(messages, typeApple, costApple, 45);
+			SalesMessageCodec.encodeAdjustment(messages, typeApple, SalesService.adjustmentOperation.ADD, 1);
+			SalesMessageCodec.encodeSales(messages, typeApple, costApple, 10);
+			SalesMessageCodec.encodeSale(messages, typeApple, costApple);
+
+			byte[] replies = exchange(connection, messages, 5);
+			assertEquals(SalesMessageCodec.REPLY_REJECTED, replies[0]);
+			assertEquals(SalesMessageCodec.REPLY_ACCEPTED, replies[1]);
+			assertEquals(SalesMessageCodec.REPLY_ACCEPTED, replies[2]);
+			assertEquals(SalesMessageCodec.REPLY_PAUSED, replies[3]);
+			assertEquals(SalesMessageCodec.REPLY_PAUSED, replies[4]);
+			assertEquals(50, service.generateReport().get(0).getNumItems());
+		}
+		finally {
+			server.close();
+		}
+	}
+
+}
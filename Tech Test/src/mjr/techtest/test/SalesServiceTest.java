@@ -5,10 +5,28 @@ package mjr.techtest.test;
 
 import static org.junit.Assert.*;
 
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 
 import org.junit.After;
 import org.junit.AfterClass;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -18,7 +36,26 @@ import mjr.techtest.SalesPausedException;
 import mjr.techtest.SalesService;
 import mjr.techtest.impl.SalesReportItem;
 import mjr.techtest.Sale;
+import mjr.techtest.impl.AdjustmentTransform;
+import mjr.techtest.impl.ColumnarSalesStore;
+import mjr.techtest.impl.FileReportSink;
+import mjr.techtest.impl.FlowControlPolicy;
+import mjr.techtest.impl.HeavyHitters;
+import mjr.techtest.impl.LatencyRecorder;
+import mjr.techtest.impl.LatencySummary;
+import mjr.techtest.impl.MappedSalesStore;
+import mjr.techtest.impl.ModificationRecord;
+import mjr.techtest.impl.ModificationRecordItem;
+import mjr.techtest.impl.QuantileSketch;
+import mjr.techtest.impl.SalesExportReader;
+import mjr.techtest.impl.SalesExportWriter;
 import mjr.techtest.impl.SalesMessagesService;
+import mjr.techtest.impl.SalesMetrics;
+import mjr.techtest.impl.SalesMetricsSnapshot;
+import mjr.techtest.impl.SalesReportSink;
+import mjr.techtest.impl.SalesView;
+import mjr.techtest.impl.SalesWindow;
+import mjr.techtest.impl.TopTypesReport;
 
 /**
  * @author mrowe
@@ -463,4 +500,1033 @@ public class SalesServiceTest {
 		
 	}
 
+
+	/*
+	 * Tests that the running totals used for reports agree with a full recalculation from
+	 * the stored sales, once sales have been recorded and adjusted.
+	 */
+	@Test
+	public void testReportMatchesRecalculation() throws Exception {
+		Sale saleApple = new Sale(typeApple, costApple);
+		Sale salePie = new Sale(typePie, costPie);
+		
+		testService.recordSale(saleApple, 3);
+		testService.recordSale(salePie, 4);
+		testService.adjustSale(saleApple, SalesService.adjustmentOperation.MULTIPLY, 3);
+		testService.recordSale(saleApple, 2);
+		testService.adjustSale(saleApple, SalesService.adjustmentOperation.SUBTRACT, 7);
+		testService.adjustSale(salePie, SalesService.adjustmentOperation.ADD, 11);
+		testService.recordSale(salePie);
+		
+		List<SalesReportItem> report = testService.generateReport();
+		List<SalesReportItem> recalculated = testService.recalculateReport();
+		assertEquals(recalculated.size(), report.size());
+		
+		for (SalesReportItem item : report) {
+			SalesReportItem match = null;
+			for (SalesReportItem candidate : recalculated) {
+				if (candidate.getItemType().equals(item.getItemType())) {
+					match = candidate;
+				}
+			}
+			assertNotNull(match);
+			assertEquals(match.getNumItems(), item.getNumItems());
+			assertEquals(match.getTotalValue(), item.getTotalValue(), 0);
+		}
+		
+		// Check one of the totals explicitly.
+		for (SalesReportItem item : report) {
+			if (typeApple.equals(item.getItemType())) {
+				assertEquals(((costApple * 3) - 7) * 3 + (costApple - 7) * 2, item.getTotalValue(), 0);
+			}
+		}
+	}
+
+
+	/*
+	 * Tests that adjustments are applied only to the sales recorded before them, when
+	 * the values of individual stored sales are read.
+	 */
+	@Test
+	public void testSaleValueAdjustments() throws Exception {
+		Sale sale = new Sale(typeApple, costApple);
+		
+		testService.recordSale(sale);
+		testService.adjustSale(sale, SalesService.adjustmentOperation.MULTIPLY, 3);
+		testService.recordSale(sale);
+		testService.adjustSale(sale, SalesService.adjustmentOperation.ADD, 5);
+		testService.recordSale(sale);
+		
+		assertEquals((costApple * 3) + 5, testService.getSaleValue(0));
+		assertEquals(costApple + 5, testService.getSaleValue(1));
+		assertEquals(costApple, testService.getSaleValue(2));
+	}
+
+
+	/*
+	 * Tests that a bulk sale crossing the pause point records only the items up to the
+	 * pause, and then rejects the remainder.
+	 */
+	@Test
+	public void testBulkSaleAcrossPause() throws Exception {
+		Sale sale = new Sale(typePear, costPear);
+		testService.recordSale(sale, 7);
+		assertEquals(SalesMessagesService.State.RUNNING, testService.getCurrState());
+		
+		try {
+			testService.recordSale(sale, 60);
+			fail("SalesPausedException expected.");
+		}
+		catch (SalesPausedException spe) {
+			// Do nothing
+		}
+		
+		assertEquals(SalesMessagesService.State.PAUSED, testService.getCurrState());
+		List<SalesReportItem> report = testService.generateReport();
+		assertEquals(1, report.size());
+		assertEquals(50, report.get(0).getNumItems());
+		assertEquals(costPear * 50, report.get(0).getTotalValue(), 0);
+		assertEquals(costPear, testService.getSaleValue(49));
+	}
+
+
+	/*
+	 * Tests that sales held in a memory-mapped file, across several mapped segments, are
+	 * reported and adjusted in the same way as those held on the heap.
+	 */
+	@Test
+	public void testMappedStore() throws Exception {
+		Path file = Files.createTempFile("sales", ".dat");
+		
+		try (MappedSalesStore store = new MappedSalesStore(file, 4)) {
+			SalesMessagesService mappedService = new SalesMessagesService(store);
+			Sale saleApple = new Sale(typeApple, costApple);
+			Sale salePie = new Sale(typePie, costPie);
+			
+			for (int i = 0; i < 9; i++) {
+				mappedService.recordSale(saleApple);
+				mappedService.recordSale(salePie, 2);
+			}
+			mappedService.adjustSale(salePie, SalesService.adjustmentOperation.ADD, 4);
+			mappedService.recordSale(saleApple);
+			
+			assertEquals(19, store.size());
+			List<SalesReportItem> report = mappedService.generateReport();
+			assertEquals(2, report.size());
+			assertEquals(typeApple, report.get(0).getItemType());
+			assertEquals(costApple * 10, report.get(0).getTotalValue(), 0);
+			assertEquals(typePie, report.get(1).getItemType());
+			assertEquals((costPie + 4) * 18, report.get(1).getTotalValue(), 0);
+			assertEquals(report.get(1).getTotalValue(), mappedService.recalculateReport().get(1).getTotalValue());
+			assertEquals(costPie + 4, mappedService.getSaleValue(26));
+			assertEquals(costApple, mappedService.getSaleValue(27));
+		}
+		finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+
+	/*
+	 * Tests that reports and modifications are written to a file by a file report sink,
+	 * in the order in which they were produced.
+	 */
+	@Test
+	public void testFileReportSink() throws Exception {
+		Path file = Files.createTempFile("sales", ".txt");
+		
+		try {
+			FileReportSink sink = new FileReportSink(file);
+			testService.setReportSink(sink);
+			
+			Sale sale = new Sale(typeApple, costApple);
+			testService.recordSale(sale, 10);
+			testService.adjustSale(sale, SalesService.adjustmentOperation.ADD, 5);
+			testService.recordSale(sale, 40);
+			sink.close();
+			
+			String output = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+			assertTrue(output.startsWith("Current sales report:"));
+			assertTrue(output.contains("- apple\t\t10\t\t\u00a32.0"));
+			assertTrue(output.contains("- apple\t\t50\t\t\u00a310.50"));
+			assertTrue(output.indexOf("\tADD") > output.lastIndexOf("End report."));
+			assertTrue(output.contains("Message processing now paused."));
+		}
+		finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+
+	/*
+	 * Tests that offers are refused without an exception once the service pauses, and
+	 * that a resumed service accepts a further 50 sales before pausing again.
+	 */
+	@Test
+	public void testOfferAndResume() throws Exception {
+		Sale sale = new Sale(typePear, costPear);
+		
+		assertEquals(45, testService.offer(sale, 45));
+		assertEquals(5, testService.offer(sale, 10));
+		assertEquals(SalesMessagesService.State.PAUSED, testService.getCurrState());
+		assertFalse(testService.offer(sale));
+		
+		testService.resume();
+		assertEquals(SalesMessagesService.State.RUNNING, testService.getCurrState());
+		for (int i = 0; i < 49; i++) {
+			assertTrue(testService.offer(sale));
+		}
+		assertEquals(SalesMessagesService.State.RUNNING, testService.getCurrState());
+		assertTrue(testService.offer(sale));
+		assertEquals(SalesMessagesService.State.PAUSED, testService.getCurrState());
+		assertEquals(costPear * 100, testService.generateReport().get(0).getTotalValue(), 0);
+		
+		testService.setFlowControlPolicy(FlowControlPolicy.neverPause());
+		assertEquals(SalesMessagesService.State.RUNNING, testService.getCurrState());
+		testService.recordSale(sale, 1000);
+	}
+
+	
+	/*
+	 * Tests that a service that never pauses does not pause once the greatest number of
+	 * sales it can count have been recorded, but refuses further sales.
+	 */
+	@Test
+	public void testNeverPauseAtCountLimit() throws Exception {
+		SalesMessagesService largeService = new SalesMessagesService(new ColumnarSalesStore(), 
+				Integer.MAX_VALUE, Integer.MAX_VALUE);
+		Sale sale = new Sale(typePie, costPie);
+		
+		largeService.recordSale(sale, Integer.MAX_VALUE - 1);
+		largeService.recordSale(sale);
+		assertNotEquals(SalesMessagesService.State.PAUSED, largeService.getCurrState());
+		assertEquals(Integer.MAX_VALUE, largeService.generateReport().get(0).getNumItems());
+		try {
+			largeService.recordSale(sale);
+			fail("SalesException expected.");
+		}
+		catch (SalesPausedException spe) {
+			fail("The service should not pause.");
+		}
+		catch (SalesException se) {
+			// Do nothing
+		}
+		assertNotEquals(SalesMessagesService.State.PAUSED, largeService.getCurrState());
+		assertEquals(FlowControlPolicy.NEVER, FlowControlPolicy.pauseEvery(10).getPausePoint(Integer.MAX_VALUE - 10));
+	}
+
+
+	/*
+	 * Tests that a timed offer waits for the service to be resumed by another thread,
+	 * and gives up if it is not resumed in time.
+	 */
+	@Test
+	public void testTimedOffer() throws Exception {
+		Sale sale = new Sale(typePear, costPear);
+		testService.recordSale(sale, 50);
+		
+		assertFalse(testService.offer(sale, 10, TimeUnit.MILLISECONDS));
+		assertEquals(0, testService.offer(sale, 5, 10, TimeUnit.MILLISECONDS));
+		
+		Thread resumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+					testService.resume();
+				}
+				catch (Exception e) {
+					// The offer below will time out.
+				}
+			}
+		});
+		resumer.start();
+		assertEquals(50, testService.offer(sale, 50, 10, TimeUnit.SECONDS));
+		resumer.join();
+		assertEquals(SalesMessagesService.State.PAUSED, testService.getCurrState());
+	}
+
+
+	/*
+	 * Tests that the combined effect of the modifications to a type is kept up to date
+	 * as each is recorded, and that a copy of the record is unaffected by later changes.
+	 */
+	@Test
+	public void testModificationRecordTransforms() throws Exception {
+		ModificationRecord record = new ModificationRecord();
+		for (int i = 0; i < 10; i++) {
+			record.recordModification(typeApple, SalesService.adjustmentOperation.ADD, 2);
+		}
+		record.recordModification(typeApple, new ModificationRecordItem(SalesService.adjustmentOperation.MULTIPLY, 3));
+		ModificationRecord copy = new ModificationRecord(record);
+		record.recordModification(typeApple, SalesService.adjustmentOperation.SUBTRACT, 1);
+		
+		assertEquals(((costApple + 20) * 3) - 1, record.getCurrentTransform(typeApple).apply(costApple));
+		assertEquals((costApple + 20) * 3, copy.getCurrentTransform(typeApple).apply(costApple));
+		assertEquals((costApple * 3) - 1, record.getTransformSince(typeApple, 10).apply(costApple));
+		assertEquals(costPear, record.getCurrentTransform(typePear).apply(costPear));
+		
+		assertEquals(12, record.getModificationCount(typeApple));
+		assertEquals(11, copy.getModificationCount(typeApple));
+		assertEquals(SalesService.adjustmentOperation.MULTIPLY, record.getOperation(typeApple, 10));
+		assertEquals(1, record.getValue(typeApple, 11));
+		
+		List<ModificationRecordItem> items = record.getModificationsForType(typeApple);
+		assertEquals(12, items.size());
+		assertEquals(SalesService.adjustmentOperation.SUBTRACT, items.get(11).getOperation());
+		assertNull(record.getModificationsForType(typePear));
+	}
+
+
+	/*
+	 * Tests that totals beyond the range of an int are reported correctly, and that
+	 * totals beyond the range of a long are reported exactly rather than wrapping.
+	 */
+	@Test
+	public void testLargeTotals() throws Exception {
+		SalesMessagesService largeService = new SalesMessagesService(new ColumnarSalesStore(), 
+				Integer.MAX_VALUE, Integer.MAX_VALUE);
+		Sale sale = new Sale(typePie, Integer.MAX_VALUE);
+		largeService.recordSale(sale, 1000);
+		
+		long expected = 1000L * Integer.MAX_VALUE;
+		assertEquals(expected, largeService.generateReport().get(0).getTotalValue());
+		assertEquals(expected, largeService.recalculateReport().get(0).getTotalValue());
+		
+		largeService.adjustSale(sale, SalesService.adjustmentOperation.MULTIPLY, 1000);
+		assertEquals(expected * 1000, largeService.generateReport().get(0).getTotalValue());
+		assertEquals(1000L * Integer.MAX_VALUE, largeService.getSaleValue(0));
+		
+		// The next multiplication takes the total beyond the range of a long.
+		largeService.adjustSale(sale, SalesService.adjustmentOperation.MULTIPLY, 10000);
+		BigInteger exact = BigInteger.valueOf(expected).multiply(BigInteger.valueOf(1000 * 10000));
+		SalesReportItem item = largeService.generateReport().get(0);
+		assertEquals(exact, item.getExactTotalValue());
+		assertEquals(Long.MAX_VALUE, item.getTotalValue());
+		assertEquals(exact, largeService.recalculateReport().get(0).getExactTotalValue());
+		
+		// Bringing the total back within range returns it to a long.
+		largeService.adjustSale(sale, SalesService.adjustmentOperation.MULTIPLY, 0);
+		largeService.adjustSale(sale, SalesService.adjustmentOperation.ADD, 1);
+		assertEquals(1000, largeService.generateReport().get(0).getTotalValue());
+	}
+	
+	
+	/*
+	 * A clock that stays at the time it is set to, so that windows measured by time
+	 * may be tested.
+	 */
+	private static class ManualClock extends Clock {
+		long millis = 0;
+		
+		@Override
+		public ZoneId getZone() {
+			return ZoneOffset.UTC;
+		}
+		
+		@Override
+		public Clock withZone(ZoneId zone) {
+			return this;
+		}
+		
+		@Override
+		public long millis() {
+			return millis;
+		}
+		
+		@Override
+		public Instant instant() {
+			return Instant.ofEpochMilli(millis);
+		}
+	}
+	
+	
+	/*
+	 * Tests tumbling and sliding windows measured by time, including adjustments to the
+	 * sales in the window and buckets left behind as the ring comes round.
+	 */
+	@Test
+	public void testTimeWindows() throws Exception {
+		SalesMessagesService windowService = new SalesMessagesService(new ColumnarSalesStore(), 
+				Integer.MAX_VALUE, Integer.MAX_VALUE);
+		ManualClock clock = new ManualClock();
+		windowService.setClock(clock);
+		SalesWindow window = windowService.addTimeWindow(60000, 5);
+		Sale apple = new Sale(typeApple, costApple);
+		
+		windowService.recordSale(apple, 2);
+		clock.millis = 30000;
+		windowService.recordSale(new Sale(typePie, costPie));
+		clock.millis = 60000;
+		windowService.recordSale(apple, 3);
+		
+		List<SalesReportItem> current = window.getCurrentReport();
+		assertEquals(1, current.size());
+		assertEquals(3, current.get(0).getNumItems());
+		assertEquals(costApple * 3, current.get(0).getTotalValue());
+		
+		List<SalesReportItem> previous = window.getPreviousReport();
+		assertEquals(2, previous.size());
+		assertEquals(costApple * 2, previous.get(0).getTotalValue());
+		assertEquals(typePie, previous.get(1).getItemType());
+		
+		windowService.adjustSale(apple, SalesService.adjustmentOperation.ADD, 1);
+		List<SalesReportItem> sliding = window.getSlidingReport(2);
+		assertEquals(5, sliding.get(0).getNumItems());
+		assertEquals((costApple + 1) * 5, sliding.get(0).getTotalValue());
+		assertEquals(costPie, sliding.get(1).getTotalValue());
+		
+		// Later windows leave out the earlier sales once they fall outside them.
+		clock.millis = 4 * 60000;
+		assertEquals(0, window.getCurrentReport().size());
+		assertEquals(5, window.getSlidingReport(5).get(0).getNumItems());
+		assertEquals(3, window.getSlidingReport(4).get(0).getNumItems());
+		
+		clock.millis = 6 * 60000;
+		windowService.recordSale(new Sale(typePear, costPear));
+		sliding = window.getSlidingReport(5);
+		assertEquals(1, sliding.size());
+		assertEquals(typePear, sliding.get(0).getItemType());
+		assertEquals(3, windowService.generateReport().size());
+	}
+	
+	
+	/*
+	 * Tests that a clock stepping backwards does not overwrite the totals of a newer
+	 * bucket with those of an older one sharing its place in the ring, and that sales
+	 * then recorded are kept in the newest bucket.
+	 */
+	@Test
+	public void testTimeWindowClockStepsBack() throws Exception {
+		SalesMessagesService windowService = new SalesMessagesService(new ColumnarSalesStore(), 
+				Integer.MAX_VALUE, Integer.MAX_VALUE);
+		ManualClock clock = new ManualClock();
+		windowService.setClock(clock);
+		SalesWindow window = windowService.addTimeWindow(60000, 5);
+		Sale apple = new Sale(typeApple, costApple);
+		
+		clock.millis = 5 * 60000;
+		windowService.recordSale(apple, 4);
+		
+		/* Bucket 0 shares its place in the ring with bucket 5. */
+		clock.millis = 0;
+		windowService.recordSale(new Sale(typePie, costPie));
+		
+		List<SalesReportItem> current = window.getCurrentReport();
+		assertEquals(2, current.size());
+		assertEquals(4, current.get(0).getNumItems());
+		assertEquals(costApple * 4, current.get(0).getTotalValue());
+		assertEquals(costPie, current.get(1).getTotalValue());
+		assertEquals(0, window.getPreviousReport().size());
+		
+		clock.millis = 6 * 60000;
+		windowService.recordSale(apple);
+		assertEquals(1, window.getCurrentReport().size());
+		assertEquals(5, window.getSlidingReport(2).get(0).getNumItems());
+		assertEquals(costPie, window.getSlidingReport(2).get(1).getTotalValue());
+	}
+	
+	
+	/*
+	 * Tests windows measured by the number of sales, with bulk sales spread over the
+	 * buckets they fill.
+	 */
+	@Test
+	public void testSalesWindows() throws Exception {
+		SalesMessagesService windowService = new SalesMessagesService(new ColumnarSalesStore(), 
+				Integer.MAX_VALUE, Integer.MAX_VALUE);
+		SalesWindow window = windowService.addSalesWindow(10, 3);
+		
+		windowService.recordSale(new Sale(typeApple, costApple), 25);
+		assertEquals(5, window.getCurrentReport().get(0).getNumItems());
+		assertEquals(10, window.getPreviousReport().get(0).getNumItems());
+		
+		windowService.recordSale(new Sale(typePie, costPie), 10);
+		List<SalesReportItem> current = window.getCurrentReport();
+		assertEquals(1, current.size());
+		assertEquals(5, current.get(0).getNumItems());
+		
+		List<SalesReportItem> previous = window.getPreviousReport();
+		assertEquals(5, previous.get(0).getNumItems());
+		assertEquals(5, previous.get(1).getNumItems());
+		
+		List<SalesReportItem> sliding = window.getSlidingReport(3);
+		assertEquals(15, sliding.get(0).getNumItems());
+		assertEquals(costApple * 15, sliding.get(0).getTotalValue());
+		assertEquals(costPie * 10, sliding.get(1).getTotalValue());
+		
+		/* A bulk sale far larger than the ring leaves only its last buckets. */
+		SalesWindow narrowWindow = windowService.addSalesWindow(4, 3);
+		windowService.recordSale(new Sale(typePear, costPear), 10000003);
+		assertEquals(2, narrowWindow.getCurrentReport().get(0).getNumItems());
+		assertEquals(4, narrowWindow.getPreviousReport().get(0).getNumItems());
+		sliding = narrowWindow.getSlidingReport(3);
+		assertEquals(1, sliding.size());
+		assertEquals(10, sliding.get(0).getNumItems());
+		assertEquals(costPear * 10, sliding.get(0).getTotalValue());
+		assertEquals(8, window.getCurrentReport().get(0).getNumItems());
+		assertEquals(typePear, window.getCurrentReport().get(0).getItemType());
+	}
+
+	
+	
+	/*
+	 * Tests that the types leading by volume and by value are reported with their exact
+	 * totals when many more types are sold than are tracked, and that the distribution
+	 * of sale values follows adjustments.
+	 */
+	@Test
+	public void testTopTypesReport() throws Exception {
+		SalesMessagesService topService = new SalesMessagesService(new ColumnarSalesStore(), 
+				Integer.MAX_VALUE, Integer.MAX_VALUE);
+		topService.setTopTypesReports(2);
+		
+		for (int i = 0; i < 50; i++) {
+			topService.recordSale(new Sale("type" + i, 1));
+		}
+		Sale apple = new Sale(typeApple, costApple);
+		topService.recordSale(apple, 100);
+		topService.recordSale(new Sale(typePear, costPear), 80);
+		topService.recordSale(new Sale(typePie, costPie), 50);
+		
+		TopTypesReport report = topService.generateTopTypesReport();
+		assertEquals(2, report.getTopByVolume().size());
+		assertEquals(typeApple, report.getTopByVolume().get(0).getItemType());
+		assertEquals(100, report.getTopByVolume().get(0).getNumItems());
+		assertEquals(typePear, report.getTopByVolume().get(1).getItemType());
+		assertEquals(typePie, report.getTopByValue().get(0).getItemType());
+		assertEquals(costPie * 50, report.getTopByValue().get(0).getTotalValue());
+		assertEquals(typePear, report.getTopByValue().get(1).getItemType());
+		assertEquals(costApple, report.getValueQuantile(typeApple, 0.5), costApple * 0.02);
+		assertTrue(Double.isNaN(report.getValueQuantile(typePie, 0.5)));
+		
+		topService.adjustSale(apple, SalesService.adjustmentOperation.MULTIPLY, 10);
+		report = topService.generateTopTypesReport();
+		assertEquals(typeApple, report.getTopByValue().get(0).getItemType());
+		assertEquals(costApple * 10 * 100, report.getTopByValue().get(0).getTotalValue());
+		assertEquals(costApple * 10, report.getValueQuantile(typeApple, 0.5), costApple * 10 * 0.02);
+	}
+	
+	
+	/*
+	 * Tests the accuracy of the quantiles read from a sketch, including once its lowest
+	 * buckets have been merged.
+	 */
+	@Test
+	public void testQuantileSketch() throws Exception {
+		QuantileSketch sketch = new QuantileSketch();
+		QuantileSketch smallSketch = new QuantileSketch(0.02, 64);
+		
+		for (int value = 1; value <= 10000; value++) {
+			sketch.add(value, 1);
+			smallSketch.add(value, 1);
+		}
+		assertEquals(10000, sketch.getCount());
+		assertEquals(5000, sketch.getQuantile(0.5), 5000 * 0.02);
+		assertEquals(9900, sketch.getQuantile(0.99), 9900 * 0.02);
+		assertEquals(1, sketch.getQuantile(0), 0.021);
+		assertEquals(9900, smallSketch.getQuantile(0.99), 9900 * 0.02);
+		
+		sketch.adjust(SalesService.adjustmentOperation.SUBTRACT, 1000);
+		assertEquals(0, sketch.getQuantile(0.05), 0);
+		assertEquals(4000, sketch.getQuantile(0.5), 4000 * 0.05);
+		
+		sketch.clear();
+		assertTrue(Double.isNaN(sketch.getQuantile(0.5)));
+	}
+	
+	
+	/*
+	 * Tests that the counters for the leading types are still found by type after many
+	 * have been taken over by other types.
+	 */
+	@Test
+	public void testHeavyHitters() throws Exception {
+		HeavyHitters hitters = new HeavyHitters(8);
+		Random random = new Random(17);
+		int leaderCount = 0;
+		
+		for (int i = 0; i < 100000; i++) {
+			int typeId = (0 == i % 4) ? 7 : random.nextInt(1000);
+			hitters.offer(typeId, 1);
+			if (7 == typeId) {
+				leaderCount++;
+			}
+		}
+		for (int counter = 0; counter < hitters.size(); counter++) {
+			assertEquals(counter, hitters.find(hitters.getTypeId(counter)));
+		}
+		
+		int leader = hitters.getCountersByWeight()[0];
+		assertEquals(7, hitters.getTypeId(leader));
+		assertTrue(hitters.getCount(leader) - hitters.getError(leader) <= leaderCount);
+		assertTrue(hitters.getCount(leader) >= leaderCount);
+		assertEquals(-1, hitters.find(1001));
+		
+		/* Every counter is listed once, by decreasing weight, with ties in counter order. */
+		int[] ordered = hitters.getCountersByWeight();
+		assertEquals(hitters.size(), ordered.length);
+		boolean[] listed = new boolean[hitters.size()];
+		for (int i = 0; i < ordered.length; i++) {
+			assertFalse(listed[ordered[i]]);
+			listed[ordered[i]] = true;
+			if (0 < i) {
+				assertTrue((hitters.getCount(ordered[i - 1]) > hitters.getCount(ordered[i])) 
+						|| ((hitters.getCount(ordered[i - 1]) == hitters.getCount(ordered[i])) 
+								&& (ordered[i - 1] < ordered[i])));
+			}
+		}
+	}
+
+	
+	
+	/*
+	 * Tests that a report recalculated in parallel, over enough stored sales to be
+	 * divided between threads, is exactly that recalculated by a single thread.
+	 */
+	@Test
+	public void testParallelRecalculation() throws Exception {
+		SalesMessagesService largeService = new SalesMessagesService(new ColumnarSalesStore(), 
+				Integer.MAX_VALUE, Integer.MAX_VALUE);
+		Random random = new Random(5);
+		Sale[] sales = new Sale[50];
+		for (int i = 0; i < sales.length; i++) {
+			sales[i] = new Sale("type" + i, 1 + random.nextInt(500));
+		}
+		
+		for (int i = 0; i < 200000; i++) {
+			Sale sale = sales[random.nextInt(sales.length)];
+			largeService.recordSale(sale, 1 + random.nextInt(3));
+			if (0 == i % 1000) {
+				largeService.adjustSale(sale, SalesService.adjustmentOperation.ADD, 1 + random.nextInt(10));
+			}
+		}
+		largeService.adjustSale(sales[0], SalesService.adjustmentOperation.MULTIPLY, Integer.MAX_VALUE);
+		
+		List<SalesReportItem> expected = largeService.recalculateReport();
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			List<SalesReportItem> parallel = largeService.recalculateReportInParallel(pool);
+			List<SalesReportItem> report = largeService.generateReport();
+			
+			assertEquals(expected.size(), parallel.size());
+			for (int i = 0; i < expected.size(); i++) {
+				assertEquals(expected.get(i).getItemType(), parallel.get(i).getItemType());
+				assertEquals(expected.get(i).getNumItems(), parallel.get(i).getNumItems());
+				assertEquals(expected.get(i).getTotalValue(), parallel.get(i).getTotalValue());
+				assertEquals(expected.get(i).getExactTotalValue(), parallel.get(i).getExactTotalValue());
+				assertEquals(report.get(i).getTotalValue(), parallel.get(i).getTotalValue());
+			}
+		}
+		finally {
+			pool.shutdown();
+		}
+		assertEquals(expected.get(1).getTotalValue(), largeService.recalculateReportInParallel().get(1).getTotalValue());
+	}
+
+	
+	
+	/*
+	 * Tests that the metrics count the sales, rejections, adjustments and reports made
+	 * once enabled, and may be read over JMX.
+	 */
+	@Test
+	public void testMetrics() throws Exception {
+		assertNull(testService.getMetrics());
+		SalesMetrics metrics = testService.enableMetrics();
+		Sale apple = new Sale(typeApple, costApple);
+		
+		for (int i = 0; i < 55; i++) {
+			try {
+				testService.recordSale(apple);
+			}
+			catch (SalesPausedException e) {
+				// Expected once 50 sales have been recorded.
+			}
+		}
+		testService.adjustSale(apple, SalesService.adjustmentOperation.ADD, 1);
+		testService.generateReport();
+		
+		SalesMetricsSnapshot snapshot = metrics.getSnapshot();
+		assertEquals(50, snapshot.getSalesRecorded());
+		assertEquals(5, snapshot.getSalesRejected());
+		assertEquals(1, snapshot.getAdjustments());
+		assertEquals(5, snapshot.getReportsSent());
+		assertEquals(50, snapshot.getStoredSales());
+		assertEquals(50, snapshot.getSalesCount());
+		assertEquals(SalesMessagesService.State.PAUSED, snapshot.getState());
+		assertEquals(55, snapshot.getRecordSaleLatency().getCount());
+		assertEquals(6, snapshot.getGenerateReportLatency().getCount());
+		assertEquals(5, snapshot.getReportSinkLatency().getCount());
+		assertTrue(snapshot.getRecordSaleLatency().getMax() >= snapshot.getRecordSaleLatency().getMedian());
+		assertTrue(0 < snapshot.getRunningNanos() + snapshot.getLoggingNanos() + snapshot.getPausedNanos());
+		
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = metrics.register("testMetrics");
+		try {
+			assertEquals(50L, server.getAttribute(name, "SalesRecorded"));
+			assertEquals("PAUSED", server.getAttribute(name, "State"));
+			CompositeData latency = (CompositeData) server.getAttribute(name, "RecordSaleLatency");
+			assertEquals(55L, latency.get("count"));
+		}
+		finally {
+			metrics.unregister();
+		}
+		assertFalse(server.isRegistered(name));
+		
+		testService.disableMetrics();
+		assertNull(testService.getMetrics());
+	}
+	
+	
+	/*
+	 * Tests the accuracy of the percentiles read from a latency recorder.
+	 */
+	@Test
+	public void testLatencyRecorder() throws Exception {
+		LatencyRecorder recorder = new LatencyRecorder();
+		
+		for (int nanos = 1; nanos <= 100000; nanos++) {
+			recorder.record(nanos);
+		}
+		LatencySummary summary = recorder.getSummary();
+		assertEquals(100000, summary.getCount());
+		assertEquals(50000.5, summary.getMean(), 0.001);
+		assertEquals(50000, summary.getMedian(), 50000 * 0.03);
+		assertEquals(99000, summary.getPercentile99(), 99000 * 0.03);
+		assertEquals(99900, summary.getPercentile999(), 99900 * 0.03);
+		assertEquals(100000, summary.getMax());
+		
+		recorder.record(Long.MAX_VALUE);
+		assertEquals(Long.MAX_VALUE, recorder.getSummary().getMax());
+	}
+	
+	
+	/*
+	 * Tests that, once warmed up, recording a sale allocates nothing, whether the sale
+	 * is accepted or rejected because the service is paused.  Only the path that builds
+	 * no report is allocation-free.  With reporting on, each logging point still
+	 * allocates a new list with an item for each type, which is handed to a sink that
+	 * may keep it, and the default sink also formats it as text.  So the logging points
+	 * at the default interval are tested only with reporting switched off.
+	 */
+	@Test
+	public void testRecordSaleAllocation() throws Exception {
+		Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+		
+		int numSales = 100000;
+		SalesMessagesService service = new SalesMessagesService(new ColumnarSalesStore(3 * numSales), 
+				Integer.MAX_VALUE, 3 * numSales);
+		service.setReportSink(new SalesReportSink() {
+			@Override
+			public void reportSales(List<SalesReportItem> report) {
+			}
+			
+			@Override
+			public void reportModifications(ModificationRecord modifications) {
+			}
+		});
+		Sale[] sales = { new Sale(typeApple, costApple), new Sale(typePear, costPear), new Sale(typePie, costPie) };
+		
+		// Record sales until the code is compiled, then count what further sales allocate.
+		// Allocating anything for each sale would take at least one byte per sale, while
+		// the compiler may still allocate a little, once, as it runs.
+		recordSales(service, sales, numSales);
+		long allocated = allocatedBytes(threads);
+		recordSales(service, sales, numSales);
+		allocated = allocatedBytes(threads) - allocated;
+		assertTrue("Allocated " + allocated + " bytes recording sales", numSales > allocated);
+		
+		// The same for sales rejected once the service has paused.
+		recordSales(service, sales, numSales);
+		assertEquals(SalesMessagesService.State.PAUSED, service.getCurrState());
+		
+		assertEquals(numSales, rejectSales(service, sales, numSales));
+		allocated = allocatedBytes(threads);
+		assertEquals(numSales, rejectSales(service, sales, numSales));
+		allocated = allocatedBytes(threads) - allocated;
+		assertTrue("Allocated " + allocated + " bytes rejecting sales", numSales > allocated);
+		int numRecorded = 0;
+		for (SalesReportItem item : service.generateReport()) {
+			numRecorded += item.getNumItems();
+		}
+		assertEquals(3 * numSales, numRecorded);
+		
+		SalesMessagesService loggingService = new SalesMessagesService(new ColumnarSalesStore(3 * numSales), 
+				10, 3 * numSales);
+		loggingService.setReporting(false);
+		recordSales(loggingService, sales, numSales);
+		allocated = allocatedBytes(threads);
+		recordSales(loggingService, sales, numSales);
+		allocated = allocatedBytes(threads) - allocated;
+		assertTrue("Allocated " + allocated + " bytes recording sales at logging points without reporting", numSales > allocated);
+		assertEquals(SalesMessagesService.State.LOGGING, loggingService.getCurrState());
+	}
+	
+	/*
+	 * Record a number of sales, taking each of the given sales in turn.
+	 */
+	private void recordSales(SalesService service, Sale[] sales, int numSales) throws SalesException {
+		for (int i = 0; i < numSales; i++) {
+			service.recordSale(sales[i % sales.length]);
+		}
+	}
+	
+	/*
+	 * Attempt to record a number of sales, returning the number rejected.
+	 */
+	private int rejectSales(SalesService service, Sale[] sales, int numSales) throws SalesException {
+		int rejected = 0;
+		for (int i = 0; i < numSales; i++) {
+			try {
+				service.recordSale(sales[i % sales.length]);
+			}
+			catch (SalesPausedException e) {
+				rejected++;
+			}
+		}
+		return rejected;
+	}
+	
+	/*
+	 * The number of bytes allocated by the current thread so far.
+	 */
+	private long allocatedBytes(com.sun.management.ThreadMXBean threads) {
+		return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	
+	
+	/*
+	 * Tests that the sales of a type found by value range through the index match those
+	 * found by visiting every sale, as sales are recorded and types adjusted, and that
+	 * the per-type and leading type queries match the full report.
+	 */
+	@Test
+	public void testSalesIndex() throws Exception {
+		SalesMessagesService service = new SalesMessagesService(new ColumnarSalesStore(), 
+				Integer.MAX_VALUE, Integer.MAX_VALUE);
+		String[] types = { typeApple, typePear, typePie };
+		SalesService.adjustmentOperation[] operations = SalesService.adjustmentOperation.values();
+		Random random = new Random(7);
+		
+		try {
+			service.findSalesInRange(typeApple, 0, 100);
+			fail("Sales are not being indexed");
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+		
+		int[] itemTypes = new int[3000];
+		int numItems = 0;
+		for (int round = 0; round < 40; round++) {
+			for (int i = 0; i < 10; i++) {
+				int type = random.nextInt(types.length);
+				int volume = 1 + random.nextInt(5);
+				service.recordSale(new Sale(types[type], random.nextInt(200)), volume);
+				Arrays.fill(itemTypes, numItems, numItems + volume, type);
+				numItems += volume;
+			}
+			if (5 == round) {
+				service.enableSalesIndex();
+			}
+			if (0 == round % 3) {
+				SalesService.adjustmentOperation operation = operations[random.nextInt(operations.length)];
+				int value = (SalesService.adjustmentOperation.MULTIPLY == operation) ? random.nextInt(5) - 2 : random.nextInt(50);
+				service.adjustSale(new Sale(types[random.nextInt(types.length)], 0), operation, value);
+			}
+			if ((5 <= round) && (0 == round % 2)) {
+				long minValue = random.nextInt(400) - 200;
+				long maxValue = minValue + random.nextInt(300);
+				
+				for (int type = 0; type < types.length; type++) {
+					int expectedItems = 0;
+					long expectedValue = 0;
+					for (int index = 0; index < numItems; index++) {
+						long value = service.getSaleValue(index);
+						if ((type == itemTypes[index]) && (minValue <= value) && (value <= maxValue)) {
+							expectedItems++;
+							expectedValue += value;
+						}
+					}
+					SalesReportItem found = service.findSalesInRange(types[type], minValue, maxValue);
+					assertEquals(types[type], found.getItemType());
+					assertEquals(expectedItems, found.getNumItems());
+					assertEquals(expectedValue, found.getTotalValue());
+				}
+			}
+		}
+		
+		List<SalesReportItem> report = service.generateReport();
+		SalesReportItem leading = report.get(0);
+		for (SalesReportItem item : report) {
+			SalesReportItem typeReport = service.getTypeReport(item.getItemType());
+			assertEquals(item.getNumItems(), typeReport.getNumItems());
+			assertEquals(item.getTotalValue(), typeReport.getTotalValue());
+			if (item.getTotalValue() > leading.getTotalValue()) {
+				leading = item;
+			}
+		}
+		assertNull(service.getTypeReport("banana"));
+		assertEquals(0, service.findSalesInRange("banana", 0, 100).getNumItems());
+		
+		List<SalesReportItem> topTypes = service.getTopTypesByValue(2);
+		assertEquals(Math.min(2, report.size()), topTypes.size());
+		assertEquals(leading.getItemType(), topTypes.get(0).getItemType());
+		assertTrue(topTypes.get(0).getTotalValue() >= topTypes.get(topTypes.size() - 1).getTotalValue());
+		assertEquals(report.size(), service.getTopTypesByValue(10).size());
+	}
+
+	
+	/*
+	 * Tests that the index finds sales exactly when their large recorded values, or 
+	 * adjustments beyond the range of a long, would overflow long arithmetic.
+	 */
+	@Test
+	public void testSalesIndexBeyondLong() throws Exception {
+		SalesMessagesService service = new SalesMessagesService(new ColumnarSalesStore(), 
+				Integer.MAX_VALUE, Integer.MAX_VALUE);
+		service.enableSalesIndex();
+		Sale sale = new Sale(typePie, 2);
+		
+		service.recordSale(new Sale(typeApple, Integer.MAX_VALUE), 1 << 30);
+		service.recordSale(new Sale(typeApple, Integer.MAX_VALUE - 1), 1 << 29);
+		SalesReportItem found = service.findSalesInRange(typeApple, 0, Long.MAX_VALUE);
+		assertEquals((1 << 30) + (1 << 29), found.getNumItems());
+		assertEquals(service.getTypeReport(typeApple).getExactTotalValue(), found.getExactTotalValue());
+		
+		service.recordSale(sale, 3);
+		for (int i = 0; i < 3; i++) {
+			service.adjustSale(sale, SalesService.adjustmentOperation.MULTIPLY, 1000000000);
+		}
+		service.recordSale(new Sale(typePie, 5));
+		found = service.findSalesInRange(typePie, Long.MIN_VALUE, Long.MAX_VALUE);
+		assertEquals(1, found.getNumItems());
+		assertEquals(5, found.getTotalValue());
+		
+		service.adjustSale(sale, SalesService.adjustmentOperation.MULTIPLY, -1);
+		found = service.findSalesInRange(typePie, Long.MIN_VALUE, 0);
+		assertEquals(1, found.getNumItems());
+		assertEquals(-5, found.getTotalValue());
+		
+		service.adjustSale(sale, SalesService.adjustmentOperation.MULTIPLY, 0);
+		found = service.findSalesInRange(typePie, 0, 0);
+		assertEquals(4, found.getNumItems());
+		assertEquals(0, found.getTotalValue());
+	}
+	
+	
+	/*
+	 * Tests that an export of the stored sales reads back in full, giving the same totals
+	 * once the exported modifications are applied, and that blocks are skipped when only
+	 * some types are read.
+	 */
+	@Test
+	public void testSalesExport() throws Exception {
+		SalesMessagesService service = new SalesMessagesService(new ColumnarSalesStore(), 
+				Integer.MAX_VALUE, Integer.MAX_VALUE);
+		Random random = new Random(11);
+		
+		// Enough entries for several blocks, with pies sold only in the last.
+		int numEntries = 2 * SalesExportWriter.BLOCK_SIZE + 1000;
+		for (int i = 0; i < numEntries; i++) {
+			String type = (i < 2 * SalesExportWriter.BLOCK_SIZE) ? ((0 == i % 2) ? typeApple : typePear) : typePie;
+			service.recordSale(new Sale(type, random.nextInt(1000)), 1 + random.nextInt(3));
+			if (0 == i % 20000) {
+				service.adjustSale(new Sale(type, 0), SalesService.adjustmentOperation.ADD, 5);
+			}
+		}
+		service.adjustSale(new Sale(typePie, 0), SalesService.adjustmentOperation.MULTIPLY, 2);
+		
+		Path file = Files.createTempFile("sales", ".export");
+		try {
+			service.exportSales(file);
+			
+			int entriesRead = 0;
+			int nextIndex = 0;
+			long[] totalValues = new long[3];
+			try (SalesExportReader reader = new SalesExportReader(Files.newInputStream(file))) {
+				assertArrayEquals(new String[] { typeApple, typePear, typePie }, reader.getProductTypes());
+				AdjustmentTransform[][] transforms = new AdjustmentTransform[3][];
+				for (int typeId = 0; typeId < 3; typeId++) {
+					transforms[typeId] = reader.getModifications().getTransformsForType(reader.getProductTypes()[typeId]);
+				}
+				
+				while (reader.next()) {
+					assertEquals(nextIndex, reader.getFirstIndex());
+					totalValues[reader.getTypeId()] += 
+							transforms[reader.getTypeId()][reader.getAdjustmentIndex()].apply(reader.getValue()) * reader.getVolume();
+					nextIndex += reader.getVolume();
+					entriesRead++;
+				}
+				assertEquals(3, reader.getBlocksRead());
+				assertEquals(0, reader.getBlocksSkipped());
+			}
+			assertEquals(numEntries, entriesRead);
+			
+			List<SalesReportItem> report = service.generateReport();
+			for (int typeId = 0; typeId < 3; typeId++) {
+				assertEquals(report.get(typeId).getTotalValue(), totalValues[typeId]);
+			}
+			
+			int piesRead = 0;
+			try (SalesExportReader reader = new SalesExportReader(Files.newInputStream(file))) {
+				reader.setTypeFilter(typePie);
+				while (reader.next()) {
+					assertEquals(typePie, reader.getProductType());
+					piesRead += reader.getVolume();
+				}
+				assertEquals(1, reader.getBlocksRead());
+				assertEquals(2, reader.getBlocksSkipped());
+			}
+			assertEquals(report.get(2).getNumItems(), piesRead);
+		}
+		finally {
+			Files.delete(file);
+		}
+	}
+
+	/*
+	 * Tests published views across enough types to need several levels of the view's
+	 * tree, and that an earlier view is unchanged by the sales recorded after it.
+	 */
+	@Test
+	public void testSalesViewAcrossManyTypes() throws SalesException {
+		SalesMessagesService service = new SalesMessagesService(new ColumnarSalesStore(), 
+				Integer.MAX_VALUE, Integer.MAX_VALUE);
+		for (int typeId = 0; typeId < 100; typeId++) {
+			service.recordSale(new Sale("type" + typeId, 10));
+		}
+		service.enableSalesView();
+		SalesView earlyView = service.getSalesView();
+		
+		for (int typeId = 0; typeId < 5000; typeId++) {
+			service.recordSale(new Sale("type" + typeId, 10));
+		}
+		service.adjustSale(new Sale("type4999", 10), SalesService.adjustmentOperation.ADD, 5);
+		SalesView lateView = service.getSalesView();
+		
+		assertEquals(100, earlyView.getSalesCount());
+		assertEquals(100, earlyView.getReport().size());
+		for (SalesReportItem item : earlyView.getReport()) {
+			assertEquals(1, item.getNumItems());
+			assertEquals(10, item.getTotalValue());
+		}
+		assertEquals(0, earlyView.getSaleModifications().getModificationCount("type4999"));
+		
+		assertEquals(5100, lateView.getSalesCount());
+		List<SalesReportItem> report = service.generateReport();
+		List<SalesReportItem> viewReport = lateView.getReport();
+		assertEquals(report.size(), viewReport.size());
+		for (int i = 0; i < report.size(); i++) {
+			assertEquals(report.get(i).getItemType(), viewReport.get(i).getItemType());
+			assertEquals(report.get(i).getNumItems(), viewReport.get(i).getNumItems());
+			assertEquals(report.get(i).getTotalValue(), viewReport.get(i).getTotalValue());
+		}
+		assertEquals(1, lateView.getSaleModifications().getModificationCount("type4999"));
+	}
+
 }